@@ -0,0 +1,560 @@
+package com.pgrenaud.android.p2p.entity;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.BufferUnderflowException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * Compact binary encoding of the events, peers and files exchanged between peers, selected with
+ * the {@link #MIME_BINARY} content type. JSON stays the default, so that older peers keep working.
+ *
+ * A message is a format version byte followed by a varint count of records. Each record is a
+ * varint length followed by a fixed layout of fields, optional fields being announced by a bit
+ * mask. Trailing bytes of a record are skipped, so that later versions can append fields.
+ */
+public final class BinaryCodec {
+
+    public static final String MIME_BINARY = "application/x-p2p-binary";
+
+    private static final int FORMAT_VERSION = 1;
+    private static final int MAX_RECORD_SIZE = 64 * 1024;
+
+    private static final int EVENT_NAME = 1;
+    private static final int EVENT_LOCATION = 2;
+    private static final int EVENT_VERSION = 4;
+
+    private static final int PEER_UUID = 1;
+    private static final int PEER_NAME = 2;
+    private static final int PEER_IP = 4;
+    private static final int PEER_PORT = 8;
+
+    private static final int FILE_UUID = 1;
+    private static final int FILE_NAME = 2;
+    private static final int FILE_SIZE = 4;
+    private static final int FILE_HASH = 8; // Hex hash sent as raw bytes
+    private static final int FILE_HASH_TEXT = 16; // Any other hash sent as is
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private BinaryCodec() {
+    }
+
+    /**
+     *
+     * @param accept Accept header of a request, or null.
+     * @return Returns true if the binary encoding is acceptable.
+     */
+    public static boolean isAccepted(String accept) {
+        return accept != null && accept.toLowerCase(Locale.US).contains(MIME_BINARY);
+    }
+
+    /**
+     *
+     * @param contentType Content-Type header of a response, or null.
+     * @return Returns true if the content uses the binary encoding.
+     */
+    public static boolean isBinary(String contentType) {
+        return contentType != null && contentType.toLowerCase(Locale.US).startsWith(MIME_BINARY);
+    }
+
+    public static byte[] encodeEvents(Collection<EventEntity> events) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(16 + events.size() * 32);
+
+        try {
+            encodeEvents(events, baos);
+        } catch (IOException e) {
+            throw new IllegalStateException("In memory encoding can not fail", e);
+        }
+
+        return baos.toByteArray();
+    }
+
+    public static void encodeEvents(Collection<EventEntity> events, OutputStream outputStream) throws IOException {
+        RecordWriter writer = new RecordWriter(outputStream, events.size());
+
+        for (EventEntity event : events) {
+            EventEntity.Params params = event.getParams();
+            LocationEntity location = params.getLocation();
+            int flags = (params.getDisplayName() != null ? EVENT_NAME : 0)
+                    | (location != null ? EVENT_LOCATION : 0)
+                    | (params.getDirectoryVersion() != null ? EVENT_VERSION : 0);
+
+            writer.writeByte(toCode(event.getEvent()));
+            writer.writeByte(flags);
+            if ((flags & EVENT_NAME) != 0) {
+                writer.writeString(params.getDisplayName());
+            }
+            if ((flags & EVENT_LOCATION) != 0) {
+                writer.writeDouble(location.getLatitude());
+                writer.writeDouble(location.getLongitude());
+            }
+            if ((flags & EVENT_VERSION) != 0) {
+                writer.writeVarint(params.getDirectoryVersion());
+            }
+            writer.endRecord();
+        }
+
+        writer.flush();
+    }
+
+    public static List<EventEntity> decodeEvents(InputStream inputStream) throws IOException {
+        RecordReader reader = new RecordReader(inputStream);
+        List<EventEntity> events = new ArrayList<>();
+
+        for (int i = 0; i < reader.getCount(); i++) {
+            ByteBuffer record = reader.nextRecord();
+
+            try {
+                EventEntity event = new EventEntity(fromCode(record.get()));
+                EventEntity.Params params = event.getParams();
+                int flags = record.get();
+
+                if ((flags & EVENT_NAME) != 0) {
+                    params.setDisplayName(readString(record));
+                }
+                if ((flags & EVENT_LOCATION) != 0) {
+                    params.setLocation(new LocationEntity(readDouble(record), readDouble(record)));
+                }
+                if ((flags & EVENT_VERSION) != 0) {
+                    params.setDirectoryVersion(readVarint(record));
+                }
+
+                events.add(event);
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Truncated event record");
+            }
+        }
+
+        return events;
+    }
+
+    public static byte[] encodePeers(Collection<PeerEntity> peers) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(16 + peers.size() * 48);
+
+        try {
+            encodePeers(peers, baos);
+        } catch (IOException e) {
+            throw new IllegalStateException("In memory encoding can not fail", e);
+        }
+
+        return baos.toByteArray();
+    }
+
+    public static void encodePeers(Collection<PeerEntity> peers, OutputStream outputStream) throws IOException {
+        RecordWriter writer = new RecordWriter(outputStream, peers.size());
+
+        for (PeerEntity peer : peers) {
+            int flags = (peer.getUUID() != null ? PEER_UUID : 0)
+                    | (peer.getDisplayName() != null ? PEER_NAME : 0)
+                    | (peer.getIpAddress() != null ? PEER_IP : 0)
+                    | (peer.getPort() != null ? PEER_PORT : 0);
+
+            writer.writeByte(flags);
+            if ((flags & PEER_UUID) != 0) {
+                writer.writeUUID(peer.getUUID());
+            }
+            if ((flags & PEER_NAME) != 0) {
+                writer.writeString(peer.getDisplayName());
+            }
+            if ((flags & PEER_IP) != 0) {
+                writer.writeString(peer.getIpAddress());
+            }
+            if ((flags & PEER_PORT) != 0) {
+                writer.writeVarint(peer.getPort());
+            }
+            writer.endRecord();
+        }
+
+        writer.flush();
+    }
+
+    public static List<PeerEntity> decodePeers(InputStream inputStream) throws IOException {
+        RecordReader reader = new RecordReader(inputStream);
+        List<PeerEntity> peers = new ArrayList<>();
+
+        for (int i = 0; i < reader.getCount(); i++) {
+            ByteBuffer record = reader.nextRecord();
+
+            try {
+                int flags = record.get();
+
+                UUID uuid = (flags & PEER_UUID) != 0 ? readUUID(record) : null;
+                String displayName = (flags & PEER_NAME) != 0 ? readString(record) : null;
+                String ipAddress = (flags & PEER_IP) != 0 ? readString(record) : null;
+                Integer port = (flags & PEER_PORT) != 0 ? (int) readVarint(record) : null;
+
+                peers.add(new PeerEntity(uuid, displayName, ipAddress, port));
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Truncated peer record");
+            }
+        }
+
+        return peers;
+    }
+
+    public static byte[] encodeFiles(Collection<FileEntity> files) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(16 + files.size() * 64);
+
+        try {
+            encodeFiles(files, baos);
+        } catch (IOException e) {
+            throw new IllegalStateException("In memory encoding can not fail", e);
+        }
+
+        return baos.toByteArray();
+    }
+
+    public static void encodeFiles(Collection<FileEntity> files, OutputStream outputStream) throws IOException {
+        RecordWriter writer = new RecordWriter(outputStream, files.size());
+
+        for (FileEntity file : files) {
+            String hash = file.getHash();
+            byte[] rawHash = hash != null ? fromHex(hash) : null;
+            int flags = (file.getUuid() != null ? FILE_UUID : 0)
+                    | (file.getName() != null ? FILE_NAME : 0)
+                    | (file.getSize() != null ? FILE_SIZE : 0)
+                    | (rawHash != null ? FILE_HASH : (hash != null ? FILE_HASH_TEXT : 0));
+
+            writer.writeByte(flags);
+            if ((flags & FILE_UUID) != 0) {
+                writer.writeUUID(file.getUuid());
+            }
+            if ((flags & FILE_NAME) != 0) {
+                writer.writeString(file.getName());
+            }
+            if ((flags & FILE_SIZE) != 0) {
+                writer.writeVarint(file.getSize());
+            }
+            if ((flags & FILE_HASH) != 0) {
+                writer.writeBytes(rawHash);
+            } else if ((flags & FILE_HASH_TEXT) != 0) {
+                writer.writeString(hash);
+            }
+            writer.endRecord();
+        }
+
+        writer.flush();
+    }
+
+    public static List<FileEntity> decodeFiles(InputStream inputStream) throws IOException {
+        RecordReader reader = new RecordReader(inputStream);
+        List<FileEntity> files = new ArrayList<>();
+
+        for (int i = 0; i < reader.getCount(); i++) {
+            ByteBuffer record = reader.nextRecord();
+
+            try {
+                int flags = record.get();
+
+                UUID uuid = (flags & FILE_UUID) != 0 ? readUUID(record) : null;
+                String name = (flags & FILE_NAME) != 0 ? readString(record) : null;
+                Long size = (flags & FILE_SIZE) != 0 ? readVarint(record) : null;
+                String hash = null;
+
+                if ((flags & FILE_HASH) != 0) {
+                    hash = toHex(readBytes(record));
+                } else if ((flags & FILE_HASH_TEXT) != 0) {
+                    hash = readString(record);
+                }
+
+                files.add(new FileEntity(uuid, name, size, hash));
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Truncated file record");
+            }
+        }
+
+        return files;
+    }
+
+    private static int toCode(EventEntity.Type event) {
+        if (event == null) {
+            return 0;
+        }
+
+        switch (event) {
+            case DISPLAY_NAME_UPDATE:
+                return 1;
+            case LOCATION_UPDATE:
+                return 2;
+            case DIRECTORY_CHANGE:
+                return 3;
+            default:
+                throw new IllegalArgumentException("Unknown event " + event);
+        }
+    }
+
+    /**
+     *
+     * @return Returns the event, or null if unknown to this version, as with JSON.
+     */
+    private static EventEntity.Type fromCode(int code) {
+        switch (code) {
+            case 1:
+                return EventEntity.Type.DISPLAY_NAME_UPDATE;
+            case 2:
+                return EventEntity.Type.LOCATION_UPDATE;
+            case 3:
+                return EventEntity.Type.DIRECTORY_CHANGE;
+            default:
+                return null;
+        }
+    }
+
+    private static long readVarint(ByteBuffer buffer) throws IOException {
+        long value = 0;
+
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+
+        throw new IOException("Malformed varint");
+    }
+
+    private static Double readDouble(ByteBuffer buffer) {
+        double value = buffer.getDouble();
+
+        return Double.isNaN(value) ? null : value;
+    }
+
+    private static UUID readUUID(ByteBuffer buffer) {
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) throws IOException {
+        long length = readVarint(buffer);
+
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("Invalid field length: " + length);
+        }
+
+        byte[] bytes = new byte[(int) length];
+        buffer.get(bytes);
+
+        return bytes;
+    }
+
+    private static String readString(ByteBuffer buffer) throws IOException {
+        return new String(readBytes(buffer), EntityCodec.UTF_8);
+    }
+
+    /**
+     *
+     * @return Returns the bytes of a lower case hex string, or null if it is not one.
+     */
+    private static byte[] fromHex(String hex) {
+        if (hex.length() % 2 != 0) {
+            return null;
+        }
+
+        byte[] bytes = new byte[hex.length() / 2];
+
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(i * 2), 16);
+            int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+
+            if (high < 0 || low < 0 || Character.isUpperCase(hex.charAt(i * 2)) || Character.isUpperCase(hex.charAt(i * 2 + 1))) {
+                return null;
+            }
+
+            bytes[i] = (byte) (high << 4 | low);
+        }
+
+        return bytes;
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+
+        return new String(hex);
+    }
+
+    /**
+     * Write the header, then each record prefixed with its length. Records are built in a plain
+     * growable array, as they are written a few bytes at a time.
+     */
+    private static class RecordWriter {
+        private final OutputStream outputStream;
+        private final byte[] scratch;
+
+        private byte[] record;
+        private int size;
+
+        private RecordWriter(OutputStream outputStream, int count) throws IOException {
+            this.outputStream = outputStream;
+
+            scratch = new byte[10];
+            record = new byte[64];
+
+            outputStream.write(FORMAT_VERSION);
+            outputStream.write(scratch, 0, encodeVarint(count));
+        }
+
+        private void ensureCapacity(int length) {
+            if (size + length > record.length) {
+                record = Arrays.copyOf(record, Math.max(record.length * 2, size + length));
+            }
+        }
+
+        private void writeByte(int value) {
+            ensureCapacity(1);
+            record[size++] = (byte) value;
+        }
+
+        private void writeVarint(long value) {
+            int length = encodeVarint(value);
+
+            ensureCapacity(length);
+            System.arraycopy(scratch, 0, record, size, length);
+            size += length;
+        }
+
+        /**
+         *
+         * @return Returns the number of bytes of the varint written in the scratch array.
+         */
+        private int encodeVarint(long value) {
+            int length = 0;
+
+            while ((value & ~0x7fL) != 0) {
+                scratch[length++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            scratch[length++] = (byte) value;
+
+            return length;
+        }
+
+        private void writeDouble(Double value) {
+            writeLong(Double.doubleToLongBits(value != null ? value : Double.NaN));
+        }
+
+        private void writeUUID(UUID uuid) {
+            writeLong(uuid.getMostSignificantBits());
+            writeLong(uuid.getLeastSignificantBits());
+        }
+
+        private void writeLong(long value) {
+            ensureCapacity(8);
+
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                record[size++] = (byte) (value >>> shift);
+            }
+        }
+
+        private void writeBytes(byte[] bytes) {
+            writeVarint(bytes.length);
+
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, record, size, bytes.length);
+            size += bytes.length;
+        }
+
+        private void writeString(String value) {
+            writeBytes(value.getBytes(EntityCodec.UTF_8));
+        }
+
+        private void endRecord() throws IOException {
+            outputStream.write(scratch, 0, encodeVarint(size));
+            outputStream.write(record, 0, size);
+            size = 0;
+        }
+
+        private void flush() throws IOException {
+            outputStream.flush();
+        }
+    }
+
+    /**
+     * Read the header, then hand each record as a buffer bounded to its length.
+     */
+    private static class RecordReader {
+        private final InputStream inputStream;
+        private final long count;
+
+        private RecordReader(InputStream inputStream) throws IOException {
+            this.inputStream = inputStream;
+
+            int version = read();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported binary format version: " + version);
+            }
+
+            count = readVarint();
+            if (count < 0 || count > Integer.MAX_VALUE) {
+                throw new IOException("Invalid record count: " + count);
+            }
+        }
+
+        private long getCount() {
+            return count;
+        }
+
+        private ByteBuffer nextRecord() throws IOException {
+            long length = readVarint();
+
+            if (length < 0 || length > MAX_RECORD_SIZE) {
+                throw new IOException("Invalid record length: " + length);
+            }
+
+            byte[] bytes = new byte[(int) length];
+            int offset = 0;
+
+            while (offset < bytes.length) {
+                int read = inputStream.read(bytes, offset, bytes.length - offset);
+
+                if (read == -1) {
+                    throw new EOFException("Truncated record");
+                }
+
+                offset += read;
+            }
+
+            return ByteBuffer.wrap(bytes);
+        }
+
+        private int read() throws IOException {
+            int b = inputStream.read();
+
+            if (b == -1) {
+                throw new EOFException("Truncated message");
+            }
+
+            return b;
+        }
+
+        private long readVarint() throws IOException {
+            long value = 0;
+
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = read();
+                value |= (long) (b & 0x7f) << shift;
+
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+
+            throw new IOException("Malformed varint");
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.pgrenaud.android.p2p.entity;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.UUID;
+
+/**
+ * Shared JSON codec of the entities. Every entity is written and read by a hand-written streaming
+ * adapter, keeping the wire names of its fields, so messages are encoded without reflection and
+ * without building a new {@link Gson} each time. The instances are thread-safe.
+ */
+public final class EntityCodec {
+
+    public static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final Gson GSON = create(true);
+    private static final Gson WIRE_GSON = create(false);
+
+    private EntityCodec() {
+    }
+
+    /**
+     *
+     * @param persisted Whether the fields removed from the protocol, such as accessed_at, are written.
+     */
+    private static Gson create(boolean persisted) {
+        TypeAdapter<Date> dateAdapter = new Gson().getAdapter(Date.class);
+        TypeAdapter<FileEntity> fileAdapter = new FileEntity.Adapter();
+        TypeAdapter<LocationEntity> locationAdapter = new LocationEntity.Adapter();
+
+        return new GsonBuilder()
+                .registerTypeAdapter(FileEntity.class, fileAdapter)
+                .registerTypeAdapter(LocationEntity.class, locationAdapter)
+                .registerTypeAdapter(PeerEntity.class, new PeerEntity.Adapter(dateAdapter, persisted))
+                .registerTypeAdapter(EventEntity.class, new EventEntity.Adapter(locationAdapter))
+                .registerTypeAdapter(FileDeltaEntity.class, new FileDeltaEntity.Adapter(fileAdapter))
+                .registerTypeAdapter(FilePageEntity.class, new FilePageEntity.Adapter(fileAdapter))
+                .create();
+    }
+
+    /**
+     *
+     * @return Returns the codec for entities persisted on the device, writing every field.
+     */
+    public static Gson getGson() {
+        return GSON;
+    }
+
+    /**
+     *
+     * @return Returns the codec for entities sent to peers, writing the fields of the current
+     * protocol version only.
+     */
+    public static Gson getWireGson() {
+        return WIRE_GSON;
+    }
+
+    /**
+     * Encode to a stream in UTF-8, without building the whole message in memory first.
+     * The stream is flushed but not closed.
+     */
+    public static void encode(Object src, Type type, OutputStream outputStream) throws IOException {
+        Writer writer = new OutputStreamWriter(outputStream, UTF_8);
+
+        try {
+            WIRE_GSON.toJson(src, type, writer);
+        } catch (JsonIOException e) {
+            throw new IOException(e);
+        }
+
+        writer.flush();
+    }
+
+    /**
+     * Decode from a stream in UTF-8, without reading the whole message in memory first.
+     * The stream is not closed.
+     */
+    public static <T> T decode(InputStream inputStream, Type type) throws JsonSyntaxException {
+        return GSON.fromJson(new InputStreamReader(inputStream, UTF_8), type);
+    }
+
+    static String nextString(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        return in.nextString();
+    }
+
+    static Long nextLong(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        try {
+            return in.nextLong();
+        } catch (NumberFormatException e) {
+            throw new JsonSyntaxException(e);
+        }
+    }
+
+    static Integer nextInteger(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        try {
+            return in.nextInt();
+        } catch (NumberFormatException e) {
+            throw new JsonSyntaxException(e);
+        }
+    }
+
+    static Double nextDouble(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        try {
+            return in.nextDouble();
+        } catch (NumberFormatException e) {
+            throw new JsonSyntaxException(e);
+        }
+    }
+
+    static UUID nextUUID(JsonReader in) throws IOException {
+        String value = nextString(in);
+
+        try {
+            return value != null ? UUID.fromString(value) : null;
+        } catch (IllegalArgumentException e) {
+            throw new JsonSyntaxException("Invalid UUID: " + value, e);
+        }
+    }
+}
@@ -1,11 +1,24 @@
 package com.pgrenaud.android.p2p.entity;
 
-import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
 import com.google.gson.annotations.SerializedName;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 
 public class EventEntity {
 
+    private static final java.lang.reflect.Type COLLECTION_TYPE = new TypeToken<Collection<EventEntity>>(){}.getType();
+    private static final TypeToken<List<EventEntity>> LIST_TYPE = new TypeToken<List<EventEntity>>(){};
+
     private final Type event;
     private final Params params;
 
@@ -24,15 +37,38 @@ public class EventEntity {
     }
 
     public String encode() {
-        Gson gson = new Gson();
-
-        return gson.toJson(this);
+        return EntityCodec.getWireGson().toJson(this);
     }
 
     public static EventEntity decode(String json) throws JsonSyntaxException {
-        Gson gson = new Gson();
+        return EntityCodec.getGson().fromJson(json, EventEntity.class);
+    }
+
+    public static String encodeAll(Collection<EventEntity> events) {
+        return EntityCodec.getWireGson().toJson(events, COLLECTION_TYPE);
+    }
 
-        return gson.fromJson(json, EventEntity.class);
+    /**
+     * Decode a batch of events. A single event object is also accepted, since older peers only
+     * send one event per polling response.
+     *
+     * @param json Either a JSON array of events or a single JSON event.
+     * @return Returns the decoded events, in the order they were sent.
+     * @throws JsonSyntaxException
+     */
+    public static List<EventEntity> decodeAll(String json) throws JsonSyntaxException {
+        JsonReader reader = new JsonReader(new StringReader(json));
+        reader.setLenient(true);
+
+        try {
+            if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+                return EntityCodec.getGson().getAdapter(LIST_TYPE).read(reader);
+            } else {
+                return Collections.singletonList(EntityCodec.getGson().getAdapter(EventEntity.class).read(reader));
+            }
+        } catch (IOException | IllegalStateException e) {
+            throw new JsonSyntaxException(e);
+        }
     }
 
     public enum Type {
@@ -50,6 +86,8 @@ public class EventEntity {
         private String displayName;
         @SerializedName("loc")
         private LocationEntity location;
+        @SerializedName("ver")
+        private Long directoryVersion;
 
         public String getDisplayName() {
             return displayName;
@@ -66,5 +104,141 @@ public class EventEntity {
         public void setLocation(LocationEntity location) {
             this.location = location;
         }
+
+        /**
+         *
+         * @return Returns the version of the list of files after a DIRECTORY_CHANGE, or null if
+         * sent by an older peer.
+         */
+        public Long getDirectoryVersion() {
+            return directoryVersion;
+        }
+
+        public void setDirectoryVersion(Long directoryVersion) {
+            this.directoryVersion = directoryVersion;
+        }
+    }
+
+    static class Adapter extends TypeAdapter<EventEntity> {
+        private final TypeAdapter<LocationEntity> locationAdapter;
+
+        Adapter(TypeAdapter<LocationEntity> locationAdapter) {
+            this.locationAdapter = locationAdapter;
+        }
+
+        @Override
+        public void write(JsonWriter out, EventEntity value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+
+            out.beginObject();
+            out.name("event").value(toWireName(value.event));
+            if (value.params != null) {
+                out.name("params").beginObject();
+                out.name("name").value(value.params.displayName);
+                out.name("loc");
+                locationAdapter.write(out, value.params.location);
+                out.name("ver").value(value.params.directoryVersion);
+                out.endObject();
+            }
+            out.endObject();
+        }
+
+        @Override
+        public EventEntity read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+
+            Type event = null;
+            String displayName = null;
+            LocationEntity location = null;
+            Long directoryVersion = null;
+
+            // Fields may come in any order, while the params can only be built along the event
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "event":
+                        event = fromWireName(EntityCodec.nextString(in));
+                        break;
+                    case "params":
+                        if (in.peek() == JsonToken.NULL) {
+                            in.nextNull();
+                            break;
+                        }
+
+                        in.beginObject();
+                        while (in.hasNext()) {
+                            switch (in.nextName()) {
+                                case "name":
+                                    displayName = EntityCodec.nextString(in);
+                                    break;
+                                case "loc":
+                                    location = locationAdapter.read(in);
+                                    break;
+                                case "ver":
+                                    directoryVersion = EntityCodec.nextLong(in);
+                                    break;
+                                default:
+                                    in.skipValue();
+                            }
+                        }
+                        in.endObject();
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+
+            EventEntity eventEntity = new EventEntity(event);
+            eventEntity.params.displayName = displayName;
+            eventEntity.params.location = location;
+            eventEntity.params.directoryVersion = directoryVersion;
+
+            return eventEntity;
+        }
+
+        private static String toWireName(Type event) {
+            if (event == null) {
+                return null;
+            }
+
+            switch (event) {
+                case DISPLAY_NAME_UPDATE:
+                    return "name";
+                case LOCATION_UPDATE:
+                    return "loc";
+                case DIRECTORY_CHANGE:
+                    return "dir";
+                default:
+                    throw new IllegalArgumentException("Unknown event " + event);
+            }
+        }
+
+        /**
+         *
+         * @return Returns the event, or null if unknown to this version.
+         */
+        private static Type fromWireName(String name) {
+            if (name == null) {
+                return null;
+            }
+
+            switch (name) {
+                case "name":
+                    return Type.DISPLAY_NAME_UPDATE;
+                case "loc":
+                    return Type.LOCATION_UPDATE;
+                case "dir":
+                    return Type.DIRECTORY_CHANGE;
+                default:
+                    return null;
+            }
+        }
     }
 }
@@ -0,0 +1,176 @@
+package com.pgrenaud.android.p2p.entity;
+
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Changes of the list of files of a peer since a given version. When the version is too old to be
+ * found in the change log, the whole list is sent instead and must replace the previous one.
+ */
+public class FileDeltaEntity {
+
+    private long version;
+    private boolean resync;
+    private Collection<FileEntity> added;
+    private Collection<UUID> removed;
+
+    public FileDeltaEntity(long version, Collection<FileEntity> added, Collection<UUID> removed) {
+        this(version, false, added, removed);
+    }
+
+    private FileDeltaEntity(long version, boolean resync, Collection<FileEntity> added, Collection<UUID> removed) {
+        this.version = version;
+        this.resync = resync;
+        this.added = added;
+        this.removed = removed;
+    }
+
+    /**
+     *
+     * @param files Whole list of files at this version.
+     */
+    public static FileDeltaEntity resync(long version, Collection<FileEntity> files) {
+        return new FileDeltaEntity(version, true, files, Collections.<UUID>emptyList());
+    }
+
+    /**
+     *
+     * @return Returns the version of the list once the changes are applied, to be sent as since on the next request.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     *
+     * @return Returns true if the added files are the whole list, replacing the previous one.
+     */
+    public boolean isResync() {
+        return resync;
+    }
+
+    /**
+     *
+     * @return Returns the files added or updated since the requested version.
+     */
+    public Collection<FileEntity> getAdded() {
+        return added;
+    }
+
+    /**
+     *
+     * @return Returns the uuid of the files removed since the requested version.
+     */
+    public Collection<UUID> getRemoved() {
+        return removed;
+    }
+
+    public String encode() {
+        return EntityCodec.getWireGson().toJson(this);
+    }
+
+    public static FileDeltaEntity decode(String json) throws JsonSyntaxException {
+        return EntityCodec.getGson().fromJson(json, FileDeltaEntity.class);
+    }
+
+    static class Adapter extends TypeAdapter<FileDeltaEntity> {
+        private final TypeAdapter<FileEntity> fileAdapter;
+
+        Adapter(TypeAdapter<FileEntity> fileAdapter) {
+            this.fileAdapter = fileAdapter;
+        }
+
+        @Override
+        public void write(JsonWriter out, FileDeltaEntity value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+
+            out.beginObject();
+            out.name("version").value(value.version);
+            out.name("resync").value(value.resync);
+            if (value.added != null) {
+                out.name("added").beginArray();
+                for (FileEntity fileEntity : value.added) {
+                    fileAdapter.write(out, fileEntity);
+                }
+                out.endArray();
+            }
+            if (value.removed != null) {
+                out.name("removed").beginArray();
+                for (UUID uuid : value.removed) {
+                    out.value(uuid != null ? uuid.toString() : null);
+                }
+                out.endArray();
+            }
+            out.endObject();
+        }
+
+        @Override
+        public FileDeltaEntity read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+
+            long version = 0;
+            boolean resync = false;
+            List<FileEntity> added = null;
+            List<UUID> removed = null;
+
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "version":
+                        version = in.nextLong();
+                        break;
+                    case "resync":
+                        resync = in.nextBoolean();
+                        break;
+                    case "added":
+                        if (in.peek() == JsonToken.NULL) {
+                            in.nextNull();
+                            break;
+                        }
+
+                        added = new ArrayList<>();
+                        in.beginArray();
+                        while (in.hasNext()) {
+                            added.add(fileAdapter.read(in));
+                        }
+                        in.endArray();
+                        break;
+                    case "removed":
+                        if (in.peek() == JsonToken.NULL) {
+                            in.nextNull();
+                            break;
+                        }
+
+                        removed = new ArrayList<>();
+                        in.beginArray();
+                        while (in.hasNext()) {
+                            removed.add(EntityCodec.nextUUID(in));
+                        }
+                        in.endArray();
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+
+            return new FileDeltaEntity(version, resync, added, removed);
+        }
+    }
+}
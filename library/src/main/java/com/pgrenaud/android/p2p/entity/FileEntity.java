@@ -2,23 +2,46 @@ package com.pgrenaud.android.p2p.entity;
 
 import android.support.annotation.NonNull;
 
-import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
 import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.Collection;
+import java.util.List;
 import java.util.Locale;
 import java.util.UUID;
 
 public class FileEntity implements Comparable<FileEntity> {
 
     private static final String TO_STRING_FORMAT = "%S (%s)";
+    private static final Type COLLECTION_TYPE = new TypeToken<Collection<FileEntity>>(){}.getType();
+    private static final Type LIST_TYPE = new TypeToken<List<FileEntity>>(){}.getType();
 
     // Do not serialize file
     private transient File file;
+    private transient long lastModified;
 
     private UUID uuid;
     private String name;
     private Long size;
+    private volatile String hash; // Hex encoded SHA-256, null until computed
+
+    // Decoded files have no local file
+    private FileEntity() {
+    }
+
+    FileEntity(UUID uuid, String name, Long size, String hash) {
+        this.uuid = uuid;
+        this.name = name;
+        this.size = size;
+        this.hash = hash;
+    }
 
     public FileEntity(String path) {
         this(new File(path));
@@ -33,12 +56,32 @@ public class FileEntity implements Comparable<FileEntity> {
 
         name = file.getName();
         size = file.length();
+        lastModified = file.lastModified();
+
+        uuid = generateUuid(file);
+    }
+
+    /**
+     * Internal API
+     *
+     * Restore the entity of a local file, without accessing the file.
+     */
+    public FileEntity(File file, UUID uuid, long size, long lastModified, String hash) {
+        this.file = file;
+        this.uuid = uuid;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.hash = hash;
 
-        uuid = UUID.nameUUIDFromBytes(generateNameForUUID());
+        name = file.getName();
     }
 
-    private byte[] generateNameForUUID() {
-        return file.getAbsolutePath().getBytes();
+    /**
+     *
+     * @return Returns the UUID of the entity of a local file, whether the file still exists or not.
+     */
+    public static UUID generateUuid(File file) {
+        return UUID.nameUUIDFromBytes(file.getAbsolutePath().getBytes());
     }
 
     public UUID getUuid() {
@@ -62,6 +105,30 @@ public class FileEntity implements Comparable<FileEntity> {
         return size;
     }
 
+    /**
+     *
+     * @return Returns the last modification time of the local file when the entity was created,
+     * or 0 if it has no local file.
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     *
+     * @return Returns the hex encoded SHA-256 of the content, or null if not computed yet.
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * Internal API
+     */
+    public void setHash(String hash) {
+        this.hash = hash;
+    }
+
     @Override
     public String toString() {
         return String.format(Locale.getDefault(), TO_STRING_FORMAT, uuid, name);
@@ -73,14 +140,68 @@ public class FileEntity implements Comparable<FileEntity> {
     }
 
     public String encode() {
-        Gson gson = new Gson();
-
-        return gson.toJson(this);
+        return EntityCodec.getWireGson().toJson(this);
     }
 
     public static FileEntity decode(String json) throws JsonSyntaxException {
-        Gson gson = new Gson();
+        return EntityCodec.getGson().fromJson(json, FileEntity.class);
+    }
+
+    public static String encodeAll(Collection<FileEntity> files) {
+        return EntityCodec.getWireGson().toJson(files, COLLECTION_TYPE);
+    }
+
+    public static List<FileEntity> decodeAll(String json) throws JsonSyntaxException {
+        return EntityCodec.getGson().fromJson(json, LIST_TYPE);
+    }
 
-        return gson.fromJson(json, FileEntity.class);
+    static class Adapter extends TypeAdapter<FileEntity> {
+        @Override
+        public void write(JsonWriter out, FileEntity value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+
+            out.beginObject();
+            out.name("uuid").value(value.uuid != null ? value.uuid.toString() : null);
+            out.name("name").value(value.name);
+            out.name("size").value(value.size);
+            out.name("hash").value(value.hash);
+            out.endObject();
+        }
+
+        @Override
+        public FileEntity read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+
+            FileEntity fileEntity = new FileEntity();
+
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "uuid":
+                        fileEntity.uuid = EntityCodec.nextUUID(in);
+                        break;
+                    case "name":
+                        fileEntity.name = EntityCodec.nextString(in);
+                        break;
+                    case "size":
+                        fileEntity.size = EntityCodec.nextLong(in);
+                        break;
+                    case "hash":
+                        fileEntity.hash = EntityCodec.nextString(in);
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+
+            return fileEntity;
+        }
     }
 }
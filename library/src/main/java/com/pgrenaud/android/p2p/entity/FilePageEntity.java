@@ -0,0 +1,129 @@
+package com.pgrenaud.android.p2p.entity;
+
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A page of the list of files of a peer, in a stable order. The next page is requested with the
+ * returned cursor, which stays valid while files are added or removed.
+ */
+public class FilePageEntity {
+
+    private long version;
+    private List<FileEntity> files;
+    private String next;
+
+    public FilePageEntity(long version, List<FileEntity> files, String next) {
+        this.version = version;
+        this.files = files;
+        this.next = next;
+    }
+
+    /**
+     *
+     * @return Returns the version of the list when the page was read, to be sent as since to get
+     * the changes made while paging.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public List<FileEntity> getFiles() {
+        return files;
+    }
+
+    /**
+     *
+     * @return Returns the cursor of the next page, or null if this is the last page.
+     */
+    public String getNext() {
+        return next;
+    }
+
+    public String encode() {
+        return EntityCodec.getWireGson().toJson(this);
+    }
+
+    public static FilePageEntity decode(String json) throws JsonSyntaxException {
+        return EntityCodec.getGson().fromJson(json, FilePageEntity.class);
+    }
+
+    static class Adapter extends TypeAdapter<FilePageEntity> {
+        private final TypeAdapter<FileEntity> fileAdapter;
+
+        Adapter(TypeAdapter<FileEntity> fileAdapter) {
+            this.fileAdapter = fileAdapter;
+        }
+
+        @Override
+        public void write(JsonWriter out, FilePageEntity value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+
+            out.beginObject();
+            out.name("version").value(value.version);
+            if (value.files != null) {
+                out.name("files").beginArray();
+                for (FileEntity fileEntity : value.files) {
+                    fileAdapter.write(out, fileEntity);
+                }
+                out.endArray();
+            }
+            if (value.next != null) {
+                out.name("next").value(value.next);
+            }
+            out.endObject();
+        }
+
+        @Override
+        public FilePageEntity read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+
+            long version = 0;
+            List<FileEntity> files = null;
+            String next = null;
+
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "version":
+                        version = in.nextLong();
+                        break;
+                    case "files":
+                        if (in.peek() == JsonToken.NULL) {
+                            in.nextNull();
+                            break;
+                        }
+
+                        files = new ArrayList<>();
+                        in.beginArray();
+                        while (in.hasNext()) {
+                            files.add(fileAdapter.read(in));
+                        }
+                        in.endArray();
+                        break;
+                    case "next":
+                        next = EntityCodec.nextString(in);
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+
+            return new FilePageEntity(version, files, next);
+        }
+    }
+}
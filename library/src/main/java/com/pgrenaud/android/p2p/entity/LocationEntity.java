@@ -2,8 +2,13 @@ package com.pgrenaud.android.p2p.entity;
 
 import android.location.Location;
 
+import com.google.gson.TypeAdapter;
 import com.google.gson.annotations.SerializedName;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
+import java.io.IOException;
 import java.util.Locale;
 
 public class LocationEntity {
@@ -73,4 +78,46 @@ public class LocationEntity {
     public String toString() {
         return String.format(Locale.getDefault(), TO_STRING_FORMAT, latitude, longitude);
     }
+
+    static class Adapter extends TypeAdapter<LocationEntity> {
+        @Override
+        public void write(JsonWriter out, LocationEntity value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+
+            out.beginObject();
+            out.name("lat").value(value.latitude);
+            out.name("lng").value(value.longitude);
+            out.endObject();
+        }
+
+        @Override
+        public LocationEntity read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+
+            LocationEntity locationEntity = new LocationEntity();
+
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "lat":
+                        locationEntity.latitude = EntityCodec.nextDouble(in);
+                        break;
+                    case "lng":
+                        locationEntity.longitude = EntityCodec.nextDouble(in);
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+
+            return locationEntity;
+        }
+    }
 }
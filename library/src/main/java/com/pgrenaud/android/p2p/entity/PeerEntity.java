@@ -3,12 +3,15 @@ package com.pgrenaud.android.p2p.entity;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
 import com.google.gson.annotations.SerializedName;
 import com.google.gson.annotations.Until;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
+import java.io.IOException;
 import java.util.Date;
 import java.util.Locale;
 import java.util.UUID;
@@ -20,9 +23,10 @@ public class PeerEntity implements Comparable<PeerEntity> {
     private static final String ACCESSED_AT_FORMAT = "%1$tY-%1$tm-%1$td %1$tH:%1$tM:%1$tS";
     private static final String TO_STRING_FORMAT = "%S (%s)";
 
-    // Do not serialize location or online
+    // Do not serialize location, online or directory version
     private transient LocationEntity location;
     private transient boolean online;
+    private transient Long directoryVersion;
 
     private UUID uuid;
     @SerializedName("name")
@@ -49,6 +53,15 @@ public class PeerEntity implements Comparable<PeerEntity> {
         online = false;
     }
 
+    // Decoded peers keep the uuid they were sent with
+    PeerEntity(UUID uuid, String displayName, String ipAddress, Integer port) {
+        this(displayName, ipAddress, port);
+
+        if (uuid != null) {
+            this.uuid = uuid;
+        }
+    }
+
     private byte[] generateNameForUUID() {
         return String.format(Locale.getDefault(), NAME_UUID_FORMAT, ipAddress, port).getBytes();
     }
@@ -107,6 +120,19 @@ public class PeerEntity implements Comparable<PeerEntity> {
         this.online = online;
     }
 
+    /**
+     *
+     * @return Returns the version of the list of files announced by the last DIRECTORY_CHANGE
+     * event of this peer, or null if unknown.
+     */
+    public Long getDirectoryVersion() {
+        return directoryVersion;
+    }
+
+    public void setDirectoryVersion(Long directoryVersion) {
+        this.directoryVersion = directoryVersion;
+    }
+
     @Override
     public String toString() {
         return String.format(Locale.getDefault(), TO_STRING_FORMAT, uuid, displayName);
@@ -118,20 +144,83 @@ public class PeerEntity implements Comparable<PeerEntity> {
     }
 
     public String persistEncode() {
-        Gson gson = new Gson();
-
-        return gson.toJson(this);
+        return EntityCodec.getGson().toJson(this);
     }
 
     public String encode() {
-        Gson gson = new GsonBuilder().setVersion(1.4).create();
-
-        return gson.toJson(this);
+        return EntityCodec.getWireGson().toJson(this);
     }
 
     public static PeerEntity decode(String json) throws JsonSyntaxException {
-        Gson gson = new Gson();
+        return EntityCodec.getGson().fromJson(json, PeerEntity.class);
+    }
+
+    static class Adapter extends TypeAdapter<PeerEntity> {
+        private final TypeAdapter<Date> dateAdapter;
+        private final boolean persisted;
+
+        /**
+         *
+         * @param persisted Whether accessed_at is written, as it was removed from the protocol in version 1.4.
+         */
+        Adapter(TypeAdapter<Date> dateAdapter, boolean persisted) {
+            this.dateAdapter = dateAdapter;
+            this.persisted = persisted;
+        }
+
+        @Override
+        public void write(JsonWriter out, PeerEntity value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+
+            out.beginObject();
+            out.name("uuid").value(value.uuid != null ? value.uuid.toString() : null);
+            out.name("name").value(value.displayName);
+            out.name("ip").value(value.ipAddress);
+            out.name("port").value(value.port);
+            if (persisted) {
+                out.name("accessed_at");
+                dateAdapter.write(out, value.accessedAt);
+            }
+            out.endObject();
+        }
 
-        return gson.fromJson(json, PeerEntity.class);
+        @Override
+        public PeerEntity read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+
+            PeerEntity peerEntity = new PeerEntity();
+
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "uuid":
+                        peerEntity.uuid = EntityCodec.nextUUID(in);
+                        break;
+                    case "name":
+                        peerEntity.displayName = EntityCodec.nextString(in);
+                        break;
+                    case "ip":
+                        peerEntity.ipAddress = EntityCodec.nextString(in);
+                        break;
+                    case "port":
+                        peerEntity.port = EntityCodec.nextInteger(in);
+                        break;
+                    case "accessed_at":
+                        peerEntity.accessedAt = dateAdapter.read(in);
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+
+            return peerEntity;
+        }
     }
 }
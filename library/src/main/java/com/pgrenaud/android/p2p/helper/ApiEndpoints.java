@@ -7,6 +7,10 @@ import cz.msebera.android.httpclient.client.utils.URIBuilder;
 
 public class ApiEndpoints {
 
+    public static final String TRANSPORT_SOCKET = "socket";
+    public static final String TRANSPORT_STREAM = "stream";
+    public static final String TRANSPORT_POLLING = "polling";
+
     public static String getPingUri(PeerEntity peerEntity) {
         return new URIBuilder()
                 .setScheme("http")
@@ -25,6 +29,35 @@ public class ApiEndpoints {
                 .toString();
     }
 
+    public static String getPollingUri(PeerEntity peerEntity, PeerEntity selfPeerEntity, int batchSize, long linger) {
+        return new URIBuilder()
+                .setScheme("http")
+                .setHost(peerEntity.getIpAddress())
+                .setPort(peerEntity.getPort())
+                .setPath("/api/v1/polling/" + selfPeerEntity.getUUID())
+                .addParameter("batch", String.valueOf(batchSize))
+                .addParameter("linger", String.valueOf(linger))
+                .toString();
+    }
+
+    public static String getStreamUri(PeerEntity peerEntity, PeerEntity selfPeerEntity) {
+        return new URIBuilder()
+                .setScheme("http")
+                .setHost(peerEntity.getIpAddress())
+                .setPort(peerEntity.getPort())
+                .setPath("/api/v1/stream/" + selfPeerEntity.getUUID())
+                .toString();
+    }
+
+    public static String getSocketUri(PeerEntity peerEntity, PeerEntity selfPeerEntity) {
+        return new URIBuilder()
+                .setScheme("ws")
+                .setHost(peerEntity.getIpAddress())
+                .setPort(peerEntity.getPort())
+                .setPath("/api/v1/socket/" + selfPeerEntity.getUUID())
+                .toString();
+    }
+
     public static String getFileListUri(PeerEntity peerEntity) {
         return new URIBuilder()
                 .setScheme("http")
@@ -34,6 +67,65 @@ public class ApiEndpoints {
                 .toString();
     }
 
+    /**
+     *
+     * @param since Version of the list already known, or 0 to get the whole list along its version.
+     */
+    public static String getFileDeltaUri(PeerEntity peerEntity, long since) {
+        return new URIBuilder()
+                .setScheme("http")
+                .setHost(peerEntity.getIpAddress())
+                .setPort(peerEntity.getPort())
+                .setPath("/api/v1/files")
+                .addParameter("since", String.valueOf(since))
+                .toString();
+    }
+
+    public static String getSearchUri(PeerEntity peerEntity, String query, int limit) {
+        return new URIBuilder()
+                .setScheme("http")
+                .setHost(peerEntity.getIpAddress())
+                .setPort(peerEntity.getPort())
+                .setPath("/api/v1/search")
+                .addParameter("q", query)
+                .addParameter("limit", String.valueOf(limit))
+                .toString();
+    }
+
+    /**
+     *
+     * @param sort Order of the files, either name, size or modified.
+     * @param descending Whether the files are listed from the last one.
+     * @param limit Maximum number of files in the page.
+     */
+    public static String getFilePageUri(PeerEntity peerEntity, String sort, boolean descending, int limit) {
+        return new URIBuilder()
+                .setScheme("http")
+                .setHost(peerEntity.getIpAddress())
+                .setPort(peerEntity.getPort())
+                .setPath("/api/v1/files")
+                .addParameter("sort", sort)
+                .addParameter("order", descending ? "desc" : "asc")
+                .addParameter("limit", String.valueOf(limit))
+                .toString();
+    }
+
+    /**
+     *
+     * @param cursor Cursor returned along the previous page, which holds its order.
+     * @param limit Maximum number of files in the page.
+     */
+    public static String getFilePageUri(PeerEntity peerEntity, String cursor, int limit) {
+        return new URIBuilder()
+                .setScheme("http")
+                .setHost(peerEntity.getIpAddress())
+                .setPort(peerEntity.getPort())
+                .setPath("/api/v1/files")
+                .addParameter("cursor", cursor)
+                .addParameter("limit", String.valueOf(limit))
+                .toString();
+    }
+
     public static String getFileListUri(String host) {
         return new URIBuilder()
                 .setScheme("http")
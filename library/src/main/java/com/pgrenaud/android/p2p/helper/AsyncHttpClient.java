@@ -0,0 +1,883 @@
+package com.pgrenaud.android.p2p.helper;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import com.pgrenaud.android.p2p.helper.HttpClientWrapper.HttpResponseCallback;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * Minimal non-blocking HTTP/1.1 client, driving any number of GET requests from a few selector
+ * threads. Connections are kept alive and reused per host. Callbacks are invoked on a selector
+ * thread: they must return quickly and never block.
+ */
+public class AsyncHttpClient {
+
+    private static final int DEFAULT_SELECTOR_THREADS = 2;
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_LINE_SIZE = 8192;
+    private static final int MAX_IDLE_CONNECTIONS = 4; // Per host
+    private static final long SELECT_INTERVAL = 1000;
+    // Idle connections must be dropped before the server read timeout closes them
+    private static final long IDLE_TIMEOUT = NanoHTTPD.SOCKET_READ_TIMEOUT - 1000;
+    private static final String REQUEST_FORMAT = "GET %s HTTP/1.1\r\n" +
+            "Host: %s:%d\r\n" +
+            "Connection: keep-alive\r\n" +
+            "%s" +
+            "\r\n";
+    private static final String ACCEPT_GZIP = "Accept-Encoding: gzip\r\n";
+
+    private final Reactor[] reactors;
+    private final AtomicInteger next;
+
+    public AsyncHttpClient() {
+        this(DEFAULT_SELECTOR_THREADS);
+    }
+
+    public AsyncHttpClient(int selectorThreads) {
+        reactors = new Reactor[selectorThreads];
+        next = new AtomicInteger(0);
+
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor();
+
+            Thread thread = new Thread(reactors[i], "AsyncHttpClient Selector (#" + (i + 1) + ")");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Perform a request and buffer the whole response before handing it to the callback. The
+     * response is requested with gzip and decompressed before being handed to the callback.
+     *
+     * @param uri URI of the resource.
+     * @param readTimeout Maximum time in milliseconds to wait for data from the server.
+     * @param callback Callback invoked on a selector thread, exactly once unless the call is cancelled.
+     * @return Returns a call that can be cancelled.
+     */
+    public Call performHttpGet(String uri, int readTimeout, final HttpResponseCallback callback) {
+        return performHttpGet(uri, readTimeout, null, new ContentHttpResponseCallback() {
+            @Override
+            public void onHttpResponse(int status, String contentType, byte[] content) {
+                try {
+                    callback.onHttpResponse(status, new String(content, "UTF-8"));
+                } catch (IOException e) {
+                    callback.onException(e);
+                }
+            }
+            @Override
+            public void onException(Exception exception) {
+                callback.onException(exception);
+            }
+        });
+    }
+
+    /**
+     * Perform a request, negotiating the content type, and buffer the whole response before
+     * handing it to the callback. The response is requested with gzip and decompressed.
+     *
+     * @param uri URI of the resource.
+     * @param readTimeout Maximum time in milliseconds to wait for data from the server.
+     * @param accept Accept header of the request, or null.
+     * @param callback Callback invoked on a selector thread, exactly once unless the call is cancelled.
+     * @return Returns a call that can be cancelled.
+     */
+    public Call performHttpGet(String uri, int readTimeout, String accept, final ContentHttpResponseCallback callback) {
+        String headers = ACCEPT_GZIP + (accept != null ? "Accept: " + accept + "\r\n" : "");
+
+        return submit(uri, readTimeout, headers, new ResponseHandler() {
+            private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+            private int status;
+            private boolean gzip;
+            private String contentType;
+
+            @Override
+            public boolean onStatus(int status, boolean gzip, String contentType) {
+                this.status = status;
+                this.gzip = gzip;
+                this.contentType = contentType;
+
+                return true;
+            }
+            @Override
+            public boolean onContent(byte[] buffer, int offset, int length) {
+                content.write(buffer, offset, length);
+
+                return true;
+            }
+            @Override
+            public void onComplete() {
+                try {
+                    callback.onHttpResponse(status, contentType, gzip ? gunzip(content.toByteArray()) : content.toByteArray());
+                } catch (IOException e) {
+                    callback.onException(e);
+                }
+            }
+            @Override
+            public void onException(Exception exception) {
+                callback.onException(exception);
+            }
+        });
+    }
+
+    /**
+     * Perform a request on an endless line delimited stream, such as the event stream.
+     * Empty lines are heartbeats and are not forwarded to the callback.
+     *
+     * @param uri URI of the stream.
+     * @param readTimeout Maximum time in milliseconds to wait for a line (heartbeats included).
+     * @param callback Callback invoked on a selector thread, until the stream ends or the call is cancelled.
+     * @return Returns a call that can be cancelled.
+     */
+    public Call performStreamingHttpGet(String uri, int readTimeout, final StreamingHttpResponseCallback callback) {
+        return submit(uri, readTimeout, "", new ResponseHandler() {
+            private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+            @Override
+            public boolean onStatus(int status, boolean gzip, String contentType) {
+                return callback.onHttpResponse(status);
+            }
+            @Override
+            public boolean onContent(byte[] buffer, int offset, int length) {
+                for (int i = offset; i < offset + length; i++) {
+                    if (buffer[i] != '\n') {
+                        line.write(buffer[i]);
+                        continue;
+                    }
+
+                    String text;
+                    try {
+                        text = line.toString("UTF-8").trim();
+                    } catch (IOException e) {
+                        text = "";
+                    }
+                    line.reset();
+
+                    if (!text.isEmpty() && !callback.onHttpLine(text)) {
+                        return false;
+                    }
+                }
+
+                return true;
+            }
+            @Override
+            public void onComplete() {
+                callback.onHttpEnd();
+            }
+            @Override
+            public void onException(Exception exception) {
+                callback.onException(exception);
+            }
+        });
+    }
+
+    private static byte[] gunzip(byte[] bytes) throws IOException {
+        GZIPInputStream gis = new GZIPInputStream(new ByteArrayInputStream(bytes));
+        ByteArrayOutputStream content = new ByteArrayOutputStream(bytes.length * 4);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int count;
+
+        try {
+            while ((count = gis.read(buffer)) != -1) {
+                content.write(buffer, 0, count);
+            }
+        } finally {
+            gis.close();
+        }
+
+        return content.toByteArray();
+    }
+
+    /**
+     *
+     * @param headers Additional request header lines, each ending with CRLF.
+     */
+    private Call submit(String uri, int readTimeout, String headers, ResponseHandler handler) {
+        Reactor reactor = reactors[(next.getAndIncrement() & Integer.MAX_VALUE) % reactors.length];
+        Exchange exchange = new Exchange(reactor, readTimeout, handler);
+
+        try {
+            exchange.prepare(new URI(uri), headers);
+        } catch (URISyntaxException | IOException e) {
+            exchange.state = State.DONE;
+            handler.onException(e);
+
+            return new Call(exchange);
+        }
+
+        reactor.submit(exchange);
+
+        return new Call(exchange);
+    }
+
+    public void close() {
+        for (Reactor reactor : reactors) {
+            reactor.close();
+        }
+    }
+
+    /**
+     * Handle on a request in progress.
+     */
+    public static class Call {
+
+        private final Exchange exchange;
+
+        private Call(Exchange exchange) {
+            this.exchange = exchange;
+        }
+
+        /**
+         * Abort the request. No callback is invoked once this method returns, unless one
+         * was already running.
+         */
+        public void cancel() {
+            exchange.cancelled = true;
+            exchange.reactor.cancel(exchange);
+        }
+    }
+
+    public interface ContentHttpResponseCallback {
+        /**
+         *
+         * @param contentType Content type of the response, in lower case, or null.
+         * @param content Content of the response, decompressed.
+         */
+        void onHttpResponse(int status, String contentType, byte[] content);
+
+        void onException(Exception exception);
+    }
+
+    public interface StreamingHttpResponseCallback {
+        /**
+         *
+         * @return Return true to start reading the stream, or false to close it.
+         */
+        boolean onHttpResponse(int status);
+
+        /**
+         *
+         * @return Return true to keep reading the stream, or false to close it.
+         */
+        boolean onHttpLine(String line);
+
+        /**
+         *
+         * @param exception Can be either a IOException or a URISyntaxException.
+         */
+        void onException(Exception exception);
+
+        /**
+         * Called once the stream is over, whether the server ended it or a callback returned false.
+         * Not called if {@link #onException(Exception)} was called.
+         */
+        void onHttpEnd();
+    }
+
+    private interface ResponseHandler {
+        /**
+         *
+         * @param gzip Whether the content is compressed with gzip.
+         * @param contentType Content type of the response, in lower case, or null.
+         */
+        boolean onStatus(int status, boolean gzip, String contentType);
+
+        boolean onContent(byte[] buffer, int offset, int length);
+
+        void onComplete();
+
+        void onException(Exception exception);
+    }
+
+    private enum State {
+        CONNECTING, WRITING, STATUS, HEADERS, BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILERS, BODY_UNTIL_CLOSE, DONE,
+    }
+
+    private static class Exchange {
+
+        private final Reactor reactor;
+        private final int readTimeout;
+        private final ResponseHandler handler;
+        private final ByteArrayOutputStream line;
+
+        private String host;
+        private int port;
+        private ByteBuffer request;
+
+        private volatile boolean cancelled;
+        private State state;
+        private Connection connection;
+        private boolean reused;
+        private boolean received;
+        private boolean keepAlive;
+        private boolean chunked;
+        private boolean gzip;
+        private String contentType;
+        private int status;
+        private long contentLength;
+        private long remaining;
+        private long deadline;
+
+        private Exchange(Reactor reactor, int readTimeout, ResponseHandler handler) {
+            this.reactor = reactor;
+            this.readTimeout = readTimeout;
+            this.handler = handler;
+
+            line = new ByteArrayOutputStream();
+        }
+
+        private void prepare(URI uri, String headers) throws IOException {
+            host = uri.getHost();
+            port = uri.getPort() == -1 ? 80 : uri.getPort();
+
+            if (host == null || !"http".equals(uri.getScheme())) {
+                throw new IOException("Unsupported URI: " + uri);
+            }
+
+            String target = uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+            if (uri.getRawQuery() != null) {
+                target += "?" + uri.getRawQuery();
+            }
+
+            request = ByteBuffer.wrap(String.format(Locale.US, REQUEST_FORMAT, target, host, port, headers).getBytes("US-ASCII"));
+        }
+
+        private String getAddress() {
+            return host + ":" + port;
+        }
+
+        private void touch(long timeout) {
+            deadline = System.currentTimeMillis() + timeout;
+        }
+
+        /**
+         * Parse the response bytes in the buffer.
+         *
+         * @return Returns false if the handler asked to stop reading the response.
+         */
+        private boolean feed(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining() && state != State.DONE) {
+                switch (state) {
+                    case STATUS:
+                    case HEADERS:
+                    case CHUNK_SIZE:
+                    case CHUNK_END:
+                    case TRAILERS:
+                        String text = readLine(buffer);
+                        if (text != null && !handleLine(text)) {
+                            return false;
+                        }
+                        break;
+                    case BODY:
+                    case CHUNK_DATA:
+                    case BODY_UNTIL_CLOSE:
+                        int length = state == State.BODY_UNTIL_CLOSE ? buffer.remaining() : (int) Math.min(remaining, buffer.remaining());
+
+                        if (!handler.onContent(buffer.array(), buffer.arrayOffset() + buffer.position(), length)) {
+                            return false;
+                        }
+
+                        buffer.position(buffer.position() + length);
+                        remaining -= length;
+
+                        if (state == State.BODY && remaining == 0) {
+                            state = State.DONE;
+                        } else if (state == State.CHUNK_DATA && remaining == 0) {
+                            state = State.CHUNK_END;
+                        }
+                        break;
+                    default:
+                        throw new IOException("Unexpected data in state " + state);
+                }
+            }
+
+            return true;
+        }
+
+        private String readLine(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+
+                if (b == '\n') {
+                    String text = line.toString("US-ASCII").trim();
+                    line.reset();
+
+                    return text;
+                } else if (line.size() >= MAX_LINE_SIZE) {
+                    throw new IOException("Response line too long");
+                }
+
+                line.write(b);
+            }
+
+            return null;
+        }
+
+        private boolean handleLine(String text) throws IOException {
+            switch (state) {
+                case STATUS:
+                    String[] tokens = text.split(" ");
+                    if (tokens.length < 2 || !tokens[0].startsWith("HTTP/1.")) {
+                        throw new IOException("Invalid status line: " + text);
+                    }
+
+                    try {
+                        status = Integer.parseInt(tokens[1]);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Invalid status line: " + text);
+                    }
+
+                    keepAlive = tokens[0].equals("HTTP/1.1");
+                    state = State.HEADERS;
+                    chunked = false;
+                    gzip = false;
+                    contentType = null;
+                    contentLength = -1;
+                    return true;
+                case HEADERS:
+                    if (!text.isEmpty()) {
+                        handleHeader(text);
+                        return true;
+                    }
+
+                    if (status == 204 || status == 304) {
+                        contentLength = 0;
+                    }
+
+                    if (chunked) {
+                        state = State.CHUNK_SIZE;
+                    } else if (contentLength >= 0) {
+                        remaining = contentLength;
+                        state = contentLength == 0 ? State.DONE : State.BODY;
+                    } else {
+                        keepAlive = false;
+                        state = State.BODY_UNTIL_CLOSE;
+                    }
+
+                    return handler.onStatus(status, gzip, contentType);
+                case CHUNK_SIZE:
+                    int extension = text.indexOf(';');
+
+                    try {
+                        remaining = Long.parseLong(extension >= 0 ? text.substring(0, extension).trim() : text, 16);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Invalid chunk size: " + text);
+                    }
+
+                    state = remaining == 0 ? State.TRAILERS : State.CHUNK_DATA;
+                    return true;
+                case CHUNK_END:
+                    state = State.CHUNK_SIZE;
+                    return true;
+                case TRAILERS:
+                    if (text.isEmpty()) {
+                        state = State.DONE;
+                    }
+                    return true;
+                default:
+                    throw new IOException("Unexpected line in state " + state);
+            }
+        }
+
+        private void handleHeader(String text) throws IOException {
+            int separator = text.indexOf(':');
+
+            if (separator <= 0) {
+                return;
+            }
+
+            String name = text.substring(0, separator).trim().toLowerCase(Locale.US);
+            String value = text.substring(separator + 1).trim().toLowerCase(Locale.US);
+
+            if (name.equals("content-length")) {
+                try {
+                    contentLength = Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid content length: " + value);
+                }
+            } else if (name.equals("transfer-encoding")) {
+                chunked = value.contains("chunked");
+            } else if (name.equals("content-encoding")) {
+                gzip = value.contains("gzip");
+            } else if (name.equals("content-type")) {
+                contentType = value;
+            } else if (name.equals("connection")) {
+                if (value.contains("close")) {
+                    keepAlive = false;
+                } else if (value.contains("keep-alive")) {
+                    keepAlive = true;
+                }
+            }
+        }
+    }
+
+    private static class Connection {
+
+        private final SocketChannel channel;
+        private final String address;
+
+        private SelectionKey key;
+        private Exchange exchange;
+        private long idleDeadline;
+
+        private Connection(SocketChannel channel, String address) {
+            this.channel = channel;
+            this.address = address;
+        }
+    }
+
+    private static class Reactor implements Runnable {
+
+        private final Selector selector;
+        private final Queue<Runnable> tasks;
+        private final Set<Exchange> exchanges;
+        private final Map<String, Deque<Connection>> idle;
+        private final ByteBuffer buffer;
+
+        private volatile boolean open;
+
+        private Reactor() {
+            try {
+                selector = Selector.open();
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not open selector", e);
+            }
+
+            tasks = new ConcurrentLinkedQueue<>();
+            exchanges = new HashSet<>();
+            idle = new HashMap<>();
+            buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            open = true;
+        }
+
+        private void submit(final Exchange exchange) {
+            if (!open) {
+                exchange.state = State.DONE;
+                exchange.handler.onException(new IOException("Client closed"));
+                return;
+            }
+
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    start(exchange);
+                }
+            });
+        }
+
+        private void cancel(final Exchange exchange) {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (exchanges.remove(exchange) && exchange.connection != null) {
+                        closeConnection(exchange.connection);
+                    }
+
+                    exchange.state = State.DONE;
+                }
+            });
+        }
+
+        private void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (open) {
+                    selector.select(SELECT_INTERVAL);
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                    while (iterator.hasNext()) {
+                        SelectionKey key = iterator.next();
+                        iterator.remove();
+
+                        handle(key);
+                    }
+
+                    expire();
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                Log.e("AsyncHttpClient", "Selector failed", e);
+            } finally {
+                shutdown();
+            }
+        }
+
+        private void start(Exchange exchange) {
+            if (exchange.cancelled) {
+                return;
+            }
+
+            exchanges.add(exchange);
+
+            Deque<Connection> connections = idle.get(exchange.getAddress());
+            Connection connection = connections != null ? connections.pollFirst() : null;
+
+            try {
+                if (connection != null) {
+                    exchange.reused = true;
+
+                    attach(exchange, connection);
+                    write(exchange);
+                } else {
+                    SocketChannel channel = SocketChannel.open();
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+
+                    connection = new Connection(channel, exchange.getAddress());
+                    connection.key = channel.register(selector, 0, connection);
+                    attach(exchange, connection);
+
+                    if (channel.connect(new InetSocketAddress(exchange.host, exchange.port))) {
+                        write(exchange);
+                    } else {
+                        exchange.state = State.CONNECTING;
+                        exchange.touch(CONNECT_TIMEOUT);
+                        connection.key.interestOps(SelectionKey.OP_CONNECT);
+                    }
+                }
+            } catch (IOException e) {
+                fail(exchange, e);
+            }
+        }
+
+        private void attach(Exchange exchange, Connection connection) {
+            exchange.connection = connection;
+            exchange.request.rewind();
+            connection.exchange = exchange;
+        }
+
+        private void write(Exchange exchange) throws IOException {
+            Connection connection = exchange.connection;
+
+            exchange.state = State.WRITING;
+            exchange.touch(exchange.readTimeout);
+
+            connection.channel.write(exchange.request);
+
+            if (exchange.request.hasRemaining()) {
+                connection.key.interestOps(SelectionKey.OP_WRITE);
+            } else {
+                exchange.state = State.STATUS;
+                connection.key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        private void handle(SelectionKey key) {
+            Connection connection = (Connection) key.attachment();
+            Exchange exchange = connection.exchange;
+
+            if (!key.isValid()) {
+                return;
+            }
+
+            if (exchange == null) {
+                // Idle connections are only readable when the server closes them
+                closeConnection(connection);
+                return;
+            }
+
+            try {
+                if (key.isConnectable()) {
+                    connection.channel.finishConnect();
+                    write(exchange);
+                } else if (key.isWritable()) {
+                    write(exchange);
+                } else if (key.isReadable()) {
+                    read(exchange);
+                }
+            } catch (IOException e) {
+                fail(exchange, e);
+            } catch (RuntimeException e) {
+                Log.e("AsyncHttpClient", "Callback failed", e);
+
+                fail(exchange, new IOException(e.getMessage()));
+            }
+        }
+
+        private void read(Exchange exchange) throws IOException {
+            Connection connection = exchange.connection;
+
+            buffer.clear();
+            int count = connection.channel.read(buffer);
+
+            if (count == -1) {
+                if (exchange.state != State.BODY_UNTIL_CLOSE) {
+                    throw new EOFException("Connection closed before the end of the response");
+                }
+
+                complete(exchange);
+                return;
+            }
+
+            exchange.received = true;
+            exchange.touch(exchange.readTimeout);
+            buffer.flip();
+
+            if (!exchange.feed(buffer)) {
+                // The handler does not want the rest of the response
+                exchange.keepAlive = false;
+                complete(exchange);
+            } else if (exchange.state == State.DONE) {
+                complete(exchange);
+            }
+        }
+
+        private void complete(Exchange exchange) {
+            Connection connection = exchange.connection;
+            boolean reusable = exchange.keepAlive && exchange.state == State.DONE;
+
+            exchanges.remove(exchange);
+            exchange.state = State.DONE;
+            connection.exchange = null;
+
+            if (reusable) {
+                release(connection);
+            } else {
+                closeConnection(connection);
+            }
+
+            if (!exchange.cancelled) {
+                exchange.handler.onComplete();
+            }
+        }
+
+        private void fail(Exchange exchange, Exception exception) {
+            exchanges.remove(exchange);
+
+            if (exchange.connection != null) {
+                closeConnection(exchange.connection);
+                exchange.connection = null;
+            }
+
+            if (exchange.reused && !exchange.received && open) {
+                // The server closed the idle connection we picked, retry once on a new one
+                exchange.reused = false;
+                start(exchange);
+                return;
+            }
+
+            exchange.state = State.DONE;
+
+            if (!exchange.cancelled) {
+                try {
+                    exchange.handler.onException(exception);
+                } catch (RuntimeException e) {
+                    Log.e("AsyncHttpClient", "Callback failed", e);
+                }
+            }
+        }
+
+        private void release(Connection connection) {
+            Deque<Connection> connections = idle.get(connection.address);
+
+            if (connections == null) {
+                connections = new ArrayDeque<>();
+                idle.put(connection.address, connections);
+            }
+
+            if (connections.size() >= MAX_IDLE_CONNECTIONS) {
+                closeConnection(connection);
+                return;
+            }
+
+            connection.idleDeadline = System.currentTimeMillis() + IDLE_TIMEOUT;
+            connection.key.interestOps(SelectionKey.OP_READ);
+            connections.addFirst(connection);
+        }
+
+        private void closeConnection(Connection connection) {
+            Deque<Connection> connections = idle.get(connection.address);
+            if (connections != null) {
+                connections.remove(connection);
+            }
+
+            connection.exchange = null;
+
+            if (connection.key != null) {
+                connection.key.cancel();
+            }
+
+            try {
+                connection.channel.close();
+            } catch (IOException e) {
+                Log.d("AsyncHttpClient", "Could not close connection: " + e.getMessage());
+            }
+        }
+
+        private void expire() {
+            long now = System.currentTimeMillis();
+
+            for (Exchange exchange : exchanges.toArray(new Exchange[exchanges.size()])) {
+                if (exchange.deadline > 0 && now > exchange.deadline) {
+                    fail(exchange, new SocketTimeoutException("Timed out in state " + exchange.state));
+                }
+            }
+
+            for (Deque<Connection> connections : idle.values()) {
+                for (Connection connection : connections.toArray(new Connection[connections.size()])) {
+                    if (now > connection.idleDeadline) {
+                        closeConnection(connection);
+                    }
+                }
+            }
+        }
+
+        private void close() {
+            open = false;
+            selector.wakeup();
+        }
+
+        private void shutdown() {
+            for (Exchange exchange : exchanges.toArray(new Exchange[exchanges.size()])) {
+                fail(exchange, new IOException("Client closed"));
+            }
+
+            for (SelectionKey key : selector.keys().toArray(new SelectionKey[0])) {
+                closeConnection((Connection) key.attachment());
+            }
+
+            try {
+                selector.close();
+            } catch (IOException e) {
+                Log.d("AsyncHttpClient", "Could not close selector: " + e.getMessage());
+            }
+        }
+    }
+}
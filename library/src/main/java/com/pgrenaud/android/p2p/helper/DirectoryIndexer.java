@@ -0,0 +1,280 @@
+package com.pgrenaud.android.p2p.helper;
+
+import android.util.Log;
+
+import com.pgrenaud.android.p2p.entity.FileEntity;
+import com.pgrenaud.android.p2p.repository.FileRepository;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Index a directory tree into a {@link FileRepository} on a fork/join pool, with one task per
+ * directory. The files of a directory are added as soon as it is listed, so that they can be
+ * served before the end of the scan. Directories are identified by their canonical path, so that
+ * symbolic links never lead to the same directory twice within a scan.
+ *
+ * A scan reconciles the repository with the tree. Files already in the repository with the same
+ * size and last modification time are kept as is, and files under the root that were in the
+ * repository when the scan started but are no longer found are removed once it completes.
+ */
+public class DirectoryIndexer {
+
+    public static final int DEFAULT_MAX_DEPTH = 32;
+
+    private static final long PROGRESS_INTERVAL = 250; // Milliseconds between progress callbacks
+
+    private final FileRepository repository;
+    private final ForkJoinPool pool;
+
+    private final AtomicLong lastProgress;
+
+    private volatile int maxDepth = DEFAULT_MAX_DEPTH;
+    private volatile FileFilter fileFilter;
+    private volatile FileFilter directoryFilter;
+    private volatile IndexListener listener;
+    private volatile boolean cancelled;
+
+    public DirectoryIndexer(FileRepository repository) {
+        this(repository, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     *
+     * @param parallelism Maximum number of directories listed at once.
+     */
+    public DirectoryIndexer(FileRepository repository, int parallelism) {
+        this.repository = repository;
+
+        pool = new ForkJoinPool(parallelism);
+        lastProgress = new AtomicLong();
+    }
+
+    /**
+     *
+     * @param maxDepth Depth of the deepest directories indexed, 0 only indexing the files of the root.
+     */
+    public void setMaxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     *
+     * @param fileFilter Filter of the files to index, or null to index every file. Hidden files are never indexed.
+     */
+    public void setFileFilter(FileFilter fileFilter) {
+        this.fileFilter = fileFilter;
+    }
+
+    /**
+     *
+     * @param directoryFilter Filter of the directories to descend into, or null for all of them. Hidden directories are never indexed.
+     */
+    public void setDirectoryFilter(FileFilter directoryFilter) {
+        this.directoryFilter = directoryFilter;
+    }
+
+    public void setListener(IndexListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Index a directory tree and wait for the end of the scan.
+     *
+     * @return Returns the number of files added or updated by this scan.
+     */
+    public int index(File root) throws InterruptedException {
+        try {
+            return start(root).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Indexing failed", e.getCause());
+        }
+    }
+
+    /**
+     * Start indexing a directory tree in the background.
+     *
+     * @return Returns a task completing with the number of files added or updated by this scan.
+     */
+    public ForkJoinTask<Integer> start(final File root) {
+        return pool.submit(new RecursiveTask<Integer>() {
+            @Override
+            protected Integer compute() {
+                Scan scan = new Scan();
+                Set<UUID> previous = getIndexed(root);
+
+                int count = new DirectoryTask(scan, root, 0).invoke();
+
+                // A cancelled scan did not see every file
+                if (!cancelled) {
+                    previous.removeAll(scan.found);
+                    repository.removeAll(previous);
+                }
+
+                IndexListener listener = DirectoryIndexer.this.listener;
+                if (listener != null) {
+                    listener.onIndexFinished(scan.directoryCount.get(), scan.fileCount.get());
+                }
+
+                Log.d("DirectoryIndexer", "Indexed " + count + " files under " + root);
+
+                return count;
+            }
+        });
+    }
+
+    /**
+     * Stop the scans in progress, the files already indexed are kept.
+     */
+    public void shutdown() {
+        cancelled = true;
+
+        pool.shutdownNow();
+    }
+
+    /**
+     *
+     * @return Returns the files of the repository under a directory.
+     */
+    private Set<UUID> getIndexed(File directory) {
+        String prefix = directory.getAbsolutePath() + File.separator;
+        Set<UUID> indexed = new HashSet<>();
+
+        for (FileEntity fileEntity : repository.getAll()) {
+            File file = fileEntity.getFile();
+
+            if (file != null && file.getAbsolutePath().startsWith(prefix)) {
+                indexed.add(fileEntity.getUuid());
+            }
+        }
+
+        return indexed;
+    }
+
+    private void reportProgress(Scan scan) {
+        IndexListener listener = this.listener;
+        if (listener == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        long last = lastProgress.get();
+
+        // A single thread reports each interval
+        if (now - last >= PROGRESS_INTERVAL && lastProgress.compareAndSet(last, now)) {
+            listener.onProgress(scan.directoryCount.get(), scan.fileCount.get());
+        }
+    }
+
+    private static class Scan {
+        private final Set<String> visited = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        private final Set<UUID> found = Collections.newSetFromMap(new ConcurrentHashMap<UUID, Boolean>());
+        private final AtomicInteger directoryCount = new AtomicInteger();
+        private final AtomicInteger fileCount = new AtomicInteger();
+    }
+
+    private class DirectoryTask extends RecursiveTask<Integer> {
+        private static final long serialVersionUID = 1L;
+
+        private final Scan scan;
+        private final File directory;
+        private final int depth;
+
+        private DirectoryTask(Scan scan, File directory, int depth) {
+            this.scan = scan;
+            this.directory = directory;
+            this.depth = depth;
+        }
+
+        @Override
+        protected Integer compute() {
+            if (cancelled || !markVisited(directory)) {
+                return 0;
+            }
+
+            File[] entries = directory.listFiles();
+            if (entries == null) {
+                return 0; // Not a directory, or not readable
+            }
+
+            FileFilter fileFilter = DirectoryIndexer.this.fileFilter;
+            FileFilter directoryFilter = DirectoryIndexer.this.directoryFilter;
+            List<FileEntity> files = new ArrayList<>();
+            List<DirectoryTask> subtasks = new ArrayList<>();
+
+            for (File entry : entries) {
+                // Hidden only depends on the name, it does not cost a system call
+                if (entry.isHidden()) {
+                    continue;
+                }
+
+                if (entry.isDirectory()) {
+                    if (depth < maxDepth && (directoryFilter == null || directoryFilter.accept(entry))) {
+                        subtasks.add(new DirectoryTask(scan, entry, depth + 1));
+                    }
+                } else if (fileFilter == null || fileFilter.accept(entry)) {
+                    UUID uuid = FileEntity.generateUuid(entry);
+                    FileEntity known = repository.get(uuid);
+
+                    scan.found.add(uuid);
+
+                    if (known == null || known.getFile() == null || !known.getSize().equals(entry.length())
+                            || known.getLastModified() != entry.lastModified()) {
+                        files.add(new FileEntity(entry));
+                    }
+                }
+            }
+
+            // Serve the files of this directory right away, along a single change of the list
+            repository.addAll(files);
+
+            scan.directoryCount.incrementAndGet();
+            scan.fileCount.addAndGet(files.size());
+            reportProgress(scan);
+
+            int count = files.size();
+
+            for (DirectoryTask subtask : invokeAll(subtasks)) {
+                count += subtask.join();
+            }
+
+            return count;
+        }
+
+        private boolean markVisited(File directory) {
+            try {
+                return scan.visited.add(directory.getCanonicalPath());
+            } catch (IOException e) {
+                Log.w("DirectoryIndexer", "Skipping " + directory + ": " + e.getMessage());
+
+                return false;
+            }
+        }
+    }
+
+    public interface IndexListener {
+        /**
+         * Called from the indexing threads, at most a few times per second.
+         */
+        void onProgress(int directories, int files);
+
+        /**
+         * Called from an indexing thread once a scan is over.
+         */
+        void onIndexFinished(int directories, int files);
+    }
+}
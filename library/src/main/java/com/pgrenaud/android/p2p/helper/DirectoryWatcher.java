@@ -0,0 +1,462 @@
+package com.pgrenaud.android.p2p.helper;
+
+import android.os.FileObserver;
+import android.util.Log;
+
+import com.pgrenaud.android.p2p.entity.EventEntity;
+import com.pgrenaud.android.p2p.entity.FileEntity;
+import com.pgrenaud.android.p2p.repository.FileRepository;
+import com.pgrenaud.android.p2p.repository.QueueRepository;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keep a {@link FileRepository} in sync with a directory tree, once its initial content is indexed.
+ * Changes are reported by a {@link FileObserver} per directory, or found by polling the tree when
+ * an interval is set. They are applied once no other change happened for the debounce delay, as a
+ * single batch announced to the peers by a single DIRECTORY_CHANGE event. Only the changed files
+ * are read, so that copying many files into the tree does not cost a scan of the whole tree.
+ */
+public class DirectoryWatcher {
+
+    public static final long DEFAULT_DEBOUNCE_DELAY = 500; // Milliseconds without change before applying them
+
+    private static final long MAX_DEBOUNCE_DELAY = 5000; // Changes are applied at least this often during long bursts
+    private static final int OBSERVER_MASK = FileObserver.CREATE | FileObserver.CLOSE_WRITE
+            | FileObserver.MOVED_FROM | FileObserver.MOVED_TO | FileObserver.DELETE
+            | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+
+    private final FileRepository fileRepository;
+    private final QueueRepository queueRepository;
+    private final ScheduledThreadPoolExecutor executor; // Single thread applying the changes, in order
+
+    private final Set<File> pending; // Guarded by this
+    private final Map<String, DirectoryObserver> observers; // Watched directories by absolute path
+    private final Map<String, FileState> states; // Last known state of each file when polling, executor only
+
+    private volatile int maxDepth = DirectoryIndexer.DEFAULT_MAX_DEPTH;
+    private volatile long debounceDelay = DEFAULT_DEBOUNCE_DELAY;
+    private volatile long pollingInterval;
+    private volatile FileFilter fileFilter;
+
+    private File root;
+    private ScheduledFuture<?> flush; // Guarded by this
+    private long firstChange; // Guarded by this
+
+    public DirectoryWatcher(FileRepository fileRepository, QueueRepository queueRepository) {
+        this.fileRepository = fileRepository;
+        this.queueRepository = queueRepository;
+
+        pending = new LinkedHashSet<>();
+        observers = new ConcurrentHashMap<>();
+        states = new HashMap<>();
+
+        executor = new ScheduledThreadPoolExecutor(1);
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Use the same depth as the {@link DirectoryIndexer} of the initial content.
+     *
+     * @param maxDepth Depth of the deepest directories watched, 0 only watching the files of the root.
+     */
+    public void setMaxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     *
+     * @param debounceDelay Milliseconds without change before applying the pending ones.
+     */
+    public void setDebounceDelay(long debounceDelay) {
+        this.debounceDelay = debounceDelay;
+    }
+
+    /**
+     * Polling costs a listing of the whole tree at each interval, use it only where file
+     * observers do not work, such as some external storages.
+     *
+     * @param pollingInterval Milliseconds between two scans of the tree, or 0 to use file observers.
+     */
+    public void setPollingInterval(long pollingInterval) {
+        this.pollingInterval = pollingInterval;
+    }
+
+    /**
+     *
+     * @param fileFilter Filter of the files to index, or null to index every file. Hidden files are never indexed.
+     */
+    public void setFileFilter(FileFilter fileFilter) {
+        this.fileFilter = fileFilter;
+    }
+
+    public void start(final File root) {
+        this.root = root;
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (pollingInterval > 0) {
+                    // The first scan only records the current state of the tree
+                    poll(root, 0, new HashSet<String>(), states, null);
+
+                    executor.scheduleWithFixedDelay(new Runnable() {
+                        @Override
+                        public void run() {
+                            poll();
+                        }
+                    }, pollingInterval, pollingInterval, TimeUnit.MILLISECONDS);
+                } else {
+                    watch(root, 0, new HashSet<String>(), null);
+                }
+
+                Log.d("DirectoryWatcher", "Watching " + root);
+            }
+        });
+    }
+
+    public void stop() {
+        executor.shutdownNow();
+
+        for (DirectoryObserver observer : observers.values()) {
+            observer.stopWatching();
+        }
+        observers.clear();
+    }
+
+    private void onChange(File file) {
+        if (file.isHidden()) {
+            return;
+        }
+
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+
+            pending.add(file);
+
+            if (flush == null) {
+                firstChange = now;
+            } else if (now - firstChange >= MAX_DEBOUNCE_DELAY || !flush.cancel(false)) {
+                return; // The scheduled flush is due, or running, and will apply this change
+            }
+
+            long delay = Math.min(debounceDelay, firstChange + MAX_DEBOUNCE_DELAY - now);
+
+            flush = executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, Math.max(0, delay), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flush() {
+        List<File> changed;
+
+        synchronized (this) {
+            changed = new ArrayList<>(pending);
+            pending.clear();
+            flush = null;
+        }
+
+        Map<UUID, FileEntity> added = new LinkedHashMap<>();
+        List<UUID> removed = new ArrayList<>();
+
+        for (File file : changed) {
+            apply(file, added, removed);
+        }
+
+        if (added.isEmpty() && removed.isEmpty()) {
+            return;
+        }
+
+        fileRepository.removeAll(removed);
+        fileRepository.addAll(added.values());
+
+        EventEntity event = new EventEntity(EventEntity.Type.DIRECTORY_CHANGE);
+        event.getParams().setDirectoryVersion(fileRepository.getVersion());
+        queueRepository.putAll(event);
+
+        Log.d("DirectoryWatcher", "Applied " + added.size() + " added and " + removed.size() + " removed files");
+    }
+
+    private void apply(File file, Map<UUID, FileEntity> added, List<UUID> removed) {
+        String path = file.getAbsolutePath();
+
+        if (file.isFile()) {
+            if (isIndexed(file)) {
+                FileEntity fileEntity = new FileEntity(file);
+                added.put(fileEntity.getUuid(), fileEntity);
+            }
+        } else if (file.isDirectory()) {
+            int depth = getDepth(file);
+
+            if (observers.containsKey(path)) {
+                // Deleted or moved away, then recreated within the debounce delay, the observers
+                // still watch the previous directory whose files may be gone
+                removeAll(path, removed);
+                unwatch(path);
+            }
+
+            // Files copied before the directory was watched are only found by listing it
+            if (depth >= 0 && depth <= maxDepth) {
+                index(file, depth, new HashSet<String>(), added);
+            }
+        } else {
+            UUID uuid = FileEntity.generateUuid(file);
+
+            if (fileRepository.get(uuid) != null) {
+                removed.add(uuid);
+            } else if (observers.containsKey(path)) {
+                // A watched directory, along everything under it, other paths were never indexed
+                removeAll(path, removed);
+                unwatch(path);
+            }
+        }
+    }
+
+    /**
+     * Remove every indexed file under a directory. Files still there are added back by indexing it.
+     */
+    private void removeAll(String path, List<UUID> removed) {
+        String prefix = path + File.separator;
+
+        for (FileEntity fileEntity : fileRepository.getAll()) {
+            File indexed = fileEntity.getFile();
+
+            if (indexed != null && indexed.getAbsolutePath().startsWith(prefix)) {
+                removed.add(fileEntity.getUuid());
+            }
+        }
+    }
+
+    private void index(File directory, int depth, Set<String> ancestors, Map<UUID, FileEntity> added) {
+        if (pollingInterval <= 0) {
+            watch(directory, depth, ancestors, added);
+        } else {
+            poll(directory, depth, ancestors, states, added);
+        }
+    }
+
+    /**
+     * Start observing a directory and the directories under it.
+     *
+     * @param added Files found meanwhile, or null to only observe.
+     */
+    private void watch(File directory, int depth, Set<String> ancestors, Map<UUID, FileEntity> added) {
+        String canonical = enter(directory, ancestors);
+        if (canonical == null) {
+            return;
+        }
+
+        String path = directory.getAbsolutePath();
+
+        // Observers of the same path share a single inotify watch before API 29, stopping the
+        // previous one after starting the new one would remove the watch of both
+        DirectoryObserver previous = observers.remove(path);
+        if (previous != null) {
+            previous.stopWatching();
+        }
+
+        // Observe before listing, so that no file is missed in between
+        DirectoryObserver observer = new DirectoryObserver(directory);
+        observer.startWatching();
+
+        observers.put(path, observer);
+
+        File[] entries = directory.listFiles();
+
+        if (entries != null) {
+            for (File entry : entries) {
+                if (entry.isHidden()) {
+                    continue;
+                }
+
+                if (entry.isDirectory()) {
+                    if (depth < maxDepth) {
+                        watch(entry, depth + 1, ancestors, added);
+                    }
+                } else if (added != null && isIndexed(entry)) {
+                    FileEntity fileEntity = new FileEntity(entry);
+                    added.put(fileEntity.getUuid(), fileEntity);
+                }
+            }
+        }
+
+        ancestors.remove(canonical);
+    }
+
+    private void unwatch(String path) {
+        String prefix = path + File.separator;
+
+        for (Map.Entry<String, DirectoryObserver> entry : observers.entrySet()) {
+            if (entry.getKey().equals(path) || entry.getKey().startsWith(prefix)) {
+                entry.getValue().stopWatching();
+                observers.remove(entry.getKey());
+            }
+        }
+    }
+
+    private void poll() {
+        Map<String, FileState> current = new HashMap<>();
+
+        poll(root, 0, new HashSet<String>(), current, null);
+
+        for (Map.Entry<String, FileState> entry : current.entrySet()) {
+            if (!entry.getValue().equals(states.get(entry.getKey()))) {
+                onChange(new File(entry.getKey()));
+            }
+        }
+
+        for (String path : states.keySet()) {
+            if (!current.containsKey(path)) {
+                onChange(new File(path));
+            }
+        }
+
+        states.clear();
+        states.putAll(current);
+    }
+
+    /**
+     * Record the state of the files of a directory and of the directories under it.
+     *
+     * @param added Files found meanwhile, or null to only record their state.
+     */
+    private void poll(File directory, int depth, Set<String> ancestors, Map<String, FileState> states,
+                      Map<UUID, FileEntity> added) {
+        String canonical = enter(directory, ancestors);
+        if (canonical == null) {
+            return;
+        }
+
+        File[] entries = directory.listFiles();
+
+        if (entries != null) {
+            for (File entry : entries) {
+                if (entry.isHidden()) {
+                    continue;
+                }
+
+                if (entry.isDirectory()) {
+                    if (depth < maxDepth) {
+                        poll(entry, depth + 1, ancestors, states, added);
+                    }
+                } else {
+                    states.put(entry.getAbsolutePath(), new FileState(entry));
+
+                    if (added != null && isIndexed(entry)) {
+                        FileEntity fileEntity = new FileEntity(entry);
+                        added.put(fileEntity.getUuid(), fileEntity);
+                    }
+                }
+            }
+        }
+
+        ancestors.remove(canonical);
+    }
+
+    /**
+     *
+     * @return Returns the canonical path of the directory, or null if it is one of its own
+     * ancestors through a symbolic link.
+     */
+    private String enter(File directory, Set<String> ancestors) {
+        try {
+            String canonical = directory.getCanonicalPath();
+
+            return ancestors.add(canonical) ? canonical : null;
+        } catch (IOException e) {
+            Log.w("DirectoryWatcher", "Skipping " + directory + ": " + e.getMessage());
+
+            return null;
+        }
+    }
+
+    private boolean isIndexed(File file) {
+        FileFilter fileFilter = this.fileFilter;
+
+        return getDepth(file.getParentFile()) >= 0 && (fileFilter == null || fileFilter.accept(file));
+    }
+
+    /**
+     *
+     * @return Returns the number of directories between the root and a directory, or -1 if it is
+     * not under the root, or deeper than the maximum depth.
+     */
+    private int getDepth(File directory) {
+        String rootPath = root.getAbsolutePath();
+        int depth = 0;
+
+        for (File current = directory; current != null; current = current.getParentFile()) {
+            if (current.getAbsolutePath().equals(rootPath)) {
+                return depth <= maxDepth ? depth : -1;
+            }
+
+            depth++;
+        }
+
+        return -1;
+    }
+
+    private static class FileState {
+        private final long size;
+        private final long lastModified;
+
+        private FileState(File file) {
+            size = file.length();
+            lastModified = file.lastModified();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof FileState)) {
+                return false;
+            }
+
+            FileState state = (FileState) o;
+
+            return size == state.size && lastModified == state.lastModified;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (size ^ lastModified);
+        }
+    }
+
+    private class DirectoryObserver extends FileObserver {
+        private final File directory;
+
+        private DirectoryObserver(File directory) {
+            super(directory.getAbsolutePath(), OBSERVER_MASK);
+
+            this.directory = directory;
+        }
+
+        @Override
+        public void onEvent(int event, String path) {
+            if ((event & (FileObserver.DELETE_SELF | FileObserver.MOVE_SELF)) != 0) {
+                onChange(directory);
+            } else if ((event & FileObserver.ALL_EVENTS) != 0 && path != null) {
+                onChange(new File(directory, path));
+            }
+        }
+    }
+}
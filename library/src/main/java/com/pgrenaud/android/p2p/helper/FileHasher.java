@@ -0,0 +1,330 @@
+package com.pgrenaud.android.p2p.helper;
+
+import android.util.Log;
+
+import com.pgrenaud.android.p2p.entity.FileEntity;
+import com.pgrenaud.android.p2p.repository.HashRepository;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compute the content hash of the shared files in the background, on a few low priority threads
+ * reading each file once in a streaming fashion. Known hashes are served from the repository.
+ */
+public class FileHasher {
+
+    public static final String ALGORITHM = "SHA-256";
+    public static final int DEFAULT_THREADS = 2;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long KEEP_ALIVE = 30; // Seconds, threads are only kept while hashing
+    private static final long SAVE_DELAY = 30; // Seconds, the cache is saved at most this often
+    private static final long PUBLISH_DELAY = 1000; // Milliseconds, hashes are published at least this often during long runs
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final HashRepository repository;
+    private final ThreadPoolExecutor executor;
+    private final Map<String, List<FileEntity>> hashing; // Entities waiting for each path being hashed
+    private final List<FileEntity> hashed; // Guarded by hashing, entities hashed since the last publication
+    private final ScheduledThreadPoolExecutor saver;
+
+    private ScheduledFuture<?> save; // Guarded by saver
+    private long firstHashed; // Guarded by hashing
+    private volatile HashListener listener;
+
+    /**
+     *
+     * @param repository Cache of the known hashes, saved a while after the queue of files is drained.
+     * @param threads Maximum number of files hashed at once.
+     */
+    public FileHasher(HashRepository repository, int threads) {
+        this.repository = repository;
+
+        hashing = new HashMap<>();
+        hashed = new ArrayList<>();
+
+        executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "FileHasher-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+
+        saver = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "FileHasher Save");
+            }
+        });
+        saver.setKeepAliveTime(KEEP_ALIVE, TimeUnit.SECONDS);
+        saver.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Set the hash of a file if it is cached, without notifying the listener, so that the file can
+     * be added to the list along its hash.
+     *
+     * @return Returns false if the hash is not cached, the file must then be submitted.
+     */
+    public boolean fill(FileEntity fileEntity) {
+        String hash = repository.get(fileEntity.getFile());
+
+        if (hash == null) {
+            return false;
+        }
+
+        fileEntity.setHash(hash);
+        return true;
+    }
+
+    /**
+     * Set the hash of the file, right away if it is cached, or once computed otherwise. The
+     * listener is notified of the hashed files in batches, once the queue is drained or at least
+     * every second during long runs.
+     */
+    public void submit(final FileEntity fileEntity) {
+        final File file = fileEntity.getFile();
+
+        String hash = repository.get(file);
+        if (hash != null) {
+            fileEntity.setHash(hash);
+            publish(Collections.singletonList(fileEntity));
+            return;
+        }
+
+        final String path = file.getAbsolutePath();
+
+        synchronized (hashing) {
+            List<FileEntity> waiting = hashing.get(path);
+
+            if (waiting != null) {
+                waiting.add(fileEntity); // Already queued, share the result
+                return;
+            }
+
+            waiting = new ArrayList<>();
+            waiting.add(fileEntity);
+            hashing.put(path, waiting);
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                String hash = null;
+
+                try {
+                    long size = file.length();
+                    long lastModified = file.lastModified();
+
+                    hash = hash(file);
+
+                    // Drop the result if the file was modified while being read
+                    if (size == file.length() && lastModified == file.lastModified()) {
+                        repository.put(file, size, lastModified, hash);
+                    } else {
+                        hash = null;
+                    }
+                } catch (IOException e) {
+                    Log.e("FileHasher", "Failed to hash " + file, e);
+                }
+
+                List<FileEntity> waiting;
+
+                synchronized (hashing) {
+                    waiting = hashing.remove(path);
+                }
+
+                if (hash != null) {
+                    for (FileEntity fileEntity : waiting) {
+                        fileEntity.setHash(hash);
+                    }
+
+                    publish(waiting);
+                } else {
+                    publish(Collections.<FileEntity>emptyList());
+                }
+
+                if (executor.getQueue().isEmpty()) {
+                    scheduleSave();
+                }
+            }
+        });
+    }
+
+    /**
+     * Forget the hash of a file removed from the list, so that the cache does not grow with
+     * files that no longer exist.
+     */
+    public void remove(FileEntity fileEntity) {
+        File file = fileEntity.getFile();
+
+        if (file != null) {
+            repository.remove(file);
+
+            scheduleSave();
+        }
+    }
+
+    /**
+     * Save the cache once, a while after the first change, whatever the number of files hashed
+     * or removed meanwhile.
+     */
+    private void scheduleSave() {
+        synchronized (saver) {
+            if (save != null || saver.isShutdown()) {
+                return;
+            }
+
+            save = saver.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (saver) {
+                        save = null;
+                    }
+
+                    repository.save();
+                }
+            }, SAVE_DELAY, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Notify the listener of the files hashed so far once the queue is drained, or once the
+     * oldest of them waited for the publish delay, so that the list changes once per batch.
+     */
+    private void publish(List<FileEntity> fileEntities) {
+        List<FileEntity> published;
+
+        synchronized (hashing) {
+            long now = System.currentTimeMillis();
+
+            if (hashed.isEmpty()) {
+                firstHashed = now;
+            }
+
+            hashed.addAll(fileEntities);
+
+            if (hashed.isEmpty() || (!executor.getQueue().isEmpty() && now - firstHashed < PUBLISH_DELAY)) {
+                return;
+            }
+
+            published = new ArrayList<>(hashed);
+            hashed.clear();
+        }
+
+        HashListener listener = this.listener;
+        if (listener != null) {
+            listener.onFilesHashed(published);
+        }
+    }
+
+    public void setListener(HashListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     *
+     * @return Returns the number of files waiting to be hashed.
+     */
+    public int getPendingCount() {
+        synchronized (hashing) {
+            return hashing.size();
+        }
+    }
+
+    /**
+     * Stop hashing, and save the cache in the background, so that it can be called from the main thread.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+
+        synchronized (saver) {
+            if (save != null) {
+                save.cancel(false);
+                save = null;
+            }
+
+            saver.execute(new Runnable() {
+                @Override
+                public void run() {
+                    repository.save();
+                }
+            });
+            saver.shutdown();
+        }
+    }
+
+    public static String hash(File file) throws IOException {
+        InputStream is = new FileInputStream(file);
+
+        try {
+            MessageDigest digest = newDigest();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+
+            while ((count = is.read(buffer)) != -1) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new IOException("Interrupted while hashing " + file);
+                }
+
+                digest.update(buffer, 0, count);
+            }
+
+            return toHex(digest.digest());
+        } finally {
+            is.close();
+        }
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(ALGORITHM + " is always available", e);
+        }
+    }
+
+    public static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+
+        return new String(hex);
+    }
+
+    public interface HashListener {
+        /**
+         * Called from the hashing threads, or from the caller of {@link #submit} when the hash was cached,
+         * with the files hashed since the previous call.
+         */
+        void onFilesHashed(List<FileEntity> fileEntities);
+    }
+}
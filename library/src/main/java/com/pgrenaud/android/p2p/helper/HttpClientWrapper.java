@@ -5,7 +5,10 @@ import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 
+import cz.msebera.android.httpclient.Header;
 import cz.msebera.android.httpclient.HttpEntity;
+import cz.msebera.android.httpclient.HttpStatus;
+import cz.msebera.android.httpclient.client.config.RequestConfig;
 import cz.msebera.android.httpclient.client.methods.CloseableHttpResponse;
 import cz.msebera.android.httpclient.client.methods.HttpGet;
 import cz.msebera.android.httpclient.impl.client.CloseableHttpClient;
@@ -15,23 +18,70 @@ import cz.msebera.android.httpclient.util.EntityUtils;
 public class HttpClientWrapper {
 
     private final CloseableHttpClient client;
+    private final RequestConfig requestConfig;
+    private final HttpResponseCache responseCache;
+    private final boolean shared;
 
     public HttpClientWrapper() {
         client = HttpClients.createDefault();
+        requestConfig = RequestConfig.DEFAULT;
+        responseCache = new HttpResponseCache();
+        shared = false;
     }
 
+    /**
+     * Create a lightweight view of a shared pool. Closing the view leaves the pool open.
+     *
+     * @param pool Pool of connections, usually obtained from the service.
+     */
+    public HttpClientWrapper(HttpConnectionPool pool) {
+        client = pool.getClient();
+        requestConfig = pool.getRequestConfig();
+        responseCache = pool.getResponseCache();
+        shared = true;
+    }
+
+    /**
+     * Responses carrying an ETag, such as file lists, are cached and revalidated on the next
+     * request. A 304 Not Modified is then passed to the callback as a 200 with the cached content.
+     */
     public void performHttpGet(String uri, HttpResponseCallback callback) {
         try {
             HttpGet get = new HttpGet(new URI(uri));
+
+            HttpResponseCache.CachedResponse cached = responseCache.get(uri);
+            if (cached != null) {
+                get.setHeader("If-None-Match", cached.getETag());
+            }
+
             CloseableHttpResponse response = client.execute(get);
 
             int status = response.getStatusLine().getStatusCode();
 
             try {
                 HttpEntity entity = response.getEntity();
+
+                if (cached != null) {
+                    responseCache.recordRevalidation(status == HttpStatus.SC_NOT_MODIFIED);
+                }
+
+                if (status == HttpStatus.SC_NOT_MODIFIED && cached != null) {
+                    EntityUtils.consume(entity);
+
+                    callback.onHttpResponse(HttpStatus.SC_OK, cached.getContent());
+                    return;
+                }
+
                 String json = EntityUtils.toString(entity);
                 EntityUtils.consume(entity);
 
+                Header etag = response.getFirstHeader("ETag");
+                if (status == HttpStatus.SC_OK && etag != null) {
+                    responseCache.put(uri, etag.getValue(), json);
+                } else if (cached != null) {
+                    responseCache.remove(uri);
+                }
+
                 callback.onHttpResponse(status, json);
             } finally {
                 response.close();
@@ -42,8 +92,69 @@ public class HttpClientWrapper {
     }
 
     public void performBinaryHttpGet(String uri, BinaryHttpResponseCallback callback) {
+        try {
+            performBinaryHttpGet(new HttpGet(new URI(uri)), callback);
+        } catch (URISyntaxException e) {
+            callback.onException(e);
+        }
+    }
+
+    /**
+     * Perform a request on an inclusive range of bytes of a file. The callback only receives the
+     * content when the server answered with exactly the requested range, any other answer is
+     * reported as an exception.
+     *
+     * @param uri URI of the file.
+     * @param start Offset of the first byte.
+     * @param end Offset of the last byte.
+     * @param length Expected length of the whole file.
+     * @param validator Validator shared by every range of the file from this server, so that a
+     *                  file that changed is not mixed with its previous content.
+     * @param callback Callback receiving the content of the range.
+     */
+    public void performRangeHttpGet(String uri, long start, long end, long length, RangeValidator validator, BinaryHttpResponseCallback callback) {
         try {
             HttpGet get = new HttpGet(new URI(uri));
+            get.setHeader("Range", "bytes=" + start + "-" + end);
+
+            // A server holding a different version answers the whole file, which is rejected below
+            String expected = validator.get();
+            if (expected != null) {
+                get.setHeader("If-Range", expected);
+            }
+
+            CloseableHttpResponse response = client.execute(get);
+
+            try {
+                int status = response.getStatusLine().getStatusCode();
+                Header contentRange = response.getFirstHeader("Content-Range");
+                HttpEntity entity = response.getEntity();
+
+                if (status != HttpStatus.SC_PARTIAL_CONTENT) {
+                    throw new IOException("Unexpected status " + status + " for range " + start + "-" + end);
+                }
+                if (contentRange == null || !contentRange.getValue().equals("bytes " + start + "-" + end + "/" + length)) {
+                    throw new IOException("Unexpected content range " + contentRange + " for range " + start + "-" + end);
+                }
+                if (entity.getContentLength() != end - start + 1) {
+                    throw new IOException("Unexpected length " + entity.getContentLength() + " for range " + start + "-" + end);
+                }
+                if (!validator.check(response.getFirstHeader("ETag"), response.getFirstHeader("Last-Modified"))) {
+                    throw new IOException("File changed since the first range, before range " + start + "-" + end);
+                }
+
+                callback.onHttpResponse(status, entity.getContent());
+            } finally {
+                // Closing the response aborts the connection if the content was not read to its end
+                response.close();
+            }
+        } catch (IOException | URISyntaxException e) {
+            callback.onException(e);
+        }
+    }
+
+    private void performBinaryHttpGet(HttpGet get, BinaryHttpResponseCallback callback) {
+        try {
             CloseableHttpResponse response = client.execute(get);
 
             int status = response.getStatusLine().getStatusCode();
@@ -57,13 +168,50 @@ public class HttpClientWrapper {
             } finally {
                 response.close();
             }
-        } catch (IOException | URISyntaxException e) {
+        } catch (IOException e) {
             callback.onException(e);
         }
     }
 
     public void close() throws IOException {
-        client.close();
+        if (!shared) {
+            client.close();
+        }
+    }
+
+    /**
+     * Validator of a file downloaded in ranges: the strong ETag of the first response, or its
+     * Last-Modified date when the server sent no strong ETag. It is sent as If-Range along the
+     * next ranges, and the ranges answered for another validator are rejected.
+     */
+    public static class RangeValidator {
+        private String value; // Guarded by this
+
+        synchronized String get() {
+            return value;
+        }
+
+        /**
+         *
+         * @return Returns false if the response does not match the validator of the first response.
+         */
+        synchronized boolean check(Header etag, Header lastModified) {
+            String received = null;
+
+            if (etag != null && !etag.getValue().startsWith("W/")) {
+                received = etag.getValue();
+            } else if (lastModified != null) {
+                received = lastModified.getValue();
+            }
+
+            if (value == null) {
+                value = received;
+
+                return true;
+            }
+
+            return value.equals(received);
+        }
     }
 
     public interface HttpResponseCallback {
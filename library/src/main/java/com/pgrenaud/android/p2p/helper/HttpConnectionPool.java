@@ -0,0 +1,120 @@
+package com.pgrenaud.android.p2p.helper;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import cz.msebera.android.httpclient.HttpResponse;
+import cz.msebera.android.httpclient.client.config.RequestConfig;
+import cz.msebera.android.httpclient.config.SocketConfig;
+import cz.msebera.android.httpclient.conn.ConnectionKeepAliveStrategy;
+import cz.msebera.android.httpclient.impl.client.CloseableHttpClient;
+import cz.msebera.android.httpclient.impl.client.HttpClients;
+import cz.msebera.android.httpclient.impl.conn.PoolingHttpClientConnectionManager;
+import cz.msebera.android.httpclient.pool.PoolStats;
+import cz.msebera.android.httpclient.protocol.HttpContext;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * Pool of keep-alive connections shared by all the {@link HttpClientWrapper} views handed out
+ * by the service, so that requests to the same peer reuse the same few connections.
+ */
+public class HttpConnectionPool {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 64;
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 4;
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+    public static final int DEFAULT_SOCKET_TIMEOUT = 90000; // Longer than the server polling timeout
+
+    // Idle connections must be dropped before the server read timeout closes them
+    private static final long IDLE_TIMEOUT = NanoHTTPD.SOCKET_READ_TIMEOUT - 1000;
+    private static final int VALIDATE_AFTER_INACTIVITY = 1000;
+
+    private final PoolingHttpClientConnectionManager manager;
+    private final CloseableHttpClient client;
+    private final RequestConfig requestConfig;
+    private final HttpResponseCache responseCache;
+
+    public HttpConnectionPool() {
+        this(DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS_PER_ROUTE, DEFAULT_CONNECT_TIMEOUT, DEFAULT_SOCKET_TIMEOUT);
+    }
+
+    /**
+     *
+     * @param maxConnections Maximum number of connections, for all peers.
+     * @param maxConnectionsPerRoute Maximum number of connections to a single peer.
+     * @param connectTimeout Maximum time in milliseconds to open a connection, or to wait for one from the pool.
+     * @param socketTimeout Maximum time in milliseconds to wait for data from the server.
+     */
+    public HttpConnectionPool(int maxConnections, int maxConnectionsPerRoute, int connectTimeout, int socketTimeout) {
+        manager = new PoolingHttpClientConnectionManager();
+        manager.setMaxTotal(maxConnections);
+        manager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        manager.setDefaultSocketConfig(SocketConfig.custom()
+                .setSoTimeout(socketTimeout)
+                .setTcpNoDelay(true)
+                .build());
+        manager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY);
+
+        responseCache = new HttpResponseCache();
+
+        requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setConnectionRequestTimeout(connectTimeout)
+                .setSocketTimeout(socketTimeout)
+                .build();
+
+        client = HttpClients.custom()
+                .setConnectionManager(manager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+                    @Override
+                    public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                        return IDLE_TIMEOUT;
+                    }
+                })
+                .evictExpiredConnections()
+                .evictIdleConnections(IDLE_TIMEOUT, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * Internal API
+     */
+    public CloseableHttpClient getClient() {
+        return client;
+    }
+
+    /**
+     * Internal API
+     */
+    public RequestConfig getRequestConfig() {
+        return requestConfig;
+    }
+
+    /**
+     *
+     * @return Returns the cache of revalidated responses, such as file lists, shared by all the views.
+     */
+    public HttpResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    /**
+     *
+     * @return Returns the number of leased, idle and pending connections of the pool.
+     */
+    public PoolStats getStats() {
+        return manager.getTotalStats();
+    }
+
+    public void close() {
+        try {
+            client.close();
+        } catch (IOException e) {
+            Log.e("HttpConnectionPool", "Exception occurred while closing http client", e);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.pgrenaud.android.p2p.helper;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of the responses carrying an ETag, such as file lists, so that they are
+ * revalidated with If-None-Match instead of being downloaded again. The cache is bounded by the
+ * total size of the contents, as a single file list can weigh megabytes.
+ */
+public class HttpResponseCache {
+
+    public static final long DEFAULT_MAX_SIZE = 8 * 1024 * 1024;
+
+    private final Map<String, CachedResponse> entries;
+    private final long maxSize;
+
+    private long size; // Bytes held by the contents, as Java strings
+    private long hitCount;
+    private long missCount;
+
+    public HttpResponseCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     *
+     * @param maxSize Maximum number of bytes held by the cached contents, a larger content is never cached.
+     */
+    public HttpResponseCache(long maxSize) {
+        this.maxSize = maxSize;
+
+        // Least recently used entries are dropped first
+        entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    synchronized CachedResponse get(String uri) {
+        return entries.get(uri);
+    }
+
+    synchronized void put(String uri, String etag, String content) {
+        CachedResponse cached = new CachedResponse(etag, content);
+
+        remove(uri);
+
+        if (cached.getSize() > maxSize) {
+            return;
+        }
+
+        entries.put(uri, cached);
+        size += cached.getSize();
+
+        Iterator<CachedResponse> it = entries.values().iterator();
+        while (size > maxSize && it.hasNext()) {
+            size -= it.next().getSize();
+            it.remove();
+        }
+    }
+
+    synchronized void remove(String uri) {
+        CachedResponse cached = entries.remove(uri);
+
+        if (cached != null) {
+            size -= cached.getSize();
+        }
+    }
+
+    /**
+     *
+     * @return Returns the number of bytes held by the cached contents.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    synchronized void recordRevalidation(boolean notModified) {
+        if (notModified) {
+            hitCount++;
+        } else {
+            missCount++;
+        }
+    }
+
+    /**
+     *
+     * @return Returns the number of revalidations answered with 304 Not Modified.
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     *
+     * @return Returns the number of revalidations answered with a new content.
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    static class CachedResponse {
+        private final String etag;
+        private final String content;
+
+        private CachedResponse(String etag, String content) {
+            this.etag = etag;
+            this.content = content;
+        }
+
+        String getETag() {
+            return etag;
+        }
+
+        String getContent() {
+            return content;
+        }
+
+        long getSize() {
+            return content.length() * 2L; // UTF-16
+        }
+    }
+}
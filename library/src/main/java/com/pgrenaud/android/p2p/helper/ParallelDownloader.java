@@ -0,0 +1,501 @@
+package com.pgrenaud.android.p2p.helper;
+
+import android.util.Log;
+
+import com.pgrenaud.android.p2p.entity.FileEntity;
+import com.pgrenaud.android.p2p.entity.PeerEntity;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Download a single file from every peer sharing it at once. The file is split in chunks that
+ * the peers pull one at a time, so that faster peers naturally serve more of them. Once no chunk
+ * is left, an idle peer races the chunks still held by a much slower one, and the first copy
+ * wins. Chunks are written in place in a preallocated target file, and verified against the
+ * content hash of the file as they are written, whenever the peers published one.
+ */
+public class ParallelDownloader {
+
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+    public static final int DEFAULT_MAX_FAILURES = 3; // Per peer, before it is given up
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int SLOW_FACTOR = 2; // An in flight chunk is raced when it would take twice as long
+    private static final long WAIT_INTERVAL = 1000;
+    private static final int MAX_HELD_CHUNKS = 16; // Chunks kept in memory while waiting for their turn to be hashed
+
+    private final HttpClientWrapper client;
+    private final File target;
+    private final long size;
+    private final int maxFailures;
+    private final List<Source> sources;
+    private final List<Chunk> chunks;
+    private final LinkedList<Chunk> pending;
+    private final MessageDigest digest;
+    private final Map<Integer, ByteBuffer> held; // Chunks written ahead of the digest, null once read back is needed
+
+    private String expectedHash;
+    private int digested;
+
+    private DownloadListener listener;
+    private int remaining;
+    private long downloaded;
+    private boolean cancelled;
+    private IOException failure;
+
+    /**
+     *
+     * @param client Client used by every peer, usually a view of the pool from the service.
+     * @param target File where the download is written, replaced if it exists.
+     * @param size Length of the file, as shared by the peers.
+     */
+    public ParallelDownloader(HttpClientWrapper client, File target, long size) {
+        this(client, target, size, DEFAULT_CHUNK_SIZE, DEFAULT_MAX_FAILURES);
+    }
+
+    public ParallelDownloader(HttpClientWrapper client, File target, long size, int chunkSize, int maxFailures) {
+        this.client = client;
+        this.target = target;
+        this.size = size;
+        this.maxFailures = maxFailures;
+
+        sources = new ArrayList<>();
+        chunks = new ArrayList<>();
+        digest = FileHasher.newDigest();
+        held = new HashMap<>();
+
+        for (long start = 0; start < size; start += chunkSize) {
+            chunks.add(new Chunk(chunks.size(), start, Math.min(start + chunkSize, size) - 1));
+        }
+        pending = new LinkedList<>(chunks);
+        remaining = chunks.size();
+    }
+
+    /**
+     * Add a peer sharing the file. Must be called before {@link #download}.
+     *
+     * @param peerEntity Peer sharing the file.
+     * @param fileEntity File as listed by this peer, its uuid differs from one peer to another.
+     * @throws IllegalArgumentException If the peer published a hash that differs from the other peers.
+     */
+    public void addSource(PeerEntity peerEntity, FileEntity fileEntity) {
+        String hash = fileEntity.getHash();
+
+        if (hash != null) {
+            if (expectedHash != null && !expectedHash.equals(hash)) {
+                throw new IllegalArgumentException(peerEntity + " does not share the same content");
+            }
+
+            expectedHash = hash;
+        }
+
+        sources.add(new Source(peerEntity, ApiEndpoints.getFileDownloadUri(peerEntity, fileEntity)));
+    }
+
+    public void setListener(DownloadListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Download the file, blocking until every chunk was written or every peer failed.
+     *
+     * @throws IOException If the download failed, was cancelled or does not match the hash of
+     * the file, the target file is then deleted.
+     */
+    public void download() throws IOException {
+        if (sources.isEmpty()) {
+            throw new IOException("No peer to download from");
+        }
+
+        RandomAccessFile file = new RandomAccessFile(target, "rw");
+        ExecutorService executor = Executors.newFixedThreadPool(sources.size());
+        boolean complete = false;
+
+        try {
+            file.setLength(size);
+
+            final FileChannel channel = file.getChannel();
+
+            for (final Source source : sources) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Chunk chunk;
+
+                        while ((chunk = next(source)) != null) {
+                            fetch(source, chunk, channel);
+                        }
+                    }
+                });
+            }
+
+            synchronized (this) {
+                while (remaining > 0 && failure == null) {
+                    wait();
+                }
+            }
+
+            if (failure != null) {
+                throw failure;
+            }
+
+            if (expectedHash != null) {
+                String hash = FileHasher.toHex(digest.digest());
+
+                if (!expectedHash.equals(hash)) {
+                    throw new IOException("Downloaded content hash " + hash + " does not match " + expectedHash);
+                }
+            }
+
+            channel.force(false);
+
+            complete = true;
+        } catch (InterruptedException e) {
+            cancel();
+
+            throw new InterruptedIOException("Download interrupted");
+        } finally {
+            executor.shutdownNow();
+            file.close();
+
+            if (!complete) {
+                target.delete();
+            }
+        }
+    }
+
+    /**
+     * Abort the download. Chunks being transferred are dropped as soon as possible.
+     */
+    public synchronized void cancel() {
+        cancelled = true;
+
+        fail(new IOException("Download cancelled"));
+    }
+
+    private synchronized Chunk next(Source source) {
+        while (remaining > 0 && failure == null && source.isUsable()) {
+            Chunk chunk = pending.poll();
+
+            if (chunk == null) {
+                chunk = findSlowChunk(source);
+            }
+
+            if (chunk != null) {
+                chunk.assign(source);
+
+                return chunk;
+            }
+
+            try {
+                wait(WAIT_INTERVAL);
+            } catch (InterruptedException e) {
+                return null;
+            }
+        }
+
+        return null;
+    }
+
+    private Chunk findSlowChunk(Source source) {
+        long now = System.currentTimeMillis();
+
+        for (Source other : sources) {
+            Chunk chunk = other.current;
+
+            if (other == source || chunk == null || chunk.done || chunk.holders.size() > 1) {
+                continue;
+            }
+
+            // Race the chunk when this peer would fetch all of it before the other finishes
+            long expected = source.estimate(chunk.getLength());
+            if (expected >= 0 && expected * SLOW_FACTOR < other.estimateRemaining(chunk, now)) {
+                Log.d("ParallelDownloader", "Racing chunk " + chunk + " held by " + other);
+
+                return chunk;
+            }
+        }
+
+        return null;
+    }
+
+    private void fetch(final Source source, final Chunk chunk, final FileChannel channel) {
+        final long startedAt = System.currentTimeMillis();
+
+        client.performRangeHttpGet(source.uri, chunk.start, chunk.end, size, source.validator, new HttpClientWrapper.BinaryHttpResponseCallback() {
+            @Override
+            public void onHttpResponse(int status, InputStream is) {
+                // Buffer the whole chunk, so that a losing copy never reaches the target file
+                ByteBuffer buffer = ByteBuffer.allocate((int) chunk.getLength());
+                byte[] bytes = new byte[BUFFER_SIZE];
+
+                try {
+                    while (buffer.hasRemaining()) {
+                        if (chunk.done || !source.isUsable() || isCancelled()) {
+                            release(source, chunk);
+                            return;
+                        }
+
+                        int count = is.read(bytes, 0, Math.min(bytes.length, buffer.remaining()));
+                        if (count == -1) {
+                            throw new IOException("Premature end of chunk " + chunk);
+                        }
+
+                        buffer.put(bytes, 0, count);
+                    }
+
+                    buffer.flip();
+
+                    complete(source, chunk, buffer, channel, System.currentTimeMillis() - startedAt);
+                } catch (IOException e) {
+                    onException(e);
+                }
+            }
+
+            @Override
+            public void onException(Exception exception) {
+                Log.d("ParallelDownloader", "Failed to fetch chunk " + chunk + " from " + source + ": " + exception.getMessage());
+
+                retry(source, chunk);
+            }
+        });
+    }
+
+    private synchronized boolean isCancelled() {
+        return cancelled || failure != null;
+    }
+
+    private void complete(Source source, Chunk chunk, ByteBuffer buffer, FileChannel channel, long elapsed) {
+        synchronized (this) {
+            source.measure(chunk.getLength(), elapsed);
+
+            if (chunk.done) {
+                release(source, chunk);
+                return;
+            }
+
+            chunk.done = true;
+        }
+
+        // Positional writes are safe from several threads, and chunks never overlap
+        try {
+            long position = chunk.start;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+
+            if (expectedHash != null) {
+                digest(chunk, buffer, channel);
+            }
+        } catch (IOException e) {
+            // The chunk is already claimed, so failing to write it to the target is fatal
+            fail(e);
+            return;
+        }
+
+        DownloadListener listener;
+        long downloaded;
+
+        synchronized (this) {
+            release(source, chunk);
+
+            this.downloaded += chunk.getLength();
+            remaining--;
+
+            listener = this.listener;
+            downloaded = this.downloaded;
+
+            notifyAll();
+        }
+
+        if (listener != null) {
+            listener.onProgress(downloaded, size);
+        }
+    }
+
+    /**
+     * Feed the digest with the chunks in order. Chunks completed ahead of their turn are kept in
+     * memory, up to a limit past which they are read back from the target file instead.
+     */
+    private void digest(Chunk chunk, ByteBuffer buffer, FileChannel channel) throws IOException {
+        synchronized (digest) {
+            if (chunk.index != digested) {
+                held.put(chunk.index, held.size() < MAX_HELD_CHUNKS ? buffer : null);
+                return;
+            }
+
+            buffer.rewind();
+            digest.update(buffer);
+            digested++;
+
+            while (held.containsKey(digested)) {
+                ByteBuffer next = held.remove(digested);
+
+                if (next == null) {
+                    next = readBack(chunks.get(digested), channel);
+                }
+
+                next.rewind();
+                digest.update(next);
+                digested++;
+            }
+        }
+    }
+
+    private ByteBuffer readBack(Chunk chunk, FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) chunk.getLength());
+
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, chunk.start + buffer.position()) == -1) {
+                throw new IOException("Target file truncated at chunk " + chunk);
+            }
+        }
+
+        return buffer;
+    }
+
+    private synchronized void retry(Source source, Chunk chunk) {
+        release(source, chunk);
+
+        if (++source.failures >= maxFailures) {
+            Log.d("ParallelDownloader", "Giving up on " + source);
+        }
+
+        if (!chunk.done && chunk.holders.isEmpty()) {
+            pending.addFirst(chunk);
+        }
+
+        // The download fails once no peer is left to fetch the chunks
+        boolean usable = false;
+        for (Source other : sources) {
+            usable |= other.isUsable();
+        }
+        if (!usable && remaining > 0) {
+            fail(new IOException("Every peer failed, " + remaining + " chunks left"));
+        }
+
+        notifyAll();
+    }
+
+    private synchronized void release(Source source, Chunk chunk) {
+        chunk.holders.remove(source);
+
+        if (source.current == chunk) {
+            source.current = null;
+        }
+    }
+
+    private synchronized void fail(IOException exception) {
+        if (failure == null) {
+            failure = exception;
+        }
+
+        notifyAll();
+    }
+
+    private class Source {
+        private final PeerEntity peerEntity;
+        private final String uri;
+        private final HttpClientWrapper.RangeValidator validator; // Captured from the first chunk of this peer
+
+        private Chunk current;
+        private long startedAt;
+        private int failures;
+        private double throughput = -1; // Bytes per millisecond, smoothed
+
+        private Source(PeerEntity peerEntity, String uri) {
+            this.peerEntity = peerEntity;
+            this.uri = uri;
+
+            validator = new HttpClientWrapper.RangeValidator();
+        }
+
+        private boolean isUsable() {
+            return failures < maxFailures;
+        }
+
+        private void measure(long bytes, long elapsed) {
+            double sample = (double) bytes / Math.max(elapsed, 1);
+
+            throughput = throughput < 0 ? sample : (throughput + sample) / 2;
+        }
+
+        /**
+         *
+         * @return Returns the time in milliseconds to fetch the bytes, or -1 if unknown yet.
+         */
+        private long estimate(long bytes) {
+            return throughput < 0 ? -1 : (long) (bytes / throughput);
+        }
+
+        private long estimateRemaining(Chunk chunk, long now) {
+            long elapsed = now - startedAt;
+
+            if (throughput < 0) {
+                // Nothing measured yet, assume the chunk is halfway through
+                return elapsed;
+            }
+
+            return Math.max(estimate(chunk.getLength()) - elapsed, 0);
+        }
+
+        @Override
+        public String toString() {
+            return peerEntity.toString();
+        }
+    }
+
+    private class Chunk {
+        private final int index;
+        private final long start;
+        private final long end;
+        private final Set<Source> holders = new HashSet<>();
+
+        private volatile boolean done;
+
+        private Chunk(int index, long start, long end) {
+            this.index = index;
+            this.start = start;
+            this.end = end;
+        }
+
+        private void assign(Source source) {
+            holders.add(source);
+
+            source.current = this;
+            source.startedAt = System.currentTimeMillis();
+        }
+
+        private long getLength() {
+            return end - start + 1;
+        }
+
+        @Override
+        public String toString() {
+            return start + "-" + end;
+        }
+    }
+
+    public interface DownloadListener {
+        /**
+         * Called from the download threads each time a chunk was written.
+         */
+        void onProgress(long downloaded, long total);
+    }
+}
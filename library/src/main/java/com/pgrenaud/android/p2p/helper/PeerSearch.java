@@ -0,0 +1,353 @@
+package com.pgrenaud.android.p2p.helper;
+
+import android.util.Log;
+
+import com.google.gson.JsonSyntaxException;
+import com.pgrenaud.android.p2p.entity.FileEntity;
+import com.pgrenaud.android.p2p.entity.PeerEntity;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Search the files of every online peer at once, through their search endpoint. Results are
+ * handed over as each peer answers, merged with the answers of the other peers, so that a file
+ * shared by several peers with the same hash is a single result listing all of them. Peers that
+ * did not answer by the deadline are given up.
+ */
+public class PeerSearch {
+
+    public static final long DEFAULT_DEADLINE = 3000;
+
+    private static final ScheduledThreadPoolExecutor DEADLINES = createScheduler();
+    private static final Comparator<SearchResult> RESULT_COMPARATOR = new Comparator<SearchResult>() {
+        @Override
+        public int compare(SearchResult a, SearchResult b) {
+            int sources = b.getSourceCount() - a.getSourceCount();
+            if (sources != 0) {
+                return sources;
+            }
+
+            return a.getName().compareTo(b.getName());
+        }
+    };
+
+    private final AsyncHttpClient client;
+    private final Set<PeerEntity> pending; // Guarded by this, peers that did not answer yet
+    private final Map<PeerEntity, AsyncHttpClient.Call> calls; // Guarded by this, calls still in flight
+    private final Map<String, SearchResult> results; // Guarded by this
+
+    private volatile SearchListener listener;
+    private ScheduledFuture<?> deadline; // Guarded by this
+    private boolean finished; // Guarded by this
+    private int delivering; // Guarded by this, answers being handed to the listener
+    private boolean notified; // Guarded by this, whether the listener was told the search is over
+
+    /**
+     *
+     * @param client Client shared by the peers, usually the one of the {@link com.pgrenaud.android.p2p.peering.PeerHive}.
+     */
+    public PeerSearch(AsyncHttpClient client) {
+        this.client = client;
+
+        pending = new LinkedHashSet<>();
+        calls = new HashMap<>();
+        results = new LinkedHashMap<>();
+    }
+
+    private static ScheduledThreadPoolExecutor createScheduler() {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "PeerSearch Deadlines");
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+        scheduler.setRemoveOnCancelPolicy(true);
+
+        return scheduler;
+    }
+
+    public void setListener(SearchListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Send the query to every online peer, without waiting for their answers.
+     *
+     * @param peerEntities Peers to query, the offline ones are skipped.
+     * @param query Words to look for in the names of the files.
+     * @param limit Maximum number of files returned by each peer.
+     * @param deadline Milliseconds after which the search is over, whether every peer answered or not.
+     */
+    public void start(Collection<PeerEntity> peerEntities, String query, int limit, long deadline) {
+        List<PeerEntity> queried;
+
+        synchronized (this) {
+            // Every peer is pending before the first call, as a call may fail before returning
+            for (PeerEntity peerEntity : peerEntities) {
+                if (peerEntity.isOnline()) {
+                    pending.add(peerEntity);
+                }
+            }
+
+            queried = new ArrayList<>(pending);
+
+            if (!queried.isEmpty()) {
+                this.deadline = DEADLINES.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        finish();
+                    }
+                }, deadline, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        if (queried.isEmpty()) {
+            finish();
+            return;
+        }
+
+        // The calls are made without holding the lock, as a failed call answers right away
+        for (final PeerEntity peerEntity : queried) {
+            String uri = ApiEndpoints.getSearchUri(peerEntity, query, limit);
+
+            AsyncHttpClient.Call call = client.performHttpGet(uri, (int) deadline, new HttpClientWrapper.HttpResponseCallback() {
+                @Override
+                public void onHttpResponse(int status, String content) {
+                    List<FileEntity> fileEntities = Collections.emptyList();
+
+                    if (status == 200) {
+                        try {
+                            fileEntities = FileEntity.decodeAll(content);
+                        } catch (JsonSyntaxException e) {
+                            Log.e("PeerSearch", "Invalid results from " + peerEntity, e);
+                        }
+                    } else {
+                        // Peers without the search endpoint answer with an error
+                        Log.d("PeerSearch", "No results from " + peerEntity + ": status " + status);
+                    }
+
+                    onResults(peerEntity, fileEntities);
+                }
+
+                @Override
+                public void onException(Exception exception) {
+                    Log.d("PeerSearch", "No results from " + peerEntity + ": " + exception.getMessage());
+
+                    onResults(peerEntity, Collections.<FileEntity>emptyList());
+                }
+            });
+
+            synchronized (this) {
+                // Only keep the calls still in flight, the peer may already have answered
+                if (pending.contains(peerEntity)) {
+                    calls.put(peerEntity, call);
+                    continue;
+                }
+
+                if (!finished) {
+                    continue;
+                }
+            }
+
+            // Given up meanwhile, the remaining peers are not queried
+            call.cancel();
+            break;
+        }
+    }
+
+    /**
+     * Give up the peers that did not answer yet, the listener is then told the search is over.
+     */
+    public void cancel() {
+        finish();
+    }
+
+    private void onResults(PeerEntity peerEntity, List<FileEntity> fileEntities) {
+        List<SearchResult> merged;
+
+        synchronized (this) {
+            if (finished || !pending.remove(peerEntity)) {
+                return;
+            }
+
+            calls.remove(peerEntity);
+
+            merged = new ArrayList<>(fileEntities.size());
+
+            for (FileEntity fileEntity : fileEntities) {
+                // Without a hash, files of different peers can not be told the same, and would be
+                // downloaded as one from unverified sources
+                String key = fileEntity.getHash() != null
+                        ? fileEntity.getHash()
+                        : peerEntity.getUUID() + "/" + fileEntity.getUuid();
+
+                SearchResult result = results.get(key);
+
+                if (result == null) {
+                    result = new SearchResult(fileEntity);
+                    results.put(key, result);
+                }
+
+                result.addSource(peerEntity, fileEntity);
+                merged.add(result);
+            }
+
+            // The search is only told finished once these results are handed over
+            delivering++;
+
+            if (pending.isEmpty()) {
+                stop();
+            }
+        }
+
+        SearchListener listener = this.listener;
+        if (listener != null && !merged.isEmpty()) {
+            listener.onResults(peerEntity, merged);
+        }
+
+        List<SearchResult> sorted;
+
+        synchronized (this) {
+            delivering--;
+
+            sorted = takeFinalResults();
+        }
+
+        notifyFinished(sorted);
+    }
+
+    private void finish() {
+        List<SearchResult> sorted;
+
+        synchronized (this) {
+            stop();
+
+            sorted = takeFinalResults();
+        }
+
+        notifyFinished(sorted);
+    }
+
+    /**
+     * Give up the peers that did not answer yet.
+     */
+    private synchronized void stop() {
+        if (finished) {
+            return;
+        }
+
+        finished = true;
+
+        for (AsyncHttpClient.Call call : calls.values()) {
+            call.cancel();
+        }
+        calls.clear();
+        pending.clear();
+
+        if (deadline != null) {
+            deadline.cancel(false);
+        }
+    }
+
+    /**
+     *
+     * @return Returns every file found, once the search is finished and every result handed over,
+     * or null if the listener must not be told yet, or was already told.
+     */
+    private synchronized List<SearchResult> takeFinalResults() {
+        if (!finished || delivering > 0 || notified) {
+            return null;
+        }
+
+        notified = true;
+
+        List<SearchResult> sorted = new ArrayList<>(results.values());
+        Collections.sort(sorted, RESULT_COMPARATOR);
+
+        return sorted;
+    }
+
+    private void notifyFinished(List<SearchResult> sorted) {
+        SearchListener listener = this.listener;
+        if (listener != null && sorted != null) {
+            listener.onSearchFinished(sorted);
+        }
+    }
+
+    /**
+     * A file found on one or more peers. Files are considered the same when they share the same
+     * hash. A file whose hash was not published yet is a result of its own, with a single source.
+     */
+    public static class SearchResult {
+        private final FileEntity fileEntity;
+        private final Map<PeerEntity, FileEntity> sources;
+
+        private SearchResult(FileEntity fileEntity) {
+            this.fileEntity = fileEntity;
+
+            sources = new LinkedHashMap<>();
+        }
+
+        private synchronized void addSource(PeerEntity peerEntity, FileEntity fileEntity) {
+            sources.put(peerEntity, fileEntity);
+        }
+
+        public String getName() {
+            return fileEntity.getName();
+        }
+
+        public Long getSize() {
+            return fileEntity.getSize();
+        }
+
+        public String getHash() {
+            return fileEntity.getHash();
+        }
+
+        /**
+         * Use each entry as a source of a {@link ParallelDownloader}.
+         *
+         * @return Returns the file as listed by each peer sharing it, its uuid differs from one peer to another.
+         */
+        public synchronized Map<PeerEntity, FileEntity> getSources() {
+            return new LinkedHashMap<>(sources);
+        }
+
+        public synchronized int getSourceCount() {
+            return sources.size();
+        }
+    }
+
+    public interface SearchListener {
+        /**
+         * Called from a network thread each time a peer answers with files, which must not block.
+         *
+         * @param results Files found on this peer, along the other peers already known to share them.
+         */
+        void onResults(PeerEntity peerEntity, List<SearchResult> results);
+
+        /**
+         * Called once, when every peer answered, the deadline passed or the search was cancelled,
+         * after every call to {@link #onResults} returned.
+         *
+         * @param results Every file found, those shared by the most peers first.
+         */
+        void onSearchFinished(List<SearchResult> results);
+    }
+}
@@ -0,0 +1,108 @@
+package com.pgrenaud.android.p2p.peering;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.pgrenaud.android.p2p.entity.BinaryCodec;
+import com.pgrenaud.android.p2p.entity.EventEntity;
+
+/**
+ * Write the events of a peer queue to the current link of the peer as they are published,
+ * pinging the link when idle. There is a single pump per peer, so that the link can be replaced
+ * without two pumps competing for the same queue.
+ */
+public class EventPump implements Runnable {
+
+    private static final int MAX_EVENTS_PER_MESSAGE = 100;
+
+    private final PeerHive hive;
+    private final UUID uuid;
+    private final BlockingQueue<EventEntity> queue;
+    private final long pingInterval;
+
+    public EventPump(PeerHive hive, UUID uuid, BlockingQueue<EventEntity> queue, long pingInterval) {
+        this.hive = hive;
+        this.uuid = uuid;
+        this.queue = queue;
+        this.pingInterval = pingInterval;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (hive.getLink(uuid) != null) {
+                EventEntity event = queue.poll(pingInterval, TimeUnit.MILLISECONDS);
+
+                // The link may have been replaced or closed while waiting
+                PeerLink link = hive.getLink(uuid);
+
+                if (link == null) {
+                    if (event != null) {
+                        requeue(Collections.singletonList(event));
+                    }
+
+                    break;
+                }
+
+                if (event == null) {
+                    try {
+                        link.ping();
+                    } catch (IOException e) {
+                        Log.d("EventPump", "Link of peer " + uuid + " closed while pinging: " + e.getMessage());
+
+                        link.close();
+                    }
+
+                    continue;
+                }
+
+                List<EventEntity> events = new ArrayList<>();
+                events.add(event);
+                queue.drainTo(events, MAX_EVENTS_PER_MESSAGE - 1);
+
+                try {
+                    if (link.isBinary()) {
+                        link.send(BinaryCodec.encodeEvents(events));
+                    } else {
+                        link.send(EventEntity.encodeAll(events));
+                    }
+                } catch (IOException e) {
+                    Log.d("EventPump", "Link of peer " + uuid + " closed while sending: " + e.getMessage());
+
+                    // The events are left for the next link, or for polling
+                    requeue(events);
+
+                    link.close();
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.d("EventPump", "Pump of peer " + uuid + " interrupted");
+        } finally {
+            hive.releasePump(uuid, this);
+        }
+    }
+
+    /**
+     * Put unsent events back at the head of the queue, ahead of the events published meanwhile.
+     */
+    private void requeue(List<EventEntity> events) {
+        if (queue instanceof BlockingDeque) {
+            BlockingDeque<EventEntity> deque = (BlockingDeque<EventEntity>) queue;
+
+            for (int i = events.size() - 1; i >= 0; i--) {
+                deque.offerFirst(events.get(i));
+            }
+        } else {
+            // Only queues provided by the application may not be a deque, order can not be kept
+            queue.addAll(events);
+        }
+    }
+}
@@ -2,23 +2,60 @@ package com.pgrenaud.android.p2p.peering;
 
 import android.util.Log;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import com.pgrenaud.android.p2p.entity.PeerEntity;
+import com.pgrenaud.android.p2p.helper.AsyncHttpClient;
 import com.pgrenaud.android.p2p.repository.PeerRepository;
 import com.pgrenaud.android.p2p.service.PeerService;
 
+import fi.iki.elonen.NanoHTTPD;
+
 public class PeerHive {
 
-    private static final int POOL_SIZE = 32;
+    // Links must see traffic before the server socket read timeout expires
+    private static final long LINK_PING_INTERVAL = NanoHTTPD.SOCKET_READ_TIMEOUT / 2;
+    private static final long LINK_RETIRE_DELAY = NanoHTTPD.SOCKET_READ_TIMEOUT;
+    private static final long RECONNECT_INITIAL_DELAY = 1000;
+    private static final long RECONNECT_MAX_DELAY = 300000;
+    private static final int MAX_PROBES = 8;
+    // Each socket link holds a pump thread, and a reader thread when opened by this peer. Peers
+    // beyond this limit exchange events over the stream transport, driven by the selector threads.
+    private static final int MAX_LINKS = 32;
+    private static final int MAX_LINK_THREADS = MAX_LINKS * 2 + 16; // Along links being opened or retired
+    private static final int LISTENER_THREADS = 2;
 
-    private final ExecutorService pool;
+    private final AsyncHttpClient client;
+    private final ThreadPoolExecutor linkPool;
+    private final ThreadPoolExecutor listenerPool;
+    private final ScheduledExecutorService scheduler;
     private final ConcurrentHashMap<UUID, PeerWorker> workers;
+    private final ConcurrentHashMap<UUID, PeerLink> links;
+    private final ConcurrentHashMap<UUID, EventPump> pumps;
+    private final ConcurrentHashMap<UUID, Integer> attempts;
+    private final ConcurrentHashMap<UUID, ScheduledFuture<?>> reconnects;
+    private final ConcurrentHashMap<UUID, Notifications> notifications;
+    private final Set<UUID> probing;
+    private final Semaphore probes;
+    private final Random random;
     private final PeerService service;
     private final PeerRepository peers;
 
@@ -26,28 +63,52 @@ public class PeerHive {
         this.service = service;
         this.peers = peers;
 
-        pool = Executors.newFixedThreadPool(POOL_SIZE);
+        client = new AsyncHttpClient();
+        // No backlog: a link that can not get a thread right away is not opened
+        linkPool = new ThreadPoolExecutor(0, MAX_LINK_THREADS, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+        listenerPool = new ThreadPoolExecutor(LISTENER_THREADS, LISTENER_THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        listenerPool.allowCoreThreadTimeOut(true);
+        scheduler = Executors.newSingleThreadScheduledExecutor();
         workers = new ConcurrentHashMap<>();
+        links = new ConcurrentHashMap<>();
+        pumps = new ConcurrentHashMap<>();
+        attempts = new ConcurrentHashMap<>();
+        reconnects = new ConcurrentHashMap<>();
+        notifications = new ConcurrentHashMap<>();
+        probing = Collections.newSetFromMap(new ConcurrentHashMap<UUID, Boolean>());
+        probes = new Semaphore(MAX_PROBES);
+        random = new Random();
     }
 
     /**
-     * Start worker for specified PeerEntity if not already started.
+     * Start worker for specified PeerEntity if not already started. Safe to call concurrently,
+     * at most one active worker exists per peer. Cheap when the worker is already active.
      *
      * @param peerEntity PeerEntity associated with the worker.
      */
     public void spawnWorker(PeerEntity peerEntity) {
-        PeerWorker worker = workers.get(peerEntity.getUUID());
+        UUID uuid = peerEntity.getUUID();
 
-        if (worker == null || !worker.isRunning()) {
-            try {
-                worker = new PeerWorker(this, peerEntity);
+        while (true) {
+            PeerWorker current = workers.get(uuid);
+
+            if (current != null && current.isActive()) {
+                return; // Already started, or being started by another thread
+            }
 
-                workers.put(peerEntity.getUUID(), worker);
-                pool.submit(worker);
+            PeerWorker worker = new PeerWorker(this, peerEntity);
+
+            // Only the thread winning the swap starts its worker, a draining worker may be replaced
+            boolean swapped = current == null
+                    ? workers.putIfAbsent(uuid, worker) == null
+                    : workers.replace(uuid, current, worker);
+
+            if (swapped) {
+                worker.start();
 
                 Log.d("PeerHive", "Spawned worker for peer " + peerEntity);
-            } catch (RejectedExecutionException e) {
-                Log.e("PeerHive", "Exception occurred while submitting new peer worker to thread pool", e);
+
+                return;
             }
         }
     }
@@ -58,11 +119,12 @@ public class PeerHive {
      * @param peerEntity PeerEntity associated with the worker.
      */
     public void killWorker(PeerEntity peerEntity) {
-        PeerWorker worker = workers.get(peerEntity.getUUID());
+        PeerWorker worker = workers.remove(peerEntity.getUUID());
+
+        cancelReconnect(peerEntity.getUUID());
 
         if (worker != null) {
             worker.stop();
-            workers.remove(worker.getPeerEntity().getUUID());
 
             Log.d("PeerHive", "Killed worker for peer " + peerEntity);
         }
@@ -73,12 +135,15 @@ public class PeerHive {
      */
     public void sync() {
         // Stopping workers whom peer has been removed
-        for (PeerWorker worker : workers.values()) {
-            PeerEntity peer = peers.get(worker.getPeerEntity().getUUID());
+        for (Map.Entry<UUID, PeerWorker> entry : workers.entrySet()) {
+            PeerWorker worker = entry.getValue();
+            PeerEntity peer = peers.get(entry.getKey());
+
+            // Only stop the worker if it was not replaced meanwhile
+            if (peer == null && workers.remove(entry.getKey(), worker)) {
+                cancelReconnect(entry.getKey());
 
-            if (peer == null) {
                 worker.stop();
-                workers.remove(worker.getPeerEntity().getUUID());
 
                 Log.d("PeerHive", "Killed worker for peer " + worker.getPeerEntity());
             }
@@ -90,6 +155,379 @@ public class PeerHive {
         }
     }
 
+    /**
+     * Internal API
+     *
+     * Called by a worker once its peer answered the ping.
+     */
+    void onWorkerOnline(PeerWorker worker) {
+        UUID uuid = worker.getPeerEntity().getUUID();
+
+        attempts.remove(uuid);
+        releaseProbe(uuid);
+    }
+
+    /**
+     * Internal API
+     *
+     * Called by a worker when it ends. Unless it was stopped, its peer went away or never
+     * answered, and it is probed again later.
+     *
+     * @param stopped True if the worker was stopped, rather than losing its peer.
+     */
+    void onWorkerFinished(PeerWorker worker, boolean stopped) {
+        UUID uuid = worker.getPeerEntity().getUUID();
+
+        releaseProbe(uuid);
+
+        // Only reconnect if the worker was not replaced meanwhile
+        if (workers.remove(uuid, worker) && !stopped) {
+            scheduleReconnect(uuid, true);
+        }
+    }
+
+    /**
+     * Use for diagnostics, workers that ended are not listed.
+     *
+     * @return Returns a snapshot of the state of the worker of each peer.
+     */
+    public Map<UUID, PeerWorker.State> getWorkerStates() {
+        Map<UUID, PeerWorker.State> states = new HashMap<>();
+
+        for (Map.Entry<UUID, PeerWorker> entry : workers.entrySet()) {
+            states.put(entry.getKey(), entry.getValue().getState());
+        }
+
+        return states;
+    }
+
+    /**
+     * Schedule a probe of an offline peer, using an exponential backoff with jitter, so that
+     * peers gone for good are probed less and less often and peers going away together are not
+     * probed in lockstep. Between attempts, nothing but the scheduled task is held.
+     *
+     * @param backoff True to increase the delay, false to retry after the initial delay.
+     */
+    private void scheduleReconnect(final UUID uuid, boolean backoff) {
+        Integer previous = attempts.get(uuid);
+        int attempt = previous == null ? 0 : previous;
+
+        if (backoff) {
+            attempts.put(uuid, ++attempt);
+        }
+
+        long delay = RECONNECT_INITIAL_DELAY << Math.min(Math.max(attempt - 1, 0), 20);
+        delay = Math.min(delay, RECONNECT_MAX_DELAY);
+        // Keep half of the delay and randomize the other half
+        delay = delay / 2 + (long) (random.nextDouble() * (delay / 2));
+
+        try {
+            ScheduledFuture<?> future = scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    reconnect(uuid);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+
+            ScheduledFuture<?> replaced = reconnects.put(uuid, future);
+            if (replaced != null) {
+                replaced.cancel(false);
+            }
+
+            Log.d("PeerHive", "Probing peer " + uuid + " in " + delay + " ms (attempt " + attempt + ")");
+        } catch (RejectedExecutionException e) {
+            Log.d("PeerHive", "Not probing peer " + uuid + ", hive is stopped");
+        }
+    }
+
+    private void reconnect(UUID uuid) {
+        reconnects.remove(uuid);
+
+        PeerEntity peer = peers.get(uuid);
+        PeerWorker worker = workers.get(uuid);
+
+        if (peer == null) {
+            attempts.remove(uuid);
+            return; // The peer was removed meanwhile
+        }
+
+        if (worker != null && worker.isActive()) {
+            return; // The peer came back by itself
+        }
+
+        if (!probes.tryAcquire()) {
+            // Too many probes in flight, try again soon without increasing the backoff
+            scheduleReconnect(uuid, false);
+            return;
+        }
+
+        probing.add(uuid);
+        spawnWorker(peer);
+    }
+
+    /**
+     * Internal API
+     */
+    boolean isProbing(UUID uuid) {
+        return probing.contains(uuid);
+    }
+
+    private void releaseProbe(UUID uuid) {
+        if (probing.remove(uuid)) {
+            probes.release();
+        }
+    }
+
+    private void cancelReconnect(UUID uuid) {
+        ScheduledFuture<?> future = reconnects.remove(uuid);
+        if (future != null) {
+            future.cancel(false);
+        }
+
+        attempts.remove(uuid);
+    }
+
+    /**
+     * Internal API
+     *
+     * Register a link with the specified peer and make sure its event queue is pumped into it.
+     * When both peers open a link at the same time, only the one opened by the peer with
+     * the lowest UUID is kept, so that both sides agree on the surviving link. The losing link
+     * is retired: it is still read for a while, so that messages already in flight are not lost.
+     * Links with new peers are closed once {@link #MAX_LINKS} are attached.
+     *
+     * @param uuid UUID of the remote peer.
+     * @param link Newly opened link.
+     * @return Returns true if the link was registered, or false if it was retired or closed.
+     */
+    public boolean attachLink(UUID uuid, PeerLink link) {
+        PeerLink existing;
+
+        synchronized (links) {
+            existing = links.get(uuid);
+
+            if (existing == null && links.size() >= MAX_LINKS) {
+                Log.d("PeerHive", "Rejected link for peer " + uuid + ", " + links.size() + " links attached");
+
+                link.close();
+
+                return false;
+            }
+
+            if (existing != null && existing.isOpen()) {
+                boolean outboundWins = service.getSelfPeerEntity().getUUID().compareTo(uuid) < 0;
+
+                if (link.isInbound() == outboundWins) {
+                    Log.d("PeerHive", "Rejected duplicate link for peer " + uuid);
+
+                    retireLink(link);
+
+                    return false;
+                }
+            }
+
+            links.put(uuid, link);
+        }
+
+        if (existing != null) {
+            retireLink(existing);
+        }
+
+        startPump(uuid);
+
+        Log.d("PeerHive", "Attached " + (link.isInbound() ? "inbound" : "outbound") + " link for peer " + uuid);
+
+        return true;
+    }
+
+    /**
+     * Internal API
+     *
+     * Start reading an outbound link, then register it. Inbound links are read by the server.
+     *
+     * @return Returns true if the link was registered, or false if it was retired.
+     */
+    public boolean attachLink(final UUID uuid, final PeerSocketClient link) {
+        try {
+            linkPool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    link.read(new PeerSocketClient.MessageCallback() {
+                        @Override
+                        public boolean onMessage(String message) {
+                            dispatchMessage(uuid, message);
+
+                            return true;
+                        }
+                        @Override
+                        public boolean onMessage(byte[] message) {
+                            dispatchMessage(uuid, message);
+
+                            return true;
+                        }
+                        @Override
+                        public void onException(IOException exception) {
+                            Log.d("PeerHive", "Link of peer " + uuid + " failed: " + exception.getMessage());
+                        }
+                    });
+
+                    detachLink(uuid, link);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.e("PeerHive", "Exception occurred while submitting new link reader to thread pool", e);
+
+            link.close();
+
+            return false;
+        }
+
+        return attachLink(uuid, (PeerLink) link);
+    }
+
+    /**
+     * Internal API
+     *
+     * @return Returns true if a link with a new peer would be attached, false if the peer should
+     * use another transport.
+     */
+    boolean canAttachLink() {
+        return links.size() < MAX_LINKS;
+    }
+
+    /**
+     * Internal API
+     */
+    public void detachLink(UUID uuid, PeerLink link) {
+        if (links.remove(uuid, link) && getLink(uuid) == null) {
+            PeerWorker worker = workers.get(uuid);
+
+            if (worker != null) {
+                worker.onLinkDetached();
+            }
+        }
+    }
+
+    /**
+     * Internal API
+     */
+    public PeerLink getLink(UUID uuid) {
+        PeerLink link = links.get(uuid);
+
+        return link != null && link.isOpen() ? link : null;
+    }
+
+    /**
+     * Internal API
+     *
+     * Forward a message received on a link to the worker of the peer, if any.
+     */
+    public void dispatchMessage(UUID uuid, String message) {
+        PeerWorker worker = workers.get(uuid);
+
+        if (worker != null) {
+            worker.handleMessage(message);
+        }
+    }
+
+    /**
+     * Internal API
+     *
+     * Forward a binary message received on a link to the worker of the peer, if any.
+     */
+    public void dispatchMessage(UUID uuid, byte[] message) {
+        PeerWorker worker = workers.get(uuid);
+
+        if (worker != null) {
+            worker.handleMessage(message);
+        }
+    }
+
+    /**
+     * Internal API
+     *
+     * Run a blocking task, such as opening a link, outside of the selector threads.
+     *
+     * @return Returns false if no thread is available to run the task.
+     */
+    boolean execute(Runnable task) {
+        try {
+            linkPool.execute(task);
+
+            return true;
+        } catch (RejectedExecutionException e) {
+            Log.d("PeerHive", "No thread available to run task, " + linkPool.getActiveCount() + " active");
+
+            return false;
+        }
+    }
+
+    /**
+     * Internal API
+     *
+     * Invoke the listener of the service on the listener threads, so that it may block without
+     * holding the network threads. Notifications of a peer are delivered one at a time, in order.
+     */
+    void notifyListener(UUID uuid, Runnable notification) {
+        Notifications queue = notifications.get(uuid);
+
+        if (queue == null) {
+            Notifications created = new Notifications();
+
+            queue = notifications.putIfAbsent(uuid, created);
+            if (queue == null) {
+                queue = created;
+            }
+        }
+
+        queue.add(notification);
+    }
+
+    /**
+     * Internal API
+     */
+    void releasePump(UUID uuid, EventPump pump) {
+        pumps.remove(uuid, pump);
+
+        // A link may have been attached while the pump was exiting
+        if (getLink(uuid) != null) {
+            startPump(uuid);
+        }
+    }
+
+    private void startPump(UUID uuid) {
+        EventPump pump = new EventPump(this, uuid, service.getQueueRepository().getOrCreate(uuid), LINK_PING_INTERVAL);
+
+        if (pumps.putIfAbsent(uuid, pump) == null) {
+            try {
+                linkPool.execute(pump);
+            } catch (RejectedExecutionException e) {
+                Log.e("PeerHive", "Exception occurred while submitting new event pump to thread pool", e);
+
+                pumps.remove(uuid, pump);
+
+                // A link without pump would never send anything, the peer falls back to another transport
+                PeerLink link = getLink(uuid);
+                if (link != null) {
+                    link.close();
+                }
+            }
+        }
+    }
+
+    private void retireLink(final PeerLink link) {
+        try {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    link.close();
+                }
+            }, LINK_RETIRE_DELAY, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            link.close();
+        }
+    }
+
     /**
      * Internal API
      */
@@ -100,18 +538,79 @@ public class PeerHive {
             worker.stop();
         }
 
-        pool.shutdown();
-
-        try {
-            pool.awaitTermination(30, TimeUnit.SECONDS);
-        } catch (InterruptedException e) {
-            Log.e("PeerHive", "Exception occurred while waiting thread pool to terminate", e);
+        for (PeerLink link : links.values()) {
+            link.close();
         }
 
+        linkPool.shutdown();
+        listenerPool.shutdown(); // Deliver the last notifications, such as peers going offline
+        scheduler.shutdownNow();
+        client.close();
+
         Log.d("PeerHive", "PeerHive stopped");
     }
 
     public PeerService getService() {
         return service;
     }
+
+    /**
+     * Internal API
+     */
+    public AsyncHttpClient getHttpClient() {
+        return client;
+    }
+
+    /**
+     * Notifications of a peer waiting for the listener, run on the listener pool one at a time.
+     */
+    private class Notifications implements Runnable {
+        private final Queue<Runnable> queue = new ArrayDeque<>(); // Guarded by this
+        private boolean scheduled; // Guarded by this
+
+        private void add(Runnable notification) {
+            synchronized (this) {
+                queue.add(notification);
+
+                if (scheduled) {
+                    return; // Run after the notifications already waiting
+                }
+
+                scheduled = true;
+            }
+
+            try {
+                listenerPool.execute(this);
+            } catch (RejectedExecutionException e) {
+                Log.d("PeerHive", "Dropped notification, hive is stopped");
+
+                synchronized (this) {
+                    queue.clear();
+                    scheduled = false;
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable notification;
+
+                synchronized (this) {
+                    notification = queue.poll();
+
+                    if (notification == null) {
+                        scheduled = false;
+                        return;
+                    }
+                }
+
+                try {
+                    notification.run();
+                } catch (RuntimeException e) {
+                    Log.e("PeerHive", "Exception occurred in listener", e);
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,35 @@
+package com.pgrenaud.android.p2p.peering;
+
+import java.io.IOException;
+
+/**
+ * Bidirectional message channel with a peer, such as a WebSocket.
+ */
+public interface PeerLink {
+    void send(String message) throws IOException;
+
+    /**
+     * Send a message in the binary encoding, only if {@link #isBinary()} returns true.
+     */
+    void send(byte[] message) throws IOException;
+
+    /**
+     *
+     * @return Returns true if both ends of the link agreed on the binary encoding.
+     */
+    boolean isBinary();
+
+    void ping() throws IOException;
+
+    boolean isOpen();
+
+    /**
+     *
+     * @return Returns true if the link was opened by the remote peer.
+     */
+    boolean isInbound();
+
+    void awaitClose() throws InterruptedException;
+
+    void close();
+}
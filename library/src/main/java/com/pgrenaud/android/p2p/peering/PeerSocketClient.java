@@ -0,0 +1,267 @@
+package com.pgrenaud.android.p2p.peering;
+
+import android.util.Base64;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import com.pgrenaud.android.p2p.entity.BinaryCodec;
+
+import fi.iki.elonen.NanoWSD;
+import fi.iki.elonen.NanoWSD.WebSocketFrame;
+import fi.iki.elonen.NanoWSD.WebSocketFrame.OpCode;
+
+/**
+ * Client side of a peer WebSocket, speaking to the {@link NanoWSD} endpoint of the remote peer.
+ */
+public class PeerSocketClient implements PeerLink {
+
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int MAX_HEADER_SIZE = 8192;
+    private static final String HANDSHAKE_FORMAT = "GET %s HTTP/1.1\r\n" +
+            "Host: %s:%d\r\n" +
+            "Upgrade: websocket\r\n" +
+            "Connection: Upgrade\r\n" +
+            "Sec-WebSocket-Key: %s\r\n" +
+            "Sec-WebSocket-Version: 13\r\n" +
+            "Accept: " + BinaryCodec.MIME_BINARY + "\r\n" +
+            "\r\n";
+
+    private final Socket socket;
+    private final SecureRandom random;
+    private final CountDownLatch closed;
+
+    private InputStream in;
+    private OutputStream out;
+
+    private volatile boolean open;
+    private boolean binary;
+
+    private PeerSocketClient() {
+        socket = new Socket();
+        random = new SecureRandom();
+        closed = new CountDownLatch(1);
+    }
+
+    /**
+     * Open a WebSocket and perform the opening handshake.
+     *
+     * @param uri URI of the socket endpoint, using the ws scheme.
+     * @param readTimeout Maximum time in milliseconds to wait for a frame (pings included).
+     * @throws IOException
+     */
+    public static PeerSocketClient connect(String uri, int readTimeout) throws IOException {
+        PeerSocketClient client = new PeerSocketClient();
+
+        try {
+            client.handshake(new URI(uri), readTimeout);
+        } catch (URISyntaxException e) {
+            client.close();
+
+            throw new IOException(e.getMessage());
+        } catch (IOException e) {
+            client.close();
+
+            throw e;
+        }
+
+        return client;
+    }
+
+    private void handshake(URI uri, int readTimeout) throws IOException {
+        socket.connect(new InetSocketAddress(uri.getHost(), uri.getPort()), CONNECT_TIMEOUT);
+        socket.setSoTimeout(readTimeout);
+        socket.setTcpNoDelay(true);
+
+        in = new BufferedInputStream(socket.getInputStream());
+        out = socket.getOutputStream();
+
+        byte[] nonce = new byte[16];
+        random.nextBytes(nonce);
+        String key = Base64.encodeToString(nonce, Base64.NO_WRAP);
+
+        String request = String.format(Locale.US, HANDSHAKE_FORMAT, uri.getRawPath(), uri.getHost(), uri.getPort(), key);
+        out.write(request.getBytes("US-ASCII"));
+        out.flush();
+
+        String status = readLine();
+        Map<String, String> headers = new HashMap<>();
+        String line;
+
+        while (!(line = readLine()).isEmpty()) {
+            int separator = line.indexOf(':');
+
+            if (separator > 0) {
+                headers.put(line.substring(0, separator).trim().toLowerCase(Locale.US), line.substring(separator + 1).trim());
+            }
+        }
+
+        if (!status.startsWith("HTTP/1.1 101")) {
+            throw new IOException("Unexpected handshake response: " + status);
+        }
+
+        try {
+            if (!NanoWSD.makeAcceptKey(key).equals(headers.get(NanoWSD.HEADER_WEBSOCKET_ACCEPT))) {
+                throw new IOException("Invalid handshake accept key");
+            }
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.getMessage());
+        }
+
+        // Peers that do not know the binary encoding ignore the Accept header
+        binary = BinaryCodec.isBinary(headers.get("content-type"));
+        open = true;
+    }
+
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+
+        // Read byte by byte, the frames following the handshake must stay in the stream
+        while ((b = in.read()) != '\n') {
+            if (b == -1 || line.size() > MAX_HEADER_SIZE) {
+                throw new IOException("Unexpected end of handshake response");
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+
+        return line.toString("US-ASCII");
+    }
+
+    /**
+     * Read frames until the link is closed, replying to pings and forwarding text and binary messages.
+     * Must be called from a dedicated thread, as it blocks for the whole lifetime of the link.
+     *
+     * @param callback Callback receiving each message until it returns false.
+     */
+    public void read(MessageCallback callback) {
+        try {
+            while (open) {
+                WebSocketFrame frame = WebSocketFrame.read(in);
+
+                if (frame.getOpCode() == OpCode.Text) {
+                    if (!callback.onMessage(frame.getTextPayload())) {
+                        break;
+                    }
+                } else if (frame.getOpCode() == OpCode.Binary) {
+                    if (!callback.onMessage(frame.getBinaryPayload())) {
+                        break;
+                    }
+                } else if (frame.getOpCode() == OpCode.Ping) {
+                    write(new WebSocketFrame(OpCode.Pong, true, frame.getBinaryPayload()));
+                } else if (frame.getOpCode() == OpCode.Close) {
+                    break;
+                } else if (frame.getOpCode() != OpCode.Pong) {
+                    Log.w("PeerSocketClient", "Ignoring unsupported frame " + frame.getOpCode());
+                }
+            }
+        } catch (IOException e) {
+            if (open) {
+                callback.onException(e);
+            }
+        } finally {
+            close();
+        }
+    }
+
+    @Override
+    public void send(String message) throws IOException {
+        write(new WebSocketFrame(OpCode.Text, true, message));
+    }
+
+    @Override
+    public void send(byte[] message) throws IOException {
+        write(new WebSocketFrame(OpCode.Binary, true, message));
+    }
+
+    @Override
+    public boolean isBinary() {
+        return binary;
+    }
+
+    @Override
+    public void ping() throws IOException {
+        write(new WebSocketFrame(OpCode.Ping, true, new byte[0]));
+    }
+
+    private synchronized void write(WebSocketFrame frame) throws IOException {
+        if (!open) {
+            throw new IOException("Link is closed");
+        }
+
+        // Frames sent by a client must be masked
+        byte[] mask = new byte[4];
+        random.nextBytes(mask);
+        frame.setMaskingKey(mask);
+
+        frame.write(out);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public boolean isInbound() {
+        return false;
+    }
+
+    @Override
+    public void awaitClose() throws InterruptedException {
+        closed.await();
+    }
+
+    @Override
+    public void close() {
+        if (open) {
+            try {
+                write(new WebSocketFrame(OpCode.Close, true, new byte[0]));
+            } catch (IOException e) {
+                Log.d("PeerSocketClient", "Could not send close frame: " + e.getMessage());
+            }
+        }
+
+        open = false;
+
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.e("PeerSocketClient", "Exception occurred while closing socket", e);
+        }
+
+        closed.countDown();
+    }
+
+    public interface MessageCallback {
+        /**
+         *
+         * @return Return true to keep reading the link, or false to close it.
+         */
+        boolean onMessage(String message);
+
+        /**
+         *
+         * @return Return true to keep reading the link, or false to close it.
+         */
+        boolean onMessage(byte[] message);
+
+        void onException(IOException exception);
+    }
+}
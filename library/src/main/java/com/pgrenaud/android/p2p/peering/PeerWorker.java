@@ -2,184 +2,537 @@ package com.pgrenaud.android.p2p.peering;
 
 import android.util.Log;
 
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import com.google.gson.JsonSyntaxException;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.net.ConnectException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
+import com.pgrenaud.android.p2p.entity.BinaryCodec;
+import com.pgrenaud.android.p2p.entity.EntityCodec;
 import com.pgrenaud.android.p2p.entity.EventEntity;
 import com.pgrenaud.android.p2p.entity.PeerEntity;
 import com.pgrenaud.android.p2p.helper.ApiEndpoints;
-import com.pgrenaud.android.p2p.helper.HttpClientWrapper;
+import com.pgrenaud.android.p2p.helper.AsyncHttpClient;
+import com.pgrenaud.android.p2p.helper.AsyncHttpClient.Call;
+import com.pgrenaud.android.p2p.helper.AsyncHttpClient.ContentHttpResponseCallback;
+import com.pgrenaud.android.p2p.helper.AsyncHttpClient.StreamingHttpResponseCallback;
 import com.pgrenaud.android.p2p.helper.HttpClientWrapper.HttpResponseCallback;
+import com.pgrenaud.android.p2p.service.PeerService;
 
-import cz.msebera.android.httpclient.conn.HttpHostConnectException;
+public class PeerWorker {
 
-public class PeerWorker implements Runnable {
+    private static final int PING_READ_TIMEOUT = 10000;
+    private static final int POLLING_READ_TIMEOUT = 90000; // Longer than the server polling timeout
+    private static final int POLLING_BATCH_SIZE = 50;
+    private static final long POLLING_BATCH_LINGER = 50;
+    private static final int STREAM_READ_TIMEOUT = 90000; // Three times the server heartbeat interval
+    private static final int SOCKET_READ_TIMEOUT = 15000; // Six times the link ping interval
+    private static final String POLLING_ACCEPT = BinaryCodec.MIME_BINARY + ", application/json;q=0.5";
 
     private final PeerHive hive;
     private final PeerEntity peer;
-    private final HttpClientWrapper client;
+    private final AsyncHttpClient client;
+    private final AtomicReference<State> state;
 
     private final String pingUrl;
     private final String pollingUrl;
+    private final String streamUrl;
+    private final String socketUrl;
 
-    private volatile boolean running;
-    private boolean available = false;
+    private volatile boolean linked;
+    private volatile Call call;
+    private volatile boolean available = false;
+    private volatile boolean streaming = false;
+    private boolean socketSupported = false;
 
     public PeerWorker(PeerHive hive, PeerEntity peer) {
         this.hive = hive;
         this.peer = peer;
 
-        client = new HttpClientWrapper();
+        client = hive.getHttpClient();
+        state = new AtomicReference<>(State.IDLE);
 
         pingUrl = ApiEndpoints.getPingUri(peer);
-        pollingUrl = ApiEndpoints.getPollingUri(peer, hive.getService().getSelfPeerEntity());
+        pollingUrl = ApiEndpoints.getPollingUri(peer, hive.getService().getSelfPeerEntity(), POLLING_BATCH_SIZE, POLLING_BATCH_LINGER);
+        streamUrl = ApiEndpoints.getStreamUri(peer, hive.getService().getSelfPeerEntity());
+        socketUrl = ApiEndpoints.getSocketUri(peer, hive.getService().getSelfPeerEntity());
 
-        running = false;
         available = false;
     }
 
-    @Override
-    public void run() {
-        running = true;
+    /**
+     * Start the worker. It does not own a thread: its requests are driven by the selector threads
+     * of the shared {@link AsyncHttpClient}, each response triggering the next request.
+     */
+    public void start() {
+        if (!state.compareAndSet(State.IDLE, State.PROBING)) {
+            return; // Already started, nothing to do.
+        }
 
         Log.d("PeerWorker", "Starting worker " + peer);
 
-        try {
-            client.performHttpGet(pingUrl, new HttpResponseCallback() {
-                @Override
-                public void onHttpResponse(int status, String content) {
-                    if (status == 200) {
-                        Log.d("PeerWorker", "Peer " + peer  + " is online");
-
-                        available = true;
-                        peer.setOnline(true);
-                        notifyConnectionListener();
-                    } else {
-                        Log.e("PeerWorker", "ping: unknown status: " + status);
+        perform(client.performHttpGet(pingUrl, PING_READ_TIMEOUT, new HttpResponseCallback() {
+            @Override
+            public void onHttpResponse(int status, String content) {
+                if (status == 200) {
+                    Log.d("PeerWorker", "Peer " + peer  + " is online");
+
+                    if (!state.compareAndSet(State.PROBING, State.CONNECTED)) {
+                        return; // Stopped while probing
                     }
+
+                    available = true;
+                    socketSupported = isTransportSupported(content, ApiEndpoints.TRANSPORT_SOCKET);
+                    peer.setOnline(true);
+                    notifyConnectionListener();
+
+                    hive.onWorkerOnline(PeerWorker.this);
+                } else {
+                    Log.e("PeerWorker", "ping: unknown status: " + status);
+                }
+
+                if (isRunning() && available && socketSupported) {
+                    performLink();
+                } else if (isRunning() && available) {
+                    performStream();
+                } else {
+                    finish();
+                }
+            }
+            @Override
+            public void onException(Exception exception) {
+                if (exception instanceof ConnectException) {
+                    Log.d("PeerWorker", exception.getMessage());
+                } else {
+                    Log.e("PeerWorker", "ping: onException", exception);
                 }
-                @Override
-                public void onException(Exception exception) {
-                    if (exception instanceof HttpHostConnectException) {
-                        Log.d("PeerWorker", exception.getMessage());
-                    } else {
-                        Log.e("PeerWorker", "ping: onException", exception);
+
+                finish();
+            }
+        }));
+    }
+
+    /**
+     * Exchange events over a single WebSocket. The link opened by the remote peer is reused when
+     * there is one, otherwise a new link is opened. Falls back to the event stream if the socket
+     * cannot be opened, or if the hive already holds as many links as it has threads for. Links
+     * are read and pumped by the hive, which notifies the worker through
+     * {@link #onLinkDetached()} once no link is left.
+     */
+    private void performLink() {
+        if (hive.getLink(peer.getUUID()) == null && !hive.canAttachLink()) {
+            Log.d("PeerWorker", "link: too many links, falling back to stream");
+
+            performStream();
+            return;
+        }
+
+        boolean executed = hive.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (hive.getLink(peer.getUUID()) == null) {
+                        hive.attachLink(peer.getUUID(), PeerSocketClient.connect(socketUrl, SOCKET_READ_TIMEOUT));
                     }
+                } catch (IOException e) {
+                    Log.e("PeerWorker", "link: could not open socket, falling back to stream", e);
                 }
-            });
-
-            while (running && available) {
-                client.performHttpGet(pollingUrl, new HttpResponseCallback() {
-                    @Override
-                    public void onHttpResponse(int status, String content) {
-                        if (status == 408) {
-                            // Polling timeout
-                        } else if (status == 200) {
-                            try {
-                                EventEntity event = EventEntity.decode(content);
-
-                                // Handle event
-                                if (event.getEvent() == EventEntity.Type.DISPLAY_NAME_UPDATE) {
-                                    peer.setDisplayName(event.getParams().getDisplayName());
-                                    notifyDisplayNameListener();
-                                } else if (event.getEvent() == EventEntity.Type.LOCATION_UPDATE) {
-                                    peer.getLocation().setLocation(event.getParams().getLocation());
-                                    notifyLocationListener();
-                                } else if (event.getEvent() == EventEntity.Type.DIRECTORY_CHANGE) {
-                                    notifyDirectoryListener();
-                                } else {
-                                    Log.e("PeerWorker", "polling: unknown event type");
-
-                                    available = false;
-                                }
-                            } catch (JsonSyntaxException e) {
-                                Log.e("PeerWorker", "polling: unknown event", e);
 
-                                available = false;
-                            }
-                        } else {
-                            Log.e("PeerWorker", "polling: unknown status: " + status);
+                if (!isRunning() || hive.getLink(peer.getUUID()) == null) {
+                    performStream();
+                    return;
+                }
 
-                            available = false;
-                        }
+                Log.d("PeerWorker", "Linked with peer " + peer);
+
+                linked = true;
+
+                // The link may have been closed before the worker was marked as linked
+                onLinkDetached();
+            }
+        });
+
+        if (!executed) {
+            performStream();
+        }
+    }
+
+    /**
+     * Internal API
+     *
+     * Called by the hive when the last link of this peer was detached.
+     */
+    void onLinkDetached() {
+        if (linked && hive.getLink(peer.getUUID()) == null) {
+            // No link left, the peer went away
+            finish();
+        }
+    }
+
+    private void performStream() {
+        if (!isRunning()) {
+            finish();
+            return;
+        }
+
+        perform(client.performStreamingHttpGet(streamUrl, STREAM_READ_TIMEOUT, new StreamingHttpResponseCallback() {
+            @Override
+            public boolean onHttpResponse(int status) {
+                if (status == 200) {
+                    streaming = true;
+                } else {
+                    Log.d("PeerWorker", "stream: not supported by peer, falling back to polling");
+                }
+
+                return streaming;
+            }
+            @Override
+            public boolean onHttpLine(String line) {
+                try {
+                    if (!handleEvent(EventEntity.decode(line))) {
+                        Log.e("PeerWorker", "stream: unknown event type");
+
+                        available = false;
                     }
-                    @Override
-                    public void onException(Exception exception) {
-                        if (exception instanceof HttpHostConnectException) {
-                            Log.d("PeerWorker", exception.getMessage());
-                        } else {
-                            Log.e("PeerWorker", "polling: onException", exception);
+                } catch (JsonSyntaxException e) {
+                    Log.e("PeerWorker", "stream: unknown event", e);
+
+                    available = false;
+                }
+
+                return isRunning() && available;
+            }
+            @Override
+            public void onHttpEnd() {
+                if (streaming) {
+                    // The stream only ends when the peer goes away
+                    finish();
+                } else {
+                    performPolling();
+                }
+            }
+            @Override
+            public void onException(Exception exception) {
+                if (exception instanceof ConnectException) {
+                    Log.d("PeerWorker", exception.getMessage());
+                } else {
+                    Log.e("PeerWorker", "stream: onException", exception);
+                }
+
+                finish();
+            }
+        }));
+    }
+
+    private void performPolling() {
+        if (!isRunning() || !available) {
+            finish();
+            return;
+        }
+
+        // Peers that do not know the binary encoding answer in JSON
+        perform(client.performHttpGet(pollingUrl, POLLING_READ_TIMEOUT, POLLING_ACCEPT, new ContentHttpResponseCallback() {
+            @Override
+            public void onHttpResponse(int status, String contentType, byte[] content) {
+                if (status == 408) {
+                    // Polling timeout
+                } else if (status == 200) {
+                    try {
+                        List<EventEntity> events = decodeEvents(contentType, content);
+
+                        for (EventEntity event : events) {
+                            if (!handleEvent(event)) {
+                                Log.e("PeerWorker", "polling: unknown event type");
+
+                                available = false;
+                            }
                         }
+                    } catch (JsonSyntaxException | IOException e) {
+                        Log.e("PeerWorker", "polling: unknown event", e);
 
                         available = false;
                     }
-                });
+                } else {
+                    Log.e("PeerWorker", "polling: unknown status: " + status);
+
+                    available = false;
+                }
+
+                performPolling();
+            }
+            @Override
+            public void onException(Exception exception) {
+                if (exception instanceof ConnectException) {
+                    Log.d("PeerWorker", exception.getMessage());
+                } else {
+                    Log.e("PeerWorker", "polling: onException", exception);
+                }
+
+                finish();
             }
+        }));
+    }
 
-            Log.d("PeerWorker", "Peer " + peer  + " is offline");
+    private void perform(Call call) {
+        this.call = call;
 
-            available = false;
-            peer.setOnline(false);
-            notifyConnectionListener();
-        } finally {
-            stop();
+        // The worker may have been stopped while the request was being submitted
+        if (!isRunning()) {
+            call.cancel();
         }
     }
 
-    public void stop() {
-        if (!running) {
-            return; // Already stopped, nothing to do.
+    /**
+     * End of the worker, the peer went away.
+     */
+    private void finish() {
+        drain(false);
+    }
+
+    /**
+     * Move to the draining state, from any other state, exactly once: cancel the pending request,
+     * close the link and report the peer as offline.
+     *
+     * @param stopped True if the worker was stopped, rather than losing its peer.
+     */
+    private void drain(boolean stopped) {
+        State previous;
+
+        do {
+            previous = state.get();
+
+            if (previous == State.DRAINING) {
+                return; // Already draining, nothing to do.
+            }
+        } while (!state.compareAndSet(previous, State.DRAINING));
+
+        Log.d("PeerWorker", stopped ? "Stopping worker " + peer : "Peer " + peer  + " is offline");
+
+        Call current = call;
+        if (current != null) {
+            current.cancel();
+        }
+
+        PeerLink link = hive.getLink(peer.getUUID());
+        if (linked && link != null) {
+            link.close();
         }
 
-        Log.d("PeerWorker", "Stopping worker " + peer);
+        boolean changed = peer.isOnline() || !hive.isProbing(peer.getUUID());
 
-        running = false;
+        available = false;
+        peer.setOnline(false);
+
+        // Failed probes of a peer already known to be offline are not worth a notification
+        if (changed) {
+            notifyConnectionListener();
+        }
+
+        hive.onWorkerFinished(this, stopped);
+    }
+
+    /**
+     * Internal API
+     *
+     * Handle a message received on the link of this peer, either a single event or a batch.
+     */
+    void handleMessage(String message) {
+        try {
+            for (EventEntity event : EventEntity.decodeAll(message)) {
+                if (!handleEvent(event)) {
+                    Log.e("PeerWorker", "link: unknown event type");
+                }
+            }
+        } catch (JsonSyntaxException e) {
+            Log.e("PeerWorker", "link: unknown event", e);
+        }
+    }
 
+    /**
+     * Internal API
+     *
+     * Handle a binary message received on the link of this peer.
+     */
+    void handleMessage(byte[] message) {
         try {
-            client.close();
+            for (EventEntity event : BinaryCodec.decodeEvents(new ByteArrayInputStream(message))) {
+                if (!handleEvent(event)) {
+                    Log.e("PeerWorker", "link: unknown event type");
+                }
+            }
         } catch (IOException e) {
-            Log.e("PeerWorker", "Exception occurred while closing http client", e);
+            Log.e("PeerWorker", "link: unknown event", e);
+        }
+    }
+
+    private static List<EventEntity> decodeEvents(String contentType, byte[] content) throws IOException {
+        if (BinaryCodec.isBinary(contentType)) {
+            return BinaryCodec.decodeEvents(new ByteArrayInputStream(content));
+        }
+
+        return EventEntity.decodeAll(new String(content, EntityCodec.UTF_8));
+    }
+
+    private static boolean isTransportSupported(String content, String transport) {
+        try {
+            JsonElement element = new JsonParser().parse(content);
+
+            if (element.isJsonObject()) {
+                JsonObject json = element.getAsJsonObject();
+
+                if (json.has("transports") && json.get("transports").isJsonArray()) {
+                    for (JsonElement supported : json.getAsJsonArray("transports")) {
+                        if (transport.equals(supported.getAsString())) {
+                            return true;
+                        }
+                    }
+                }
+            }
+        } catch (JsonSyntaxException | IllegalStateException | ClassCastException e) {
+            Log.d("PeerWorker", "ping: could not read transports: " + e.getMessage());
         }
+
+        return false; // Older peers do not advertise their transports
+    }
+
+    public void stop() {
+        drain(true);
     }
 
     public PeerEntity getPeerEntity() {
         return peer;
     }
 
+    /**
+     *
+     * @return Returns true if the worker is started and not draining.
+     */
     public boolean isRunning() {
-        return running;
+        State current = state.get();
+
+        return current == State.PROBING || current == State.CONNECTED;
     }
 
-    private void notifyConnectionListener() {
-        if (hive.getService().getListener() != null) {
-            Log.d("PeerWorker", "Invoking listener onPeerConnection()");
+    /**
+     *
+     * @return Returns true if the worker is not draining, it may not be started yet.
+     */
+    public boolean isActive() {
+        return state.get() != State.DRAINING;
+    }
+
+    public State getState() {
+        return state.get();
+    }
 
-            hive.getService().getListener().onPeerConnection(peer);
+    private boolean handleEvent(EventEntity event) {
+        if (event.getEvent() == EventEntity.Type.DISPLAY_NAME_UPDATE) {
+            peer.setDisplayName(event.getParams().getDisplayName());
+            notifyDisplayNameListener();
+        } else if (event.getEvent() == EventEntity.Type.LOCATION_UPDATE) {
+            peer.getLocation().setLocation(event.getParams().getLocation());
+            notifyLocationListener();
+        } else if (event.getEvent() == EventEntity.Type.DIRECTORY_CHANGE) {
+            peer.setDirectoryVersion(event.getParams().getDirectoryVersion());
+            notifyDirectoryListener();
+        } else {
+            return false;
         }
+
+        return true;
+    }
+
+    private void notifyConnectionListener() {
+        notifyListener(new Runnable() {
+            @Override
+            public void run() {
+                PeerService.PeerServiceListener listener = hive.getService().getListener();
+
+                if (listener != null) {
+                    Log.d("PeerWorker", "Invoking listener onPeerConnection()");
+
+                    listener.onPeerConnection(peer);
+                }
+            }
+        });
     }
 
     private void notifyDisplayNameListener() {
-        if (hive.getService().getListener() != null) {
-            Log.d("PeerWorker", "Invoking listener onPeerDisplayNameUpdate()");
+        notifyListener(new Runnable() {
+            @Override
+            public void run() {
+                PeerService.PeerServiceListener listener = hive.getService().getListener();
 
-            hive.getService().getListener().onPeerDisplayNameUpdate(peer);
-        }
+                if (listener != null) {
+                    Log.d("PeerWorker", "Invoking listener onPeerDisplayNameUpdate()");
+
+                    listener.onPeerDisplayNameUpdate(peer);
+                }
+            }
+        });
     }
 
     private void notifyLocationListener() {
-        if (hive.getService().getListener() != null) {
-            Log.d("PeerWorker", "Invoking listener onPeerLocationUpdate()");
+        notifyListener(new Runnable() {
+            @Override
+            public void run() {
+                PeerService.PeerServiceListener listener = hive.getService().getListener();
 
-            hive.getService().getListener().onPeerLocationUpdate(peer);
-        }
+                if (listener != null) {
+                    Log.d("PeerWorker", "Invoking listener onPeerLocationUpdate()");
+
+                    listener.onPeerLocationUpdate(peer);
+                }
+            }
+        });
     }
 
     private void notifyDirectoryListener() {
-        if (hive.getService().getListener() != null) {
-            Log.d("PeerWorker", "Invoking listener notifyDirectoryListener()");
+        notifyListener(new Runnable() {
+            @Override
+            public void run() {
+                PeerService.PeerServiceListener listener = hive.getService().getListener();
 
-            hive.getService().getListener().onPeerDirectoryChange(peer);
-        }
+                if (listener != null) {
+                    Log.d("PeerWorker", "Invoking listener onPeerDirectoryChange()");
+
+                    listener.onPeerDirectoryChange(peer);
+                }
+            }
+        });
+    }
+
+    /**
+     * Listeners are invoked on the listener threads of the hive, never on the selector threads,
+     * as they may block.
+     */
+    private void notifyListener(Runnable notification) {
+        hive.notifyListener(peer.getUUID(), notification);
+    }
+
+    public enum State {
+        /**
+         * Created, but not started yet.
+         */
+        IDLE,
+        /**
+         * Waiting for the peer to answer the ping.
+         */
+        PROBING,
+        /**
+         * Exchanging events with the peer.
+         */
+        CONNECTED,
+        /**
+         * Stopped or lost its peer, a new worker may be spawned.
+         */
+        DRAINING,
+        ;
     }
 }
@@ -0,0 +1,144 @@
+package com.pgrenaud.android.p2p.repository;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+
+import com.pgrenaud.android.p2p.entity.EventEntity;
+
+/**
+ * Queue of the events of a peer. A pending poll parks a waiter on the queue instead of blocking a
+ * thread in {@link #poll(long, TimeUnit)}, and the waiter is notified by the thread publishing
+ * the next event. Events can be put back at the head of the queue, so that a consumer that failed
+ * to deliver them keeps their order.
+ */
+public class EventQueue extends LinkedBlockingDeque<EventEntity> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient List<Waiter> waiters = new ArrayList<>(); // Guarded by waiters
+
+    /**
+     * Register a waiter notified once by the next published event.
+     *
+     * @return Returns false if an event is already queued, the waiter is then not registered.
+     */
+    public boolean park(Waiter waiter) {
+        synchronized (waiters) {
+            if (!isEmpty()) {
+                return false;
+            }
+
+            waiters.add(waiter);
+
+            return true;
+        }
+    }
+
+    /**
+     *
+     * @return Returns false if the waiter was already notified, or was never registered.
+     */
+    public boolean unpark(Waiter waiter) {
+        synchronized (waiters) {
+            return waiters.remove(waiter);
+        }
+    }
+
+    @Override
+    public boolean offerFirst(EventEntity event) {
+        boolean added = super.offerFirst(event);
+
+        if (added) {
+            notifyWaiters();
+        }
+
+        return added;
+    }
+
+    @Override
+    public boolean offerLast(EventEntity event) {
+        boolean added = super.offerLast(event);
+
+        if (added) {
+            notifyWaiters();
+        }
+
+        return added;
+    }
+
+    @Override
+    public boolean offerFirst(EventEntity event, long timeout, TimeUnit unit) throws InterruptedException {
+        boolean added = super.offerFirst(event, timeout, unit);
+
+        if (added) {
+            notifyWaiters();
+        }
+
+        return added;
+    }
+
+    @Override
+    public boolean offerLast(EventEntity event, long timeout, TimeUnit unit) throws InterruptedException {
+        boolean added = super.offerLast(event, timeout, unit);
+
+        if (added) {
+            notifyWaiters();
+        }
+
+        return added;
+    }
+
+    @Override
+    public void putFirst(EventEntity event) throws InterruptedException {
+        super.putFirst(event);
+
+        notifyWaiters();
+    }
+
+    @Override
+    public void putLast(EventEntity event) throws InterruptedException {
+        super.putLast(event);
+
+        notifyWaiters();
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends EventEntity> events) {
+        boolean added = super.addAll(events);
+
+        if (added) {
+            notifyWaiters();
+        }
+
+        return added;
+    }
+
+    private void notifyWaiters() {
+        List<Waiter> notified;
+
+        // The event is queued before the waiters are taken, so that a concurrent park either
+        // sees the event or is notified
+        synchronized (waiters) {
+            if (waiters.isEmpty()) {
+                return;
+            }
+
+            notified = new ArrayList<>(waiters);
+            waiters.clear();
+        }
+
+        for (Waiter waiter : notified) {
+            waiter.onEvent();
+        }
+    }
+
+    public interface Waiter {
+        /**
+         * Called once, from the thread publishing the event, which must not be blocked.
+         */
+        void onEvent();
+    }
+}
@@ -1,24 +1,68 @@
 package com.pgrenaud.android.p2p.repository;
 
-import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
 import com.google.gson.reflect.TypeToken;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Type;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
 
+import com.pgrenaud.android.p2p.entity.BinaryCodec;
+import com.pgrenaud.android.p2p.entity.EntityCodec;
+import com.pgrenaud.android.p2p.entity.FileDeltaEntity;
 import com.pgrenaud.android.p2p.entity.FileEntity;
+import com.pgrenaud.android.p2p.entity.FilePageEntity;
+import com.pgrenaud.android.p2p.helper.FileHasher;
 
-public class FileRepository {
+public class FileRepository implements FileHasher.HashListener {
+
+    public static final int DEFAULT_MAX_CHANGES = 1024;
+
+    private static final Type COLLECTION_TYPE = new TypeToken<Collection<FileEntity>>(){}.getType();
 
     private final Map<UUID, FileEntity> files;
+    private final AtomicLong version;
+    private final LinkedList<Change> changes; // Guarded by this
+    private final int maxChanges;
+    private final SearchIndex searchIndex;
+    private final SortedIndex sortedIndex;
+
+    private final Object encodeLock = new Object();
+
+    private long oldestVersion; // Deltas can be computed since this version or any later one
+    private volatile FileHasher hasher;
+    private volatile EncodedList encoded; // Stale as soon as its version differs from the current one
 
     public FileRepository() {
+        this(DEFAULT_MAX_CHANGES);
+    }
+
+    /**
+     *
+     * @param maxChanges Number of changes kept in the change log, peers further behind get the whole list.
+     */
+    public FileRepository(int maxChanges) {
+        this.maxChanges = maxChanges;
+
         files = new ConcurrentHashMap<>();
+        changes = new LinkedList<>();
+        searchIndex = new SearchIndex();
+        sortedIndex = new SortedIndex();
+
+        // Versions are based on the clock, so that a version from a previous run is never mistaken for a current one
+        version = new AtomicLong(System.currentTimeMillis() * 1000);
+        oldestVersion = version.get();
     }
 
     public FileEntity get(UUID uuid) {
@@ -30,41 +74,405 @@ public class FileRepository {
     }
 
     public void add(FileEntity fileEntity) {
-        files.put(fileEntity.getUuid(), fileEntity);
+        // A cached hash is added along the file, instead of changing the list a second time
+        FileHasher hasher = this.hasher;
+        boolean hashed = hasher == null || hasher.fill(fileEntity);
+
+        synchronized (this) {
+            files.put(fileEntity.getUuid(), fileEntity);
+            record(fileEntity.getUuid(), fileEntity);
+        }
+
+        if (!hashed) {
+            hasher.submit(fileEntity);
+        }
     }
 
     public void addAll(String path) {
         addAll(new File(path));
     }
 
+    /**
+     * Add the files at the top level of a directory. Use a
+     * {@link com.pgrenaud.android.p2p.helper.DirectoryIndexer} to index a whole tree.
+     */
     public void addAll(File directory) {
         File[] files = directory.listFiles();
+        List<FileEntity> fileEntities = new ArrayList<>();
 
         for (File file : files) {
             if (file.isFile() && !file.isHidden()) {
-                add(new FileEntity(file));
+                fileEntities.add(new FileEntity(file));
             }
         }
+
+        addAll(fileEntities);
+    }
+
+    /**
+     * Add files at once, so that concurrent readers see them all in a single change of the list.
+     */
+    public void addAll(Collection<FileEntity> fileEntities) {
+        if (fileEntities.isEmpty()) {
+            return;
+        }
+
+        // Cached hashes are added along the files, instead of changing the list a second time
+        FileHasher hasher = this.hasher;
+        List<FileEntity> unhashed = new ArrayList<>();
+
+        if (hasher != null) {
+            for (FileEntity fileEntity : fileEntities) {
+                // Restored entities may already know their hash
+                if (fileEntity.getHash() == null && !hasher.fill(fileEntity)) {
+                    unhashed.add(fileEntity);
+                }
+            }
+        }
+
+        synchronized (this) {
+            for (FileEntity fileEntity : fileEntities) {
+                files.put(fileEntity.getUuid(), fileEntity);
+                record(fileEntity.getUuid(), fileEntity);
+            }
+        }
+
+        for (FileEntity fileEntity : unhashed) {
+            hasher.submit(fileEntity);
+        }
     }
 
     public void remove(FileEntity fileEntity) {
-        files.remove(fileEntity.getUuid());
+        FileEntity removed;
+
+        synchronized (this) {
+            removed = files.remove(fileEntity.getUuid());
+
+            if (removed != null) {
+                record(fileEntity.getUuid(), null);
+            }
+        }
+
+        FileHasher hasher = this.hasher;
+        if (hasher != null && removed != null) {
+            hasher.remove(removed);
+        }
     }
 
-    public void removeAll() {
+    /**
+     * Remove files at once, so that concurrent readers see them all in a single change of the list.
+     */
+    public void removeAll(Collection<UUID> uuids) {
+        List<FileEntity> removed = new ArrayList<>();
+
+        synchronized (this) {
+            for (UUID uuid : uuids) {
+                FileEntity fileEntity = files.remove(uuid);
+
+                if (fileEntity != null) {
+                    record(uuid, null);
+                    removed.add(fileEntity);
+                }
+            }
+        }
+
+        FileHasher hasher = this.hasher;
+        if (hasher != null) {
+            for (FileEntity fileEntity : removed) {
+                hasher.remove(fileEntity);
+            }
+        }
+    }
+
+    public synchronized void removeAll() {
         files.clear();
+        searchIndex.clear();
+        sortedIndex.clear();
+
+        // Every peer has to fetch the whole list again
+        changes.clear();
+        oldestVersion = version.incrementAndGet();
+    }
+
+    /**
+     *
+     * @param fileEntity File added or updated, or null if removed.
+     */
+    private void record(UUID uuid, FileEntity fileEntity) {
+        changes.add(new Change(version.incrementAndGet(), uuid, fileEntity));
+
+        if (fileEntity != null) {
+            searchIndex.put(fileEntity);
+            sortedIndex.put(fileEntity);
+        } else {
+            searchIndex.remove(uuid);
+            sortedIndex.remove(uuid);
+        }
+
+        if (changes.size() > maxChanges) {
+            oldestVersion = changes.removeFirst().version;
+        }
+    }
+
+    /**
+     * Search the files by name, without going through the whole list.
+     *
+     * @param query Words to look for, each one matching the words of the names starting with it.
+     * @param limit Maximum number of files returned.
+     * @return Returns the files whose name matches every word of the query, best matches first.
+     */
+    public List<FileEntity> search(String query, int limit) {
+        return searchIndex.search(query, limit);
+    }
+
+    /**
+     * Read the first page of the list in a given order. Each order is sorted on its first use only,
+     * and then kept sorted as files change.
+     *
+     * @param limit Maximum number of files in the page.
+     * @return Returns the first page, along the cursor of the next one.
+     */
+    public synchronized FilePageEntity getPage(Sort sort, boolean descending, int limit) {
+        return sortedIndex.page(version.get(), files, sort, descending, limit);
+    }
+
+    /**
+     * Read the page following a cursor, in the order of the first page. Files added or removed
+     * meanwhile are taken into account, without ever listing a file twice.
+     *
+     * @param cursor Cursor returned along the previous page.
+     * @param limit Maximum number of files in the page.
+     * @return Returns the page, along the cursor of the next one.
+     * @throws IllegalArgumentException If the cursor is invalid.
+     */
+    public synchronized FilePageEntity getPage(String cursor, int limit) {
+        return sortedIndex.page(version.get(), files, cursor, limit);
+    }
+
+    /**
+     * Compute the changes since a version, each file appearing at most once with its last change.
+     *
+     * @param since Version of the list known by the peer, as returned by a previous delta.
+     * @return Returns the changes since that version, or the whole list if the version is too old
+     * or unknown.
+     */
+    public synchronized FileDeltaEntity getDelta(long since) {
+        long current = version.get();
+
+        if (since < oldestVersion || since > current) {
+            return FileDeltaEntity.resync(current, new ArrayList<>(files.values()));
+        }
+
+        Map<UUID, FileEntity> latest = new LinkedHashMap<>();
+        for (Change change : changes) {
+            if (change.version > since) {
+                latest.put(change.uuid, change.fileEntity);
+            }
+        }
+
+        List<FileEntity> added = new ArrayList<>();
+        List<UUID> removed = new ArrayList<>();
+
+        for (Map.Entry<UUID, FileEntity> entry : latest.entrySet()) {
+            if (entry.getValue() != null) {
+                added.add(entry.getValue());
+            } else {
+                removed.add(entry.getKey());
+            }
+        }
+
+        return new FileDeltaEntity(current, added, removed);
+    }
+
+    /**
+     * Send this version along the DIRECTORY_CHANGE events, so that peers can fetch the changes since
+     * the version they know.
+     *
+     * @return Returns a number increased every time the list of files, or one of its files, changes.
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    @Override
+    public synchronized void onFilesHashed(List<FileEntity> fileEntities) {
+        for (FileEntity fileEntity : fileEntities) {
+            // The hash is part of the list, unless the file was removed or replaced meanwhile
+            if (files.get(fileEntity.getUuid()) == fileEntity) {
+                record(fileEntity.getUuid(), fileEntity);
+            }
+        }
+    }
+
+    /**
+     * Internal API
+     *
+     * @param hasher Hasher computing the content hash of the files added from now on, or null.
+     */
+    public void setHasher(FileHasher hasher) {
+        this.hasher = hasher;
+
+        if (hasher != null) {
+            hasher.setListener(this);
+        }
     }
 
     public String encode() {
-        Gson gson = new Gson();
+        return new String(getEncodedList().getJson(), EntityCodec.UTF_8);
+    }
 
-        return gson.toJson(getAll());
+    /**
+     * Serialize the list once per version, so that any number of requests for an unchanged list
+     * only cost a lookup. Concurrent requests for a new version share a single serialization.
+     *
+     * @return Returns the encoded list of files, at the current version.
+     */
+    public EncodedList getEncodedList() {
+        EncodedList cached = encoded;
+
+        if (cached != null && cached.version == version.get()) {
+            return cached;
+        }
+
+        synchronized (encodeLock) {
+            cached = encoded;
+
+            if (cached != null && cached.version == version.get()) {
+                return cached;
+            }
+
+            long snapshotVersion;
+            List<FileEntity> snapshot;
+
+            synchronized (this) {
+                snapshotVersion = version.get();
+                snapshot = new ArrayList<>(files.values());
+            }
+
+            // Encode straight to bytes, without an intermediate string
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try {
+                EntityCodec.encode(snapshot, COLLECTION_TYPE, baos);
+            } catch (IOException e) {
+                throw new IllegalStateException("In memory encoding can not fail", e);
+            }
+
+            cached = new EncodedList(snapshotVersion, snapshot, baos.toByteArray());
+            encoded = cached;
+
+            return cached;
+        }
     }
 
     public static Collection<FileEntity> decode(String json) throws JsonSyntaxException {
-        Gson gson = new Gson();
-        Type type = new TypeToken<Collection<FileEntity>>(){}.getType();
+        return EntityCodec.getGson().fromJson(json, COLLECTION_TYPE);
+    }
+
+    /**
+     * List of files serialized to JSON at a given version. The gzip compressed copy and the binary
+     * encoding are only built once requested.
+     */
+    public static class EncodedList {
+        private final long version;
+        private final List<FileEntity> files;
+        private final byte[] json;
 
-        return gson.fromJson(json, type);
+        private volatile byte[] gzip;
+        private volatile byte[] binary;
+
+        private EncodedList(long version, List<FileEntity> files, byte[] json) {
+            this.version = version;
+            this.files = files;
+            this.json = json;
+        }
+
+        private static byte[] compress(byte[] bytes) {
+            try {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream(bytes.length / 4 + 64);
+                GZIPOutputStream gos = new GZIPOutputStream(baos);
+                gos.write(bytes);
+                gos.close();
+
+                return baos.toByteArray();
+            } catch (IOException e) {
+                throw new IllegalStateException("In memory compression can not fail", e);
+            }
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         *
+         * @return Returns a strong validator for this version of the list.
+         */
+        public String getETag() {
+            return "\"" + Long.toHexString(version) + "\"";
+        }
+
+        /**
+         * The returned array is shared and must not be modified.
+         */
+        public byte[] getJson() {
+            return json;
+        }
+
+        /**
+         * The returned array is shared and must not be modified.
+         */
+        public byte[] getGzip() {
+            byte[] cached = gzip;
+
+            // Concurrent first requests may compress twice, which is harmless
+            if (cached == null) {
+                cached = compress(json);
+                gzip = cached;
+            }
+
+            return cached;
+        }
+
+        /**
+         *
+         * @return Returns a strong validator for the binary encoding of this version of the list.
+         */
+        public String getBinaryETag() {
+            return "\"" + Long.toHexString(version) + "-b\"";
+        }
+
+        /**
+         * The returned array is shared and must not be modified.
+         */
+        public byte[] getBinary() {
+            byte[] cached = binary;
+
+            // Concurrent first requests may encode twice, which is harmless
+            if (cached == null) {
+                cached = BinaryCodec.encodeFiles(files);
+                binary = cached;
+            }
+
+            return cached;
+        }
+    }
+
+    public enum Sort {
+        NAME,
+        SIZE,
+        MODIFIED,
+        ;
+    }
+
+    private static class Change {
+        private final long version;
+        private final UUID uuid;
+        private final FileEntity fileEntity;
+
+        private Change(long version, UUID uuid, FileEntity fileEntity) {
+            this.version = version;
+            this.uuid = uuid;
+            this.fileEntity = fileEntity;
+        }
     }
 }
@@ -0,0 +1,198 @@
+package com.pgrenaud.android.p2p.repository;
+
+import android.util.Log;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent cache of the content hash of the shared files, keyed by path. A hash is only
+ * returned while the size and last modification time of the file did not change, so that a
+ * restart does not rehash every file. The files removed from the list must be removed from the
+ * cache too, as the cache never checks which files still exist.
+ */
+public class HashRepository {
+
+    private final Map<String, HashEntry> hashes;
+    private final File storage;
+
+    private volatile boolean dirty; // Changed since the last save
+
+    /**
+     *
+     * @param storage File where the cache is persisted, or null to keep it in memory only.
+     */
+    public HashRepository(File storage) {
+        this.storage = storage;
+
+        hashes = new ConcurrentHashMap<>();
+    }
+
+    /**
+     *
+     * @return Returns the hash of the file, or null if it is unknown or the file changed since.
+     */
+    public String get(File file) {
+        HashEntry entry = hashes.get(file.getAbsolutePath());
+
+        if (entry != null && entry.size == file.length() && entry.lastModified == file.lastModified()) {
+            return entry.hash;
+        }
+
+        return null;
+    }
+
+    /**
+     *
+     * @param size Size of the file when hashing started.
+     * @param lastModified Last modification time of the file when hashing started.
+     */
+    public void put(File file, long size, long lastModified, String hash) {
+        hashes.put(file.getAbsolutePath(), new HashEntry(size, lastModified, hash));
+        dirty = true;
+    }
+
+    public void remove(File file) {
+        if (hashes.remove(file.getAbsolutePath()) != null) {
+            dirty = true;
+        }
+    }
+
+    public void removeAll() {
+        hashes.clear();
+        dirty = true;
+    }
+
+    public synchronized void load() {
+        if (storage == null || !storage.isFile()) {
+            return;
+        }
+
+        try {
+            Reader reader = new InputStreamReader(new FileInputStream(storage), "UTF-8");
+
+            try {
+                hashes.putAll(decode(reader));
+            } finally {
+                reader.close();
+            }
+
+            Log.d("HashRepository", "Loaded " + hashes.size() + " hashes");
+        } catch (IOException | JsonParseException e) {
+            Log.e("HashRepository", "Failed to load hashes, starting over", e);
+        }
+    }
+
+    /**
+     * Persist the cache, unless it did not change since the last save.
+     */
+    public synchronized void save() {
+        if (storage == null || !dirty) {
+            return;
+        }
+
+        dirty = false;
+
+        // Write aside then rename, so that a crash never leaves a truncated cache
+        File temp = new File(storage.getPath() + ".tmp");
+
+        try {
+            JsonWriter writer = new JsonWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"));
+
+            try {
+                encode(writer);
+            } finally {
+                writer.close();
+            }
+
+            if (!temp.renameTo(storage)) {
+                throw new IOException("Failed to rename " + temp + " to " + storage);
+            }
+        } catch (IOException e) {
+            dirty = true;
+
+            Log.e("HashRepository", "Failed to save hashes", e);
+        }
+    }
+
+    private void encode(JsonWriter out) throws IOException {
+        out.beginObject();
+        for (Map.Entry<String, HashEntry> entry : hashes.entrySet()) {
+            HashEntry value = entry.getValue();
+
+            out.name(entry.getKey()).beginObject();
+            out.name("size").value(value.size);
+            out.name("lastModified").value(value.lastModified);
+            out.name("hash").value(value.hash);
+            out.endObject();
+        }
+        out.endObject();
+    }
+
+    private static Map<String, HashEntry> decode(Reader reader) throws IOException, JsonParseException {
+        JsonReader in = new JsonReader(reader);
+        Map<String, HashEntry> entries = new HashMap<>();
+
+        try {
+            in.beginObject();
+            while (in.hasNext()) {
+                String path = in.nextName();
+                long size = 0;
+                long lastModified = 0;
+                String hash = null;
+
+                in.beginObject();
+                while (in.hasNext()) {
+                    switch (in.nextName()) {
+                        case "size":
+                            size = in.nextLong();
+                            break;
+                        case "lastModified":
+                            lastModified = in.nextLong();
+                            break;
+                        case "hash":
+                            hash = in.nextString();
+                            break;
+                        default:
+                            in.skipValue();
+                    }
+                }
+                in.endObject();
+
+                if (hash != null) {
+                    entries.put(path, new HashEntry(size, lastModified, hash));
+                }
+            }
+            in.endObject();
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new JsonSyntaxException(e);
+        }
+
+        return entries;
+    }
+
+    private static class HashEntry {
+        private final long size;
+        private final long lastModified;
+        private final String hash;
+
+        private HashEntry(long size, long lastModified, String hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+}
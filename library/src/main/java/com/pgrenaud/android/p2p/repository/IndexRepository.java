@@ -0,0 +1,140 @@
+package com.pgrenaud.android.p2p.repository;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import com.pgrenaud.android.p2p.entity.FileEntity;
+
+/**
+ * Persistent index of the shared files, so that a restart can serve the last known list right
+ * away, without accessing any of the files, while the directory is reconciled in the background.
+ * Each file is stored along its path, size, last modification time, UUID and hash, in a compact
+ * binary form read in a single pass.
+ */
+public class IndexRepository {
+
+    private static final int FORMAT_VERSION = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File storage;
+
+    /**
+     *
+     * @param storage File where the index is persisted.
+     */
+    public IndexRepository(File storage) {
+        this.storage = storage;
+    }
+
+    /**
+     *
+     * @param directory Shared directory, the index is ignored if it was saved for another one.
+     * @return Returns the files as they were when saved, or an empty list if there is no usable index.
+     */
+    public synchronized List<FileEntity> load(File directory) {
+        if (!storage.isFile()) {
+            return Collections.emptyList();
+        }
+
+        long start = System.currentTimeMillis();
+
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(storage), BUFFER_SIZE));
+
+            try {
+                if (in.readInt() != FORMAT_VERSION || !in.readUTF().equals(directory.getAbsolutePath())) {
+                    return Collections.emptyList();
+                }
+
+                int count = in.readInt();
+                List<FileEntity> files = new ArrayList<>(count);
+
+                for (int i = 0; i < count; i++) {
+                    File file = new File(in.readUTF());
+                    long size = in.readLong();
+                    long lastModified = in.readLong();
+                    UUID uuid = new UUID(in.readLong(), in.readLong());
+                    String hash = in.readBoolean() ? in.readUTF() : null;
+
+                    files.add(new FileEntity(file, uuid, size, lastModified, hash));
+                }
+
+                Log.d("IndexRepository", "Loaded " + count + " files in " + (System.currentTimeMillis() - start) + " ms");
+
+                return files;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.e("IndexRepository", "Failed to load index, starting over", e);
+
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Persist the local files, the ones without a local file are skipped.
+     *
+     * @param directory Shared directory the files were indexed from.
+     */
+    public synchronized void save(File directory, Collection<FileEntity> fileEntities) {
+        List<FileEntity> files = new ArrayList<>(fileEntities.size());
+
+        for (FileEntity fileEntity : fileEntities) {
+            if (fileEntity.getFile() != null) {
+                files.add(fileEntity);
+            }
+        }
+
+        // Write aside then rename, so that a crash never leaves a truncated index
+        File temp = new File(storage.getPath() + ".tmp");
+
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), BUFFER_SIZE));
+
+            try {
+                out.writeInt(FORMAT_VERSION);
+                out.writeUTF(directory.getAbsolutePath());
+                out.writeInt(files.size());
+
+                for (FileEntity fileEntity : files) {
+                    String hash = fileEntity.getHash();
+
+                    out.writeUTF(fileEntity.getFile().getAbsolutePath());
+                    out.writeLong(fileEntity.getSize());
+                    out.writeLong(fileEntity.getLastModified());
+                    out.writeLong(fileEntity.getUuid().getMostSignificantBits());
+                    out.writeLong(fileEntity.getUuid().getLeastSignificantBits());
+                    out.writeBoolean(hash != null);
+
+                    if (hash != null) {
+                        out.writeUTF(hash);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+
+            if (!temp.renameTo(storage)) {
+                throw new IOException("Failed to rename " + temp + " to " + storage);
+            }
+
+            Log.d("IndexRepository", "Saved " + files.size() + " files");
+        } catch (IOException e) {
+            Log.e("IndexRepository", "Failed to save index", e);
+        }
+    }
+}
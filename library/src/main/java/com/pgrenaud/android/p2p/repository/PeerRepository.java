@@ -1,7 +1,5 @@
 package com.pgrenaud.android.p2p.repository;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.google.gson.JsonSyntaxException;
 import com.google.gson.reflect.TypeToken;
 
@@ -11,11 +9,14 @@ import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 
+import com.pgrenaud.android.p2p.entity.EntityCodec;
 import com.pgrenaud.android.p2p.entity.PeerEntity;
 import com.pgrenaud.android.p2p.service.PeerService;
 
 public class PeerRepository {
 
+    private static final Type COLLECTION_TYPE = new TypeToken<Collection<PeerEntity>>(){}.getType();
+
     private final Map<UUID, PeerEntity> peers;
     private final PeerService service;
 
@@ -87,21 +88,14 @@ public class PeerRepository {
     }
 
     public String persistEncode() {
-        Gson gson = new Gson();
-
-        return gson.toJson(getAll());
+        return EntityCodec.getGson().toJson(getAll(), COLLECTION_TYPE);
     }
 
     public String encode() {
-        Gson gson = new GsonBuilder().setVersion(1.4).create();
-
-        return gson.toJson(getAll());
+        return EntityCodec.getWireGson().toJson(getAll(), COLLECTION_TYPE);
     }
 
     public static Collection<PeerEntity> decode(String json) throws JsonSyntaxException {
-        Gson gson = new Gson();
-        Type type = new TypeToken<Collection<PeerEntity>>(){}.getType();
-
-        return gson.fromJson(json, type);
+        return EntityCodec.getGson().fromJson(json, COLLECTION_TYPE);
     }
 }
@@ -7,7 +7,6 @@ import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
 
 import com.pgrenaud.android.p2p.entity.EventEntity;
 
@@ -23,11 +22,15 @@ public class QueueRepository {
         return queues.get(uuid);
     }
 
+    /**
+     *
+     * @return Returns the queue of the peer, created as an {@link EventQueue} if it did not exist.
+     */
     public BlockingQueue<EventEntity> getOrCreate(UUID uuid) {
         BlockingQueue<EventEntity> queue = get(uuid);
 
         if (queue == null) {
-            queue = new LinkedBlockingQueue<>();
+            queue = new EventQueue();
 
             add(uuid, queue);
         }
@@ -0,0 +1,263 @@
+package com.pgrenaud.android.p2p.repository;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import com.pgrenaud.android.p2p.entity.FileEntity;
+
+/**
+ * Inverted index of the names of the files, by token. Names are split on punctuation and on
+ * case and digit changes, so that "HolidayPhoto_2016.jpg" is found by "photo", "2016" or "jpg".
+ * Each token of a query matches the tokens starting with it, and a file must match every token.
+ */
+class SearchIndex {
+
+    private static final char MAX_CHAR = '\uffff'; // Upper bound of the tokens starting with a prefix
+    private static final Comparator<Result> RESULT_COMPARATOR = new Comparator<Result>() {
+        @Override
+        public int compare(Result a, Result b) {
+            if (a.score != b.score) {
+                return b.score - a.score;
+            }
+
+            return a.fileEntity.compareTo(b.fileEntity);
+        }
+    };
+
+    private final NavigableMap<String, Set<UUID>> postings; // Guarded by this
+    private final Map<UUID, Entry> entries; // Guarded by this
+
+    SearchIndex() {
+        postings = new TreeMap<>();
+        entries = new HashMap<>();
+    }
+
+    synchronized void put(FileEntity fileEntity) {
+        Entry previous = entries.get(fileEntity.getUuid());
+
+        if (previous != null) {
+            if (previous.fileEntity.getName().equals(fileEntity.getName())) {
+                entries.put(fileEntity.getUuid(), new Entry(fileEntity, previous.tokens));
+                return;
+            }
+
+            remove(fileEntity.getUuid());
+        }
+
+        Entry entry = new Entry(fileEntity, tokenize(fileEntity.getName(), true));
+        entries.put(fileEntity.getUuid(), entry);
+
+        for (String token : entry.tokens) {
+            Set<UUID> uuids = postings.get(token);
+
+            if (uuids == null) {
+                uuids = new HashSet<>();
+                postings.put(token, uuids);
+            }
+
+            uuids.add(fileEntity.getUuid());
+        }
+    }
+
+    synchronized void remove(UUID uuid) {
+        Entry entry = entries.remove(uuid);
+
+        if (entry == null) {
+            return;
+        }
+
+        for (String token : entry.tokens) {
+            Set<UUID> uuids = postings.get(token);
+
+            if (uuids != null && uuids.remove(uuid) && uuids.isEmpty()) {
+                postings.remove(token);
+            }
+        }
+    }
+
+    synchronized void clear() {
+        postings.clear();
+        entries.clear();
+    }
+
+    /**
+     *
+     * @return Returns the files matching every token of the query, those matching whole tokens
+     * first, then by name.
+     */
+    synchronized List<FileEntity> search(String query, int limit) {
+        List<String> terms = tokenize(query, false);
+
+        if (terms.isEmpty() || limit <= 0) {
+            return Collections.emptyList();
+        }
+
+        // Go through the files matching the rarest term only, checking the others on their tokens
+        Collection<Set<UUID>> rarest = null;
+        int rarestSize = Integer.MAX_VALUE;
+
+        for (String term : terms) {
+            Collection<Set<UUID>> postings = this.postings.subMap(term, true, term + MAX_CHAR, false).values();
+            int size = 0;
+
+            for (Set<UUID> uuids : postings) {
+                size += uuids.size();
+            }
+
+            if (size < rarestSize) {
+                rarest = postings;
+                rarestSize = size;
+            }
+        }
+
+        // Keep the best results only, the worst one on top
+        PriorityQueue<Result> best = new PriorityQueue<>(limit + 1, Collections.reverseOrder(RESULT_COMPARATOR));
+        Set<UUID> seen = new HashSet<>();
+
+        for (Set<UUID> uuids : rarest) {
+            for (UUID uuid : uuids) {
+                if (!seen.add(uuid)) {
+                    continue; // Matched by several tokens
+                }
+
+                Entry entry = entries.get(uuid);
+                int score = entry.match(terms);
+
+                if (score >= 0) {
+                    best.add(new Result(entry.fileEntity, score));
+
+                    if (best.size() > limit) {
+                        best.poll();
+                    }
+                }
+            }
+        }
+
+        List<Result> results = new ArrayList<>(best);
+        Collections.sort(results, RESULT_COMPARATOR);
+
+        List<FileEntity> fileEntities = new ArrayList<>(results.size());
+
+        for (Result result : results) {
+            fileEntities.add(result.fileEntity);
+        }
+
+        return fileEntities;
+    }
+
+    /**
+     *
+     * @param split Whether runs of letters and digits are also split on case and digit changes,
+     *              along the whole run.
+     */
+    static List<String> tokenize(String text, boolean split) {
+        Collection<String> tokens = new LinkedHashSet<>();
+        int length = text.length();
+        int start = -1;
+
+        for (int i = 0; i <= length; i++) {
+            char c = i < length ? text.charAt(i) : ' ';
+
+            if (Character.isLetterOrDigit(c)) {
+                if (start < 0) {
+                    start = i;
+                }
+            } else if (start >= 0) {
+                String run = text.substring(start, i);
+                tokens.add(run.toLowerCase(Locale.ROOT));
+
+                if (split) {
+                    splitRun(run, tokens);
+                }
+
+                start = -1;
+            }
+        }
+
+        return new ArrayList<>(tokens);
+    }
+
+    private static void splitRun(String run, Collection<String> tokens) {
+        int start = 0;
+
+        for (int i = 1; i < run.length(); i++) {
+            char previous = run.charAt(i - 1);
+            char c = run.charAt(i);
+
+            boolean boundary = (Character.isLowerCase(previous) && Character.isUpperCase(c))
+                    || Character.isDigit(previous) != Character.isDigit(c);
+
+            if (boundary) {
+                tokens.add(run.substring(start, i).toLowerCase(Locale.ROOT));
+                start = i;
+            }
+        }
+
+        if (start > 0) {
+            tokens.add(run.substring(start).toLowerCase(Locale.ROOT));
+        }
+    }
+
+    private static class Entry {
+        private final FileEntity fileEntity;
+        private final List<String> tokens;
+
+        private Entry(FileEntity fileEntity, List<String> tokens) {
+            this.fileEntity = fileEntity;
+            this.tokens = tokens;
+        }
+
+        /**
+         *
+         * @return Returns the number of terms matching a whole token, or -1 if a term matches none.
+         */
+        private int match(List<String> terms) {
+            int score = 0;
+
+            for (String term : terms) {
+                boolean prefix = false;
+                boolean whole = false;
+
+                for (String token : tokens) {
+                    if (token.startsWith(term)) {
+                        prefix = true;
+                        whole |= token.length() == term.length();
+                    }
+                }
+
+                if (!prefix) {
+                    return -1;
+                }
+
+                if (whole) {
+                    score++;
+                }
+            }
+
+            return score;
+        }
+    }
+
+    private static class Result {
+        private final FileEntity fileEntity;
+        private final int score;
+
+        private Result(FileEntity fileEntity, int score) {
+            this.fileEntity = fileEntity;
+            this.score = score;
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package com.pgrenaud.android.p2p.repository;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import com.pgrenaud.android.p2p.entity.FileEntity;
+import com.pgrenaud.android.p2p.entity.FilePageEntity;
+import com.pgrenaud.android.p2p.repository.FileRepository.Sort;
+
+/**
+ * Files kept sorted in each order requested so far, so that a page is read without sorting the
+ * whole list. An order is sorted once, on its first use, and then updated along the list. Cursors
+ * hold the sort key of the last file of a page, so that they stay valid when that file is removed.
+ */
+class SortedIndex {
+
+    private static final int CURSOR_VERSION = 1;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final Map<UUID, Key> keys; // Guarded by this
+    private final Map<Sort, TreeMap<Key, FileEntity>> orders; // Guarded by this
+
+    SortedIndex() {
+        keys = new HashMap<>();
+        orders = new EnumMap<>(Sort.class);
+    }
+
+    synchronized void put(FileEntity fileEntity) {
+        Key key = new Key(fileEntity);
+        Key previous = keys.put(fileEntity.getUuid(), key);
+
+        for (TreeMap<Key, FileEntity> order : orders.values()) {
+            if (previous != null) {
+                order.remove(previous);
+            }
+
+            order.put(key, fileEntity);
+        }
+    }
+
+    synchronized void remove(UUID uuid) {
+        Key key = keys.remove(uuid);
+
+        if (key != null) {
+            for (TreeMap<Key, FileEntity> order : orders.values()) {
+                order.remove(key);
+            }
+        }
+    }
+
+    synchronized void clear() {
+        keys.clear();
+        orders.clear();
+    }
+
+    /**
+     *
+     * @param files Every file of the list, used to sort the order on its first use.
+     */
+    synchronized FilePageEntity page(long version, Map<UUID, FileEntity> files, Sort sort, boolean descending, int limit) {
+        return page(version, files, sort, descending, null, limit);
+    }
+
+    /**
+     *
+     * @param files Every file of the list, used to sort the order on its first use.
+     * @param cursor Cursor returned along the previous page, holding its order.
+     * @throws IllegalArgumentException If the cursor is invalid.
+     */
+    synchronized FilePageEntity page(long version, Map<UUID, FileEntity> files, String cursor, int limit) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(fromHex(cursor)));
+
+        try {
+            if (in.readByte() != CURSOR_VERSION) {
+                throw new IllegalArgumentException("Unknown cursor version");
+            }
+
+            int ordinal = in.readByte();
+            if (ordinal < 0 || ordinal >= Sort.values().length) {
+                throw new IllegalArgumentException("Unknown sort order");
+            }
+
+            boolean descending = in.readBoolean();
+            Key after = new Key(in.readUTF(), in.readLong(), in.readLong(), new UUID(in.readLong(), in.readLong()));
+
+            return page(version, files, Sort.values()[ordinal], descending, after, limit);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Truncated cursor", e);
+        }
+    }
+
+    private FilePageEntity page(long version, Map<UUID, FileEntity> files, Sort sort, boolean descending, Key after, int limit) {
+        NavigableMap<Key, FileEntity> order = getOrder(sort, files);
+
+        if (descending) {
+            order = order.descendingMap();
+        }
+
+        if (after != null) {
+            order = order.tailMap(after, false);
+        }
+
+        List<FileEntity> page = new ArrayList<>(limit);
+        Iterator<Map.Entry<Key, FileEntity>> it = order.entrySet().iterator();
+        Key last = null;
+
+        while (page.size() < limit && it.hasNext()) {
+            Map.Entry<Key, FileEntity> entry = it.next();
+
+            page.add(entry.getValue());
+            last = entry.getKey();
+        }
+
+        String next = it.hasNext() ? toCursor(sort, descending, last) : null;
+
+        return new FilePageEntity(version, page, next);
+    }
+
+    private TreeMap<Key, FileEntity> getOrder(Sort sort, Map<UUID, FileEntity> files) {
+        TreeMap<Key, FileEntity> order = orders.get(sort);
+
+        if (order == null) {
+            order = new TreeMap<>(getComparator(sort));
+
+            for (FileEntity fileEntity : files.values()) {
+                Key key = keys.get(fileEntity.getUuid());
+
+                if (key != null) {
+                    order.put(key, fileEntity);
+                }
+            }
+
+            orders.put(sort, order);
+        }
+
+        return order;
+    }
+
+    private static String toCursor(Sort sort, boolean descending, Key key) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+
+        try {
+            out.writeByte(CURSOR_VERSION);
+            out.writeByte(sort.ordinal());
+            out.writeBoolean(descending);
+            out.writeUTF(key.name);
+            out.writeLong(key.size);
+            out.writeLong(key.lastModified);
+            out.writeLong(key.uuid.getMostSignificantBits());
+            out.writeLong(key.uuid.getLeastSignificantBits());
+        } catch (IOException e) {
+            throw new IllegalStateException("In memory encoding can not fail", e);
+        }
+
+        byte[] bytes = baos.toByteArray();
+        char[] hex = new char[bytes.length * 2];
+
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+
+        return new String(hex);
+    }
+
+    private static byte[] fromHex(String hex) {
+        if (hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("Invalid cursor length");
+        }
+
+        byte[] bytes = new byte[hex.length() / 2];
+
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(i * 2), 16);
+            int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException("Invalid cursor character");
+            }
+
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+
+        return bytes;
+    }
+
+    private static Comparator<Key> getComparator(final Sort sort) {
+        return new Comparator<Key>() {
+            @Override
+            public int compare(Key a, Key b) {
+                int result = 0;
+
+                if (sort == Sort.SIZE) {
+                    result = Long.compare(a.size, b.size);
+                } else if (sort == Sort.MODIFIED) {
+                    result = Long.compare(a.lastModified, b.lastModified);
+                }
+
+                // Same order as FileEntity.compareTo, the uuid makes it total
+                if (result == 0) {
+                    result = a.name.compareTo(b.name);
+                }
+
+                if (result == 0) {
+                    result = a.uuid.compareTo(b.uuid);
+                }
+
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Sort fields of a file, as they were when it was added, so that the file is found again.
+     */
+    private static class Key {
+        private final String name;
+        private final long size;
+        private final long lastModified;
+        private final UUID uuid;
+
+        private Key(FileEntity fileEntity) {
+            this(fileEntity.getName() != null ? fileEntity.getName() : "",
+                    fileEntity.getSize() != null ? fileEntity.getSize() : 0,
+                    fileEntity.getLastModified(), fileEntity.getUuid());
+        }
+
+        private Key(String name, long size, long lastModified, UUID uuid) {
+            this.name = name;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.uuid = uuid;
+        }
+    }
+}
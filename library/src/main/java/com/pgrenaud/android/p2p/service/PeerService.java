@@ -19,25 +19,66 @@ import android.support.annotation.Nullable;
 import android.text.format.Formatter;
 import android.util.Log;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import com.google.gson.JsonSyntaxException;
 import com.pgrenaud.android.p2p.R;
+import com.pgrenaud.android.p2p.entity.FileEntity;
 import com.pgrenaud.android.p2p.entity.PeerEntity;
+import com.pgrenaud.android.p2p.helper.DirectoryIndexer;
+import com.pgrenaud.android.p2p.helper.DirectoryWatcher;
+import com.pgrenaud.android.p2p.helper.FileHasher;
+import com.pgrenaud.android.p2p.helper.HttpClientWrapper;
+import com.pgrenaud.android.p2p.helper.HttpConnectionPool;
+import com.pgrenaud.android.p2p.helper.PeerSearch;
 import com.pgrenaud.android.p2p.web.RequestHandler;
 import com.pgrenaud.android.p2p.peering.PeerHive;
 import com.pgrenaud.android.p2p.repository.FileRepository;
+import com.pgrenaud.android.p2p.repository.HashRepository;
+import com.pgrenaud.android.p2p.repository.IndexRepository;
 import com.pgrenaud.android.p2p.repository.PeerRepository;
 import com.pgrenaud.android.p2p.repository.QueueRepository;
+import com.pgrenaud.android.p2p.web.BoundedAsyncRunner;
+import com.pgrenaud.android.p2p.web.BoundedAsyncRunner.RejectionPolicy;
 import com.pgrenaud.android.p2p.web.RoutableWebServer;
 
 public class PeerService extends Service {
 
     public static final String EXTRA_DIRECTORY_PATH = "com.pgrenaud.android.p2p.service.EXTRA_DIRECTORY_PATH";
+    public static final String EXTRA_DIRECTORY_MAX_DEPTH = "com.pgrenaud.android.p2p.service.EXTRA_DIRECTORY_MAX_DEPTH";
+    public static final String EXTRA_DIRECTORY_WATCH = "com.pgrenaud.android.p2p.service.EXTRA_DIRECTORY_WATCH";
+    public static final String EXTRA_DIRECTORY_POLLING_INTERVAL = "com.pgrenaud.android.p2p.service.EXTRA_DIRECTORY_POLLING_INTERVAL";
     public static final String EXTRA_PEER_NAME = "com.pgrenaud.android.p2p.service.EXTRA_PEER_NAME";
     public static final String EXTRA_SERVER_PORT = "com.pgrenaud.android.p2p.service.EXTRA_SERVER_PORT";
+    public static final String EXTRA_SERVER_MAX_CONTROL_THREADS = "com.pgrenaud.android.p2p.service.EXTRA_SERVER_MAX_CONTROL_THREADS";
+    public static final String EXTRA_SERVER_MAX_CONTROL_BACKLOG = "com.pgrenaud.android.p2p.service.EXTRA_SERVER_MAX_CONTROL_BACKLOG";
+    public static final String EXTRA_SERVER_MAX_STREAMING_THREADS = "com.pgrenaud.android.p2p.service.EXTRA_SERVER_MAX_STREAMING_THREADS";
+    public static final String EXTRA_SERVER_MAX_STREAMING_BACKLOG = "com.pgrenaud.android.p2p.service.EXTRA_SERVER_MAX_STREAMING_BACKLOG";
+    public static final String EXTRA_SERVER_MAX_BULK_THREADS = "com.pgrenaud.android.p2p.service.EXTRA_SERVER_MAX_BULK_THREADS";
+    public static final String EXTRA_SERVER_MAX_BULK_BACKLOG = "com.pgrenaud.android.p2p.service.EXTRA_SERVER_MAX_BULK_BACKLOG";
+    public static final String EXTRA_SERVER_REJECTION_POLICY = "com.pgrenaud.android.p2p.service.EXTRA_SERVER_REJECTION_POLICY";
+    public static final String EXTRA_SERVER_ZERO_COPY = "com.pgrenaud.android.p2p.service.EXTRA_SERVER_ZERO_COPY";
+    public static final String EXTRA_SERVER_GZIP_THRESHOLD = "com.pgrenaud.android.p2p.service.EXTRA_SERVER_GZIP_THRESHOLD";
+    public static final String EXTRA_HTTP_MAX_CONNECTIONS = "com.pgrenaud.android.p2p.service.EXTRA_HTTP_MAX_CONNECTIONS";
+    public static final String EXTRA_HTTP_MAX_CONNECTIONS_PER_ROUTE = "com.pgrenaud.android.p2p.service.EXTRA_HTTP_MAX_CONNECTIONS_PER_ROUTE";
+    public static final String EXTRA_HTTP_CONNECT_TIMEOUT = "com.pgrenaud.android.p2p.service.EXTRA_HTTP_CONNECT_TIMEOUT";
+    public static final String EXTRA_HTTP_SOCKET_TIMEOUT = "com.pgrenaud.android.p2p.service.EXTRA_HTTP_SOCKET_TIMEOUT";
+    public static final String EXTRA_FILE_HASH_THREADS = "com.pgrenaud.android.p2p.service.EXTRA_FILE_HASH_THREADS";
 
     public static final int DEFAULT_SERVER_PORT = 8099;
+    public static final int DEFAULT_SERVER_MAX_CONTROL_THREADS = 64;
+    public static final int DEFAULT_SERVER_MAX_CONTROL_BACKLOG = 32;
+    public static final int DEFAULT_SERVER_MAX_STREAMING_THREADS = 64;
+    public static final int DEFAULT_SERVER_MAX_STREAMING_BACKLOG = 16;
+    public static final int DEFAULT_SERVER_MAX_BULK_THREADS = 4;
+    public static final int DEFAULT_SERVER_MAX_BULK_BACKLOG = 16;
+    public static final RejectionPolicy DEFAULT_SERVER_REJECTION_POLICY = RejectionPolicy.SERVICE_UNAVAILABLE;
+
+    private static final String HASH_CACHE_FILENAME = "file_hashes.json";
+    private static final String FILE_INDEX_FILENAME = "file_index.bin";
 
     private final IBinder binder = new PeerServiceBinder();
     private final QueueRepository queueRepository = new QueueRepository();
@@ -48,8 +89,16 @@ public class PeerService extends Service {
     private PeerServiceListener listener;
     private PeerEntity selfPeer;
     private RoutableWebServer server;
+    private BoundedAsyncRunner serverRunner;
+    private HttpConnectionPool httpConnectionPool;
+    private FileHasher fileHasher;
+    private DirectoryIndexer directoryIndexer;
+    private DirectoryWatcher directoryWatcher;
+    private IndexRepository indexRepository;
+    private File directory;
 
-    private boolean running = false;
+    private volatile boolean running = false;
+    private boolean loaded = false; // Guarded by this
 
     @Override
     public void onCreate() {
@@ -72,11 +121,19 @@ public class PeerService extends Service {
         if (!running) {
             Log.d("PeerService", "Starting PeerService");
 
+            // Hashes are disabled when no thread is allowed to compute them
+            final int fileHashThreads = intent.getIntExtra(EXTRA_FILE_HASH_THREADS, FileHasher.DEFAULT_THREADS);
+
             String path = intent.getStringExtra(EXTRA_DIRECTORY_PATH);
             if (path != null) {
-                fileRepository.addAll(path);
+                directory = new File(path);
             }
 
+            // Only the top level is indexed by default, sub directories are indexed in the background
+            final int directoryMaxDepth = intent.getIntExtra(EXTRA_DIRECTORY_MAX_DEPTH, 0);
+            final boolean directoryWatch = intent.getBooleanExtra(EXTRA_DIRECTORY_WATCH, false);
+            final int directoryPollingInterval = intent.getIntExtra(EXTRA_DIRECTORY_POLLING_INTERVAL, 0);
+
             String peerName = intent.getStringExtra(EXTRA_PEER_NAME);
             if (path == null) {
                 peerName = getString(R.string.pref_peer_name_default);
@@ -93,9 +150,123 @@ public class PeerService extends Service {
             selfPeer = new PeerEntity(peerName, serverAddress, serverPort);
             Log.d("PeerService", "Self peer is " + selfPeer);
 
+            int httpMaxConnections = intent.getIntExtra(EXTRA_HTTP_MAX_CONNECTIONS, HttpConnectionPool.DEFAULT_MAX_CONNECTIONS);
+            int httpMaxConnectionsPerRoute = intent.getIntExtra(EXTRA_HTTP_MAX_CONNECTIONS_PER_ROUTE, HttpConnectionPool.DEFAULT_MAX_CONNECTIONS_PER_ROUTE);
+            int httpConnectTimeout = intent.getIntExtra(EXTRA_HTTP_CONNECT_TIMEOUT, HttpConnectionPool.DEFAULT_CONNECT_TIMEOUT);
+            int httpSocketTimeout = intent.getIntExtra(EXTRA_HTTP_SOCKET_TIMEOUT, HttpConnectionPool.DEFAULT_SOCKET_TIMEOUT);
+
+            httpConnectionPool = new HttpConnectionPool(httpMaxConnections, httpMaxConnectionsPerRoute, httpConnectTimeout, httpSocketTimeout);
+
             RequestHandler requestHandler = new RequestHandler(queueRepository, fileRepository, peerRepository, peerHive);
 
+            int serverMaxControlThreads = intent.getIntExtra(EXTRA_SERVER_MAX_CONTROL_THREADS, DEFAULT_SERVER_MAX_CONTROL_THREADS);
+            int serverMaxControlBacklog = intent.getIntExtra(EXTRA_SERVER_MAX_CONTROL_BACKLOG, DEFAULT_SERVER_MAX_CONTROL_BACKLOG);
+            int serverMaxStreamingThreads = intent.getIntExtra(EXTRA_SERVER_MAX_STREAMING_THREADS, DEFAULT_SERVER_MAX_STREAMING_THREADS);
+            int serverMaxStreamingBacklog = intent.getIntExtra(EXTRA_SERVER_MAX_STREAMING_BACKLOG, DEFAULT_SERVER_MAX_STREAMING_BACKLOG);
+            int serverMaxBulkThreads = intent.getIntExtra(EXTRA_SERVER_MAX_BULK_THREADS, DEFAULT_SERVER_MAX_BULK_THREADS);
+            int serverMaxBulkBacklog = intent.getIntExtra(EXTRA_SERVER_MAX_BULK_BACKLOG, DEFAULT_SERVER_MAX_BULK_BACKLOG);
+            RejectionPolicy serverRejectionPolicy = DEFAULT_SERVER_REJECTION_POLICY;
+
+            String policy = intent.getStringExtra(EXTRA_SERVER_REJECTION_POLICY);
+            if (policy != null) {
+                try {
+                    serverRejectionPolicy = RejectionPolicy.valueOf(policy);
+                } catch (IllegalArgumentException e) {
+                    Log.e("PeerService", "Unknown rejection policy " + policy + ", using default", e);
+                }
+            }
+
+            serverRunner = new BoundedAsyncRunner(serverMaxControlThreads, serverMaxControlBacklog,
+                    serverMaxStreamingThreads, serverMaxStreamingBacklog,
+                    serverMaxBulkThreads, serverMaxBulkBacklog, serverRejectionPolicy);
+
             server = new RoutableWebServer(serverPort, requestHandler);
+            server.setAsyncRunner(serverRunner);
+            server.setZeroCopyEnabled(intent.getBooleanExtra(EXTRA_SERVER_ZERO_COPY, true));
+            server.setGzipThreshold(intent.getIntExtra(EXTRA_SERVER_GZIP_THRESHOLD, RoutableWebServer.DEFAULT_GZIP_THRESHOLD));
+
+            running = true;
+
+            // Loading the hash cache and the last known list takes seconds on large directories,
+            // the server is started once they are loaded
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    load(fileHashThreads, directoryMaxDepth, directoryWatch, directoryPollingInterval);
+                }
+            }, "PeerService Load").start();
+
+            Log.d("PeerService", "PeerService started");
+        }
+
+        return START_STICKY;
+    }
+
+    /**
+     * Load the hash cache and the last known list of the directory, start watching and indexing
+     * it, then start the server. Runs in the background, the service may be destroyed meanwhile.
+     */
+    private void load(int fileHashThreads, int directoryMaxDepth, boolean directoryWatch, int directoryPollingInterval) {
+        HashRepository hashRepository = null;
+        if (fileHashThreads > 0) {
+            hashRepository = new HashRepository(new File(getFilesDir(), HASH_CACHE_FILENAME));
+            hashRepository.load();
+        }
+
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+
+            if (hashRepository != null) {
+                fileHasher = new FileHasher(hashRepository, fileHashThreads);
+                fileRepository.setHasher(fileHasher);
+            }
+        }
+
+        final IndexRepository indexRepository = directory != null ? new IndexRepository(new File(getFilesDir(), FILE_INDEX_FILENAME)) : null;
+        List<FileEntity> indexed = new ArrayList<>();
+
+        if (indexRepository != null) {
+            // Serve the last known list as soon as the server starts, it is reconciled with the directory in the background
+            indexed = indexRepository.load(directory);
+            fileRepository.addAll(indexed);
+        }
+
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+
+            this.indexRepository = indexRepository;
+
+            if (directory != null) {
+                // Watch before indexing, so that no change is missed in between
+                if (directoryWatch) {
+                    directoryWatcher = new DirectoryWatcher(fileRepository, queueRepository);
+                    directoryWatcher.setMaxDepth(directoryMaxDepth);
+                    directoryWatcher.setPollingInterval(directoryPollingInterval);
+                    directoryWatcher.start(directory);
+                }
+
+                if (directoryMaxDepth > 0 || !indexed.isEmpty()) {
+                    directoryIndexer = new DirectoryIndexer(fileRepository);
+                    directoryIndexer.setMaxDepth(directoryMaxDepth);
+                    directoryIndexer.setListener(new DirectoryIndexer.IndexListener() {
+                        @Override
+                        public void onProgress(int directories, int files) {
+                        }
+
+                        @Override
+                        public void onIndexFinished(int directories, int files) {
+                            indexRepository.save(directory, fileRepository.getAll());
+                        }
+                    });
+                    directoryIndexer.start(directory);
+                } else {
+                    fileRepository.addAll(directory);
+                }
+            }
 
             try {
                 server.start();
@@ -103,12 +274,10 @@ public class PeerService extends Service {
                 Log.e("PeerService", "Failed to start RoutableWebServer", e); // TODO: Send error to client
             }
 
-            running = true;
+            loaded = true;
 
-            Log.d("PeerService", "PeerService started");
+            Log.d("PeerService", "PeerService loaded " + indexed.size() + " files");
         }
-
-        return START_STICKY;
     }
 
     @Nullable
@@ -131,12 +300,42 @@ public class PeerService extends Service {
     }
 
     @Override
-    public void onDestroy() {
+    public synchronized void onDestroy() {
         if (running) {
             Log.d("PeerService", "Destroying PeerService");
 
+            running = false;
+
             peerHive.stop();
             server.stop();
+            httpConnectionPool.close();
+
+            if (directoryWatcher != null) {
+                directoryWatcher.stop();
+            }
+
+            if (directoryIndexer != null) {
+                directoryIndexer.shutdown();
+            }
+
+            if (fileHasher != null) {
+                fileHasher.shutdown();
+            }
+
+            // A list not loaded yet would replace the last known one with part of it
+            if (indexRepository != null && loaded) {
+                final IndexRepository indexRepository = this.indexRepository;
+                final File directory = this.directory;
+                final List<FileEntity> fileEntities = new ArrayList<>(fileRepository.getAll());
+
+                // Saved in the background, so that a large list does not hold the main thread
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        indexRepository.save(directory, fileEntities);
+                    }
+                }, "PeerService Save").start();
+            }
 
             // Saving peers to persistent storage
             SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getService());
@@ -148,6 +347,23 @@ public class PeerService extends Service {
         }
     }
 
+    /**
+     * Search the files of every online peer, the local files can be searched through the
+     * {@link FileRepository}.
+     *
+     * @param query Words to look for in the names of the files.
+     * @param limit Maximum number of files returned by each peer.
+     * @param deadline Milliseconds after which the peers that did not answer are given up.
+     * @return Returns the search in progress, which can be cancelled.
+     */
+    public PeerSearch search(String query, int limit, long deadline, PeerSearch.SearchListener listener) {
+        PeerSearch search = new PeerSearch(peerHive.getHttpClient());
+        search.setListener(listener);
+        search.start(peerRepository.getAll(), query, limit, deadline);
+
+        return search;
+    }
+
     public void registerNfcCallback(Activity activity) {
         NfcAdapter nfcAdapter = NfcAdapter.getDefaultAdapter(this);
         if (nfcAdapter != null) {
@@ -232,6 +448,25 @@ public class PeerService extends Service {
         return selfPeer;
     }
 
+    /**
+     * Use to perform requests to other peers. The returned client is a view of the connection
+     * pool of the service, it is cheap to create and closing it leaves the pool open.
+     */
+    public HttpClientWrapper getHttpClient() {
+        return new HttpClientWrapper(httpConnectionPool);
+    }
+
+    public HttpConnectionPool getHttpConnectionPool() {
+        return httpConnectionPool;
+    }
+
+    /**
+     * Use to monitor the web server load, through its active, queued and rejected connection counts.
+     */
+    public BoundedAsyncRunner getServerRunner() {
+        return serverRunner;
+    }
+
     public Service getService() {
         return this;
     }
@@ -5,29 +5,279 @@ import android.util.Log;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
 
+import com.pgrenaud.android.p2p.entity.BinaryCodec;
 import com.pgrenaud.android.p2p.entity.EventEntity;
 
 import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoWSD;
 
-public class BasicWebServer extends NanoHTTPD {
+public class BasicWebServer extends NanoWSD {
 
     public static final String MIME_JSON = "application/json";
+    public static final String MIME_JSON_STREAM = "application/x-ndjson";
+    public static final String MIME_MULTIPART_BYTERANGES = "multipart/byteranges";
+    public static final int DEFAULT_GZIP_THRESHOLD = 1024; // Bytes, smaller responses fit in a packet anyway
+
+    private static final int MAX_RANGES = 16;
+    private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss 'GMT'";
+
+    // Channel of the connection being served by the current thread, if any
+    private static final ThreadLocal<SocketChannel> CURRENT_CHANNEL = new ThreadLocal<>();
+
+    private final CompressionStats compressionStats = new CompressionStats();
+
+    private volatile int gzipThreshold = DEFAULT_GZIP_THRESHOLD;
 
     public BasicWebServer(int port) {
         super(port);
+
+        setZeroCopyEnabled(true);
     }
 
     public BasicWebServer(String hostname, int port) {
         super(hostname, port);
+
+        setZeroCopyEnabled(true);
+    }
+
+    /**
+     * Accept connections on channels, so that files are sent straight from the disk to the socket
+     * with {@link FileChannel#transferTo}. Files are copied through a buffer when disabled, or
+     * when the server does not run on a {@link BoundedAsyncRunner}. Must be called before {@link #start()}.
+     */
+    public void setZeroCopyEnabled(boolean enabled) {
+        if (enabled) {
+            setServerSocketFactory(new ServerSocketFactory() {
+                @Override
+                public ServerSocket create() throws IOException {
+                    return ServerSocketChannel.open().socket();
+                }
+            });
+        } else {
+            setServerSocketFactory(new DefaultServerSocketFactory());
+        }
+    }
+
+    static SocketChannel getCurrentChannel() {
+        return CURRENT_CHANNEL.get();
+    }
+
+    /**
+     * Internal API
+     *
+     * @param channel Channel of the connection served by the current thread, or null once done.
+     */
+    static void setCurrentChannel(SocketChannel channel) {
+        if (channel == null) {
+            CURRENT_CHANNEL.remove();
+        } else {
+            CURRENT_CHANNEL.set(channel);
+        }
+    }
+
+    @Override
+    protected ClientHandler createClientHandler(Socket finalAccept, InputStream inputStream) {
+        ClientHandler handler = super.createClientHandler(finalAccept, inputStream);
+
+        if (asyncRunner instanceof BoundedAsyncRunner) {
+            // The runner serves the requests itself, to classify each of them
+            ((BoundedAsyncRunner) asyncRunner).register(handler, finalAccept, inputStream, this);
+        }
+
+        return handler;
+    }
+
+    /**
+     *
+     * @return Returns a session reading the requests of a connection one after the other, as
+     * NanoHTTPD creates for each connection it serves.
+     */
+    IHTTPSession createSession(Socket socket, InputStream inputStream) throws IOException {
+        return new HTTPSession(getTempFileManagerFactory().create(), inputStream, socket.getOutputStream(), socket.getInetAddress());
+    }
+
+    /**
+     * Classify a request, to decide on which pool of the {@link BoundedAsyncRunner} it is served.
+     * Subclasses should override this method to move their long transfers and long-lived
+     * requests out of the control pool.
+     */
+    public RequestClass classify(Method method, String uri) {
+        return RequestClass.CONTROL;
+    }
+
+    /**
+     *
+     * @param threshold Minimum size in bytes of the responses compressed by {@link #compress}, or -1 to never compress.
+     */
+    public void setGzipThreshold(int threshold) {
+        this.gzipThreshold = threshold;
+    }
+
+    public CompressionStats getCompressionStats() {
+        return compressionStats;
+    }
+
+    /**
+     * Compress a response held in memory with gzip, if the client accepts it and the response is
+     * large enough. NanoWSD never lets NanoHTTPD compress, so subclasses must pass the responses of
+     * {@link #serve(IHTTPSession)} through this method. Files, streams and responses already
+     * encoded are returned as is.
+     */
+    protected Response compress(IHTTPSession session, Response response) {
+        int threshold = gzipThreshold;
+
+        if (threshold < 0 || session.getMethod() == Method.HEAD || !isCompressible(response) || !acceptsGzip(session.getHeaders())) {
+            return response;
+        }
+
+        ByteArrayInputStream data = (ByteArrayInputStream) response.getData();
+        int size = data.available();
+
+        if (size < threshold) {
+            return response;
+        }
+
+        byte[] body = new byte[size];
+        data.read(body, 0, size);
+
+        long start = System.nanoTime();
+        byte[] gzip = gzip(body);
+        compressionStats.record(size, gzip.length, System.nanoTime() - start);
+
+        if (gzip.length >= size) {
+            response.setData(new ByteArrayInputStream(body));
+            return response;
+        }
+
+        // The response still holds the original length, so the compressed body is sent in chunks,
+        // as NanoHTTPD does when it compresses by itself
+        response.setData(new ByteArrayInputStream(gzip));
+        response.setChunkedTransfer(true);
+        response.addHeader("Content-Encoding", "gzip");
+
+        String vary = response.getHeader("vary");
+        response.addHeader("Vary", vary != null ? vary + ", Accept-Encoding" : "Accept-Encoding");
+
+        String etag = response.getHeader("etag");
+        if (etag != null && !etag.startsWith("W/")) {
+            response.addHeader("ETag", "W/" + etag);
+        }
+
+        return response;
+    }
+
+    private static boolean isCompressible(Response response) {
+        Response.IStatus status = response.getStatus();
+        String mimeType = response.getMimeType();
+
+        return response.getData() instanceof ByteArrayInputStream && response.getHeader("content-encoding") == null
+                && status != Response.Status.PARTIAL_CONTENT && status != Response.Status.SWITCH_PROTOCOL
+                && mimeType != null && (mimeType.startsWith(MIME_JSON) || mimeType.startsWith("text/"));
+    }
+
+    private static byte[] gzip(byte[] bytes) {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(bytes.length / 4 + 64);
+            GZIPOutputStream gos = new GZIPOutputStream(baos);
+            gos.write(bytes);
+            gos.close();
+
+            return baos.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException("In memory compression can not fail", e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+
+        if (asyncRunner instanceof BoundedAsyncRunner) {
+            ((BoundedAsyncRunner) asyncRunner).shutdown();
+        }
+    }
+
+    /**
+     * Upgrade requests are rejected here, subclasses accepting WebSocket must pass those of their
+     * socket endpoints to {@link #serveWebSocket(IHTTPSession)} instead.
+     */
+    @Override
+    public Response serve(IHTTPSession session) {
+        if (isWebsocketRequested(session)) {
+            return sendError("Invalid request (WebSocket are not supported by this server).");
+        }
+
+        return super.serve(session);
+    }
+
+    /**
+     * Perform the WebSocket handshake of an upgrade request, the socket being opened by
+     * {@link #openWebSocket(IHTTPSession)}, which must then be overridden.
+     */
+    protected Response serveWebSocket(IHTTPSession session) {
+        return super.serve(session);
+    }
+
+    /**
+     * Only called through {@link #serveWebSocket(IHTTPSession)}, which this server never does.
+     */
+    @Override
+    protected WebSocket openWebSocket(IHTTPSession session) {
+        return null;
+    }
+
+    public enum RequestClass {
+        /**
+         * Short requests that must stay responsive, such as pings and file lists.
+         */
+        CONTROL(Thread.NORM_PRIORITY + 1),
+        /**
+         * Requests holding their connection for a long time, such as event streams, sockets and polls.
+         */
+        STREAMING(Thread.NORM_PRIORITY),
+        /**
+         * Long transfers, such as file downloads.
+         */
+        BULK(Thread.NORM_PRIORITY - 2),
+        ;
+
+        private final int priority;
+
+        RequestClass(int priority) {
+            this.priority = priority;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
     }
 
     public static Response sendOk(String message) {
@@ -44,20 +294,246 @@ public class BasicWebServer extends NanoHTTPD {
         return newFixedLengthResponse(Response.Status.OK, MIME_JSON, json);
     }
 
+    /**
+     *
+     * @param etag Validator of the content, so that clients can revalidate it with If-None-Match.
+     */
+    public static Response sendJSON(String json, String etag) {
+        Response response = sendJSON(json);
+        response.addHeader("ETag", etag);
+        return response;
+    }
+
+    /**
+     * Send JSON that was serialized, and optionally compressed, ahead of time.
+     *
+     * @param json Content encoded in UTF-8.
+     * @param gzip Same content compressed with gzip, sent instead if the client accepts it, or null.
+     * @param etag Validator of the content, or null.
+     * @param headers Headers of the request, with lower case names.
+     */
+    public static Response sendEncodedJSON(byte[] json, byte[] gzip, String etag, Map<String, String> headers) {
+        boolean compressed = gzip != null && acceptsGzip(headers);
+        byte[] body = compressed ? gzip : json;
+
+        Response response = newFixedLengthResponse(Response.Status.OK, MIME_JSON, new ByteArrayInputStream(body), body.length);
+        response.addHeader("Vary", "Accept-Encoding");
+
+        if (compressed) {
+            response.addHeader("Content-Encoding", "gzip");
+        }
+        if (etag != null) {
+            // Both encodings share the validator, it is weak once compressed as the bytes differ
+            response.addHeader("ETag", compressed && !etag.startsWith("W/") ? "W/" + etag : etag);
+        }
+
+        return response;
+    }
+
+    /**
+     *
+     * @param headers Headers of the request, with lower case names.
+     * @return Returns true if the request accepts a gzip compressed content.
+     */
+    public static boolean acceptsGzip(Map<String, String> headers) {
+        String acceptEncoding = headers.get("accept-encoding");
+
+        return acceptEncoding != null && acceptEncoding.toLowerCase(Locale.US).contains("gzip");
+    }
+
+    public static Response sendNotModified(String etag) {
+        Response response = newFixedLengthResponse(Response.Status.NOT_MODIFIED, null, null);
+        response.addHeader("ETag", etag);
+        return response;
+    }
+
+    /**
+     *
+     * @param headers Headers of the request, with lower case names.
+     * @param etag Current validator of the content.
+     * @return Returns true if the If-None-Match header of the request matches the current validator.
+     */
+    public static boolean isNotModified(Map<String, String> headers, String etag) {
+        String ifNoneMatch = headers.get("if-none-match");
+
+        if (ifNoneMatch == null) {
+            return false;
+        }
+
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+
+            // Weak comparison, as required for If-None-Match
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
     public static Response sendStream(File file) {
-        try {
-            FileInputStream fis = new FileInputStream(file);
+        return sendStream(file, Collections.<String, String>emptyMap());
+    }
 
-            return newFixedLengthResponse(Response.Status.OK, getMimeTypeForFile(file.getName()), fis, file.length());
+    /**
+     * Send a file, honoring the Range and If-Range headers of the request, so that interrupted
+     * downloads can be resumed and files can be fetched in parts. A single range is sent as is,
+     * multiple ranges are sent as multipart/byteranges.
+     *
+     * @param file File to send.
+     * @param headers Headers of the request, with lower case names.
+     */
+    public static Response sendStream(File file, Map<String, String> headers) {
+        long length = file.length();
+        long lastModified = file.lastModified();
+        String etag = getETag(length, lastModified);
+        String mimeType = getMimeTypeForFile(file.getName());
+
+        List<ByteRange> ranges = null;
+        if (headers.containsKey("range") && isRangeFresh(headers.get("if-range"), etag, lastModified)) {
+            ranges = ByteRange.parse(headers.get("range"), length);
+        }
+
+        Response response;
+
+        try {
+            if (ranges == null || ranges.size() > MAX_RANGES) {
+                // No range, a stale If-Range, or too many ranges: send the whole file
+                response = new FileChannelResponse(Response.Status.OK, mimeType, new FileInputStream(file), 0, length);
+            } else if (ranges.isEmpty()) {
+                response = sendRangeNotSatisfiable(length);
+            } else if (ranges.size() == 1) {
+                ByteRange range = ranges.get(0);
+
+                response = new FileChannelResponse(Response.Status.PARTIAL_CONTENT, mimeType, new FileInputStream(file), range.getStart(), range.getLength());
+                response.addHeader("Content-Range", range.toContentRange(length));
+            } else {
+                String boundary = UUID.randomUUID().toString().replace("-", "");
+                MultipartRangeInputStream mis = new MultipartRangeInputStream(file, ranges, mimeType, boundary);
+
+                response = newFixedLengthResponse(Response.Status.PARTIAL_CONTENT, MIME_MULTIPART_BYTERANGES + "; boundary=" + boundary, mis, mis.getLength());
+            }
         } catch (FileNotFoundException e) {
             return sendServerError("SERVER INTERNAL ERROR: FileNotFoundException: " + e.getMessage());
+        } catch (IOException e) {
+            return sendServerError("SERVER INTERNAL ERROR: IOException: " + e.getMessage());
         }
+
+        response.addHeader("Accept-Ranges", "bytes");
+        response.addHeader("ETag", etag);
+        response.addHeader("Last-Modified", formatHttpDate(lastModified));
+
+        return response;
+    }
+
+    public static Response sendRangeNotSatisfiable(long length) {
+        try {
+            JSONObject json = new JSONObject();
+            json.put("message", "Requested range not satisfiable.");
+
+            Response response = newFixedLengthResponse(Response.Status.RANGE_NOT_SATISFIABLE, MIME_JSON, json.toString());
+            response.addHeader("Content-Range", "bytes */" + length);
+            return response;
+        } catch (JSONException e) {
+            return sendServerError("SERVER INTERNAL ERROR: JSONException: " + e.getMessage());
+        }
+    }
+
+    /**
+     *
+     * @return Returns a strong validator for the content of a file, based on its size and modification time.
+     */
+    public static String getETag(long length, long lastModified) {
+        return "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+    }
+
+    private static boolean isRangeFresh(String ifRange, String etag, long lastModified) {
+        if (ifRange == null) {
+            return true;
+        }
+
+        ifRange = ifRange.trim();
+
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(etag); // Weak validators never match
+        }
+
+        try {
+            // HTTP dates only have a precision of one second
+            return getHttpDateFormat().parse(ifRange).getTime() / 1000 == lastModified / 1000;
+        } catch (ParseException e) {
+            return false;
+        }
+    }
+
+    private static String formatHttpDate(long time) {
+        return getHttpDateFormat().format(new Date(time));
+    }
+
+    private static SimpleDateFormat getHttpDateFormat() {
+        SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
     }
 
     public static Response sendEvent(EventEntity event) {
         return newFixedLengthResponse(Response.Status.OK, MIME_JSON, event.encode());
     }
 
+    public static Response sendEvents(Collection<EventEntity> events) {
+        return newFixedLengthResponse(Response.Status.OK, MIME_JSON, EventEntity.encodeAll(events));
+    }
+
+    /**
+     * Send an event in the binary encoding if the client accepts it, as a batch of one, or in JSON otherwise.
+     *
+     * @param headers Headers of the request, with lower case names.
+     */
+    public static Response sendEvent(EventEntity event, Map<String, String> headers) {
+        if (BinaryCodec.isAccepted(headers.get("accept"))) {
+            return sendEvents(Collections.singletonList(event), headers);
+        }
+
+        Response response = sendEvent(event);
+        response.addHeader("Vary", "Accept");
+        return response;
+    }
+
+    /**
+     * Send events in the binary encoding if the client accepts it, or in JSON otherwise.
+     *
+     * @param headers Headers of the request, with lower case names.
+     */
+    public static Response sendEvents(Collection<EventEntity> events, Map<String, String> headers) {
+        Response response;
+
+        if (BinaryCodec.isAccepted(headers.get("accept"))) {
+            response = sendBinary(BinaryCodec.encodeEvents(events));
+        } else {
+            response = sendEvents(events);
+        }
+
+        response.addHeader("Vary", "Accept");
+        return response;
+    }
+
+    /**
+     *
+     * @param body Content in the binary encoding of {@link BinaryCodec}.
+     */
+    public static Response sendBinary(byte[] body) {
+        return newFixedLengthResponse(Response.Status.OK, BinaryCodec.MIME_BINARY, new ByteArrayInputStream(body), body.length);
+    }
+
+    public static Response sendEventStream(BlockingQueue<EventEntity> queue) {
+        return newChunkedResponse(Response.Status.OK, MIME_JSON_STREAM, new EventStreamInputStream(queue));
+    }
+
     public static Response sendTimeout() {
         try {
             JSONObject json = new JSONObject();
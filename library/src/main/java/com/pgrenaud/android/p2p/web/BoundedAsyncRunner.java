@@ -0,0 +1,524 @@
+package com.pgrenaud.android.p2p.web;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.pgrenaud.android.p2p.web.BasicWebServer.RequestClass;
+
+import fi.iki.elonen.NanoHTTPD.AsyncRunner;
+import fi.iki.elonen.NanoHTTPD.ClientHandler;
+import fi.iki.elonen.NanoHTTPD.IHTTPSession;
+import fi.iki.elonen.NanoHTTPD.Method;
+import fi.iki.elonen.NanoHTTPD.Response;
+
+/**
+ * AsyncRunner running connections on bounded pools of threads with bounded backlogs,
+ * instead of starting a new thread for every connection like NanoHTTPD does by default.
+ *
+ * The request line of every request is peeked and classified by the server before the request
+ * is read, and the connection is handed to the pool of its class when it differs from the
+ * current one. A keep-alive connection thus moves between pools along its requests, so that
+ * downloads and long-lived requests, such as streams, sockets and polls, never hold the
+ * threads answering pings.
+ *
+ * A request answered with a {@link DeferredResponse}, such as a pending poll, leaves its connection
+ * without a thread until the response is completed. The connection is then served again on the
+ * pool of that request.
+ */
+public class BoundedAsyncRunner implements AsyncRunner {
+
+    private static final long KEEP_ALIVE_TIME = 60;
+    private static final int MAX_REQUEST_LINE = 8192;
+    private static final String UNAVAILABLE_MESSAGE = "{\"message\":\"Server is busy, try again later.\"}";
+    private static final String UNAVAILABLE_RESPONSE_FORMAT = "HTTP/1.1 503 Service Unavailable\r\n" +
+            "Content-Type: " + BasicWebServer.MIME_JSON + "\r\n" +
+            "Content-Length: %d\r\n" +
+            "Retry-After: 1\r\n" +
+            "Connection: close\r\n" +
+            "\r\n" +
+            "%s";
+
+    private final RejectionPolicy policy;
+    private final Map<RequestClass, Pool> pools;
+    private final Map<ClientHandler, Connection> connections;
+
+    /**
+     * Streaming requests share the limits of the control pool, on a pool of their own.
+     *
+     * @param maxControlThreads Maximum number of control connections handled at the same time.
+     * @param maxControlBacklog Maximum number of accepted connections waiting for a control thread.
+     * @param maxBulkThreads Maximum number of bulk connections handled at the same time.
+     * @param maxBulkBacklog Maximum number of bulk connections waiting for a bulk thread.
+     * @param policy What to do with connections arriving while the backlog of their pool is full.
+     */
+    public BoundedAsyncRunner(int maxControlThreads, int maxControlBacklog, int maxBulkThreads, int maxBulkBacklog, RejectionPolicy policy) {
+        this(maxControlThreads, maxControlBacklog, maxControlThreads, maxControlBacklog, maxBulkThreads, maxBulkBacklog, policy);
+    }
+
+    /**
+     *
+     * @param maxControlThreads Maximum number of control connections handled at the same time.
+     * @param maxControlBacklog Maximum number of accepted connections waiting for a control thread.
+     * @param maxStreamingThreads Maximum number of streaming connections handled at the same time,
+     *                            which is about the number of peers streaming from this server.
+     *                            Parked polls do not hold a thread.
+     * @param maxStreamingBacklog Maximum number of streaming connections waiting for a streaming thread.
+     * @param maxBulkThreads Maximum number of bulk connections handled at the same time.
+     * @param maxBulkBacklog Maximum number of bulk connections waiting for a bulk thread.
+     * @param policy What to do with connections arriving while the backlog of their pool is full.
+     */
+    public BoundedAsyncRunner(int maxControlThreads, int maxControlBacklog, int maxStreamingThreads, int maxStreamingBacklog,
+                              int maxBulkThreads, int maxBulkBacklog, RejectionPolicy policy) {
+        this.policy = policy;
+
+        pools = new EnumMap<>(RequestClass.class);
+        pools.put(RequestClass.CONTROL, new Pool(RequestClass.CONTROL, maxControlThreads, maxControlBacklog));
+        pools.put(RequestClass.STREAMING, new Pool(RequestClass.STREAMING, maxStreamingThreads, maxStreamingBacklog));
+        pools.put(RequestClass.BULK, new Pool(RequestClass.BULK, maxBulkThreads, maxBulkBacklog));
+
+        connections = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Internal API
+     *
+     * Remember the socket and stream of a connection, so that it can be classified and answered if it gets rejected.
+     */
+    public void register(ClientHandler handler, Socket socket, InputStream inputStream, BasicWebServer server) {
+        try {
+            // NanoHTTPD writes the headers and the body separately, the body must not wait for the
+            // delayed acknowledgement of the headers while the thread holds the connection
+            socket.setTcpNoDelay(true);
+        } catch (SocketException e) {
+            Log.d("BoundedAsyncRunner", "Could not disable Nagle's algorithm: " + e.getMessage());
+        }
+
+        connections.put(handler, new Connection(handler, socket, inputStream, server));
+    }
+
+    @Override
+    public void exec(ClientHandler handler) {
+        // Connections not registered by a BasicWebServer are run as is, on the control pool
+        execute(pools.get(RequestClass.CONTROL), handler, connections.get(handler));
+    }
+
+    private void execute(Pool pool, ClientHandler handler, Connection connection) {
+        execute(pool, handler, connection, null);
+    }
+
+    /**
+     *
+     * @param resumed Deferred response to write before serving the next requests, or null.
+     */
+    private void execute(final Pool pool, final ClientHandler handler, final Connection connection, final DeferredResponse resumed) {
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                pool.active.incrementAndGet();
+
+                try {
+                    if (connection == null) {
+                        handler.run();
+                    } else {
+                        serve(pool, handler, connection, resumed);
+                    }
+                } finally {
+                    pool.active.decrementAndGet();
+                }
+            }
+        };
+
+        try {
+            pool.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    task.run();
+                    runResumed(pool);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            if (resumed == null || pool.executor.isShutdown()) {
+                reject(handler, pool);
+                return;
+            }
+
+            // The connection was already accepted, its response must not be lost to a burst. The
+            // queued connections run it once done, unless they all finished in the meantime.
+            pool.resumed.add(task);
+
+            try {
+                pool.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        runResumed(pool);
+                    }
+                });
+            } catch (RejectedExecutionException ignored) {
+                // The backlog is still full
+            }
+        }
+    }
+
+    /**
+     * Run the resumed connections that did not fit in the backlog of the pool.
+     */
+    private void runResumed(Pool pool) {
+        Runnable task;
+
+        while ((task = pool.resumed.poll()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Serve the requests of a connection on the current thread, as NanoHTTPD does, until the
+     * connection is closed, one of its requests belongs to another pool, or its response is deferred.
+     */
+    private void serve(Pool pool, ClientHandler handler, Connection connection, DeferredResponse resumed) {
+        boolean handedOver = false;
+
+        try {
+            IHTTPSession session = connection.getSession();
+
+            if (resumed != null && !send(connection, session, resumed)) {
+                return;
+            }
+
+            while (!connection.socket.isClosed()) {
+                RequestClass requestClass = classify(connection, session);
+
+                if (requestClass == null) {
+                    break; // Closed by the client
+                }
+
+                if (requestClass != pool.requestClass) {
+                    handedOver = true;
+                    execute(pools.get(requestClass), handler, connection);
+                    return;
+                }
+
+                // Lets file responses write straight to the channel of the connection
+                BasicWebServer.setCurrentChannel(connection.socket.getChannel());
+                DeferredResponse.setCurrentOwner(connection);
+
+                try {
+                    session.execute();
+                } finally {
+                    BasicWebServer.setCurrentChannel(null);
+                    DeferredResponse.setCurrentOwner(null);
+                }
+
+                if (connection.deferred != null) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            if (!(e instanceof SocketException && "NanoHttpd Shutdown".equals(e.getMessage())) && !(e instanceof SocketTimeoutException)) {
+                Log.e("BoundedAsyncRunner", "Communication with the client broken", e);
+            }
+        } finally {
+            DeferredResponse deferred = connection != null ? connection.deferred : null;
+
+            if (deferred != null) {
+                // The connection stays open without a thread, until the response is completed
+                connection.deferred = null;
+                connection.resumePool = pool;
+
+                deferred.release();
+            } else if (!handedOver) {
+                handler.close();
+                closed(handler);
+            }
+        }
+    }
+
+    /**
+     * Write a completed deferred response, as the session would have written it.
+     *
+     * @return Returns true if the connection can serve the next request.
+     */
+    private boolean send(Connection connection, IHTTPSession session, DeferredResponse deferred) throws IOException {
+        Response response = connection.server.compress(session, deferred.getResponse());
+
+        response.setRequestMethod(deferred.getRequestMethod());
+        response.setKeepAlive(deferred.isKeepAlive());
+
+        BasicWebServer.setCurrentChannel(connection.socket.getChannel());
+
+        try {
+            DeferredResponse.send(response, connection.socket.getOutputStream());
+        } finally {
+            BasicWebServer.setCurrentChannel(null);
+            response.close();
+        }
+
+        return deferred.isKeepAlive() && !response.isCloseConnection();
+    }
+
+    /**
+     * Peek the request line of the next request, without consuming it.
+     *
+     * @return Returns the class of the next request, or null if the connection was closed.
+     * @throws IOException If the connection timed out or broke while waiting for the request.
+     */
+    private RequestClass classify(Connection connection, IHTTPSession session) throws IOException {
+        InputStream in = session.getInputStream();
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+
+        in.mark(MAX_REQUEST_LINE);
+
+        try {
+            while ((b = in.read()) != -1 && b != '\n' && line.size() < MAX_REQUEST_LINE - 1) {
+                line.write(b);
+            }
+        } finally {
+            in.reset();
+        }
+
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+
+        String[] tokens = line.toString("US-ASCII").trim().split(" ");
+
+        if (tokens.length >= 2) {
+            try {
+                Method method = Method.valueOf(tokens[0]);
+                String uri = tokens[1];
+
+                int query = uri.indexOf('?');
+                if (query >= 0) {
+                    uri = uri.substring(0, query);
+                }
+
+                return connection.server.classify(method, uri);
+            } catch (IllegalArgumentException e) {
+                Log.d("BoundedAsyncRunner", "Unknown request method: " + e.getMessage());
+            }
+        }
+
+        // Let the session answer the malformed request
+        return RequestClass.CONTROL;
+    }
+
+    private void reject(ClientHandler handler, Pool pool) {
+        pool.rejected.incrementAndGet();
+
+        Connection connection = connections.remove(handler);
+
+        if (policy == RejectionPolicy.SERVICE_UNAVAILABLE && connection != null) {
+            try {
+                // Nothing was written to the socket yet, the response fits in its send buffer
+                byte[] body = UNAVAILABLE_MESSAGE.getBytes("UTF-8");
+                String response = String.format(Locale.US, UNAVAILABLE_RESPONSE_FORMAT, body.length, UNAVAILABLE_MESSAGE);
+
+                OutputStream os = connection.socket.getOutputStream();
+                os.write(response.getBytes("UTF-8"));
+                os.flush();
+            } catch (IOException e) {
+                Log.d("BoundedAsyncRunner", "Could not send rejection: " + e.getMessage());
+            }
+        }
+
+        handler.close();
+
+        Log.w("BoundedAsyncRunner", "Rejected " + pool.requestClass + " connection, " + pool.active.get() + " active and " + pool.executor.getQueue().size() + " queued");
+    }
+
+    @Override
+    public void closed(ClientHandler handler) {
+        connections.remove(handler);
+    }
+
+    @Override
+    public void closeAll() {
+        for (ClientHandler handler : connections.keySet()) {
+            handler.close();
+        }
+    }
+
+    /**
+     * Internal API
+     */
+    public void shutdown() {
+        closeAll();
+
+        for (Pool pool : pools.values()) {
+            pool.executor.shutdownNow();
+        }
+    }
+
+    /**
+     *
+     * @return Returns the number of connections currently handled by a thread.
+     */
+    public int getActiveCount() {
+        int count = 0;
+        for (RequestClass requestClass : RequestClass.values()) {
+            count += getActiveCount(requestClass);
+        }
+        return count;
+    }
+
+    /**
+     *
+     * @return Returns the number of connections of the given class currently handled by a thread.
+     */
+    public int getActiveCount(RequestClass requestClass) {
+        return pools.get(requestClass).active.get();
+    }
+
+    /**
+     *
+     * @return Returns the number of accepted connections waiting for a thread.
+     */
+    public int getQueuedCount() {
+        int count = 0;
+        for (RequestClass requestClass : RequestClass.values()) {
+            count += getQueuedCount(requestClass);
+        }
+        return count;
+    }
+
+    /**
+     *
+     * @return Returns the number of connections of the given class waiting for a thread.
+     */
+    public int getQueuedCount(RequestClass requestClass) {
+        Pool pool = pools.get(requestClass);
+
+        return pool.executor.getQueue().size() + pool.resumed.size();
+    }
+
+    /**
+     *
+     * @return Returns the number of connections rejected since the runner was created.
+     */
+    public long getRejectedCount() {
+        long count = 0;
+        for (RequestClass requestClass : RequestClass.values()) {
+            count += getRejectedCount(requestClass);
+        }
+        return count;
+    }
+
+    /**
+     *
+     * @return Returns the number of connections of the given class rejected since the runner was created.
+     */
+    public long getRejectedCount(RequestClass requestClass) {
+        return pools.get(requestClass).rejected.get();
+    }
+
+    public int getMaxThreads(RequestClass requestClass) {
+        return pools.get(requestClass).executor.getMaximumPoolSize();
+    }
+
+    public enum RejectionPolicy {
+        /**
+         * Answer with a 503 Service Unavailable response, then close the connection.
+         */
+        SERVICE_UNAVAILABLE,
+        /**
+         * Close the connection without answering.
+         */
+        CLOSE,
+        ;
+    }
+
+    private static class Pool {
+
+        private final RequestClass requestClass;
+        private final ThreadPoolExecutor executor;
+        private final AtomicInteger active;
+        private final AtomicLong rejected;
+        private final Queue<Runnable> resumed;
+
+        private Pool(final RequestClass requestClass, int maxThreads, int maxBacklog) {
+            this.requestClass = requestClass;
+
+            active = new AtomicInteger(0);
+            rejected = new AtomicLong(0);
+            resumed = new ConcurrentLinkedQueue<>();
+
+            executor = new ThreadPoolExecutor(maxThreads, maxThreads, KEEP_ALIVE_TIME, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(Math.max(1, maxBacklog)), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger(0);
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    String name = String.format(Locale.US, "NanoHttpd %s Request Processor (#%d)", requestClass, count.incrementAndGet());
+
+                    Thread thread = new Thread(runnable, name);
+                    thread.setDaemon(true);
+                    thread.setPriority(requestClass.getPriority());
+                    return thread;
+                }
+            });
+            executor.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    private class Connection implements DeferredResponse.Owner {
+
+        private final ClientHandler handler;
+        private final Socket socket;
+        private final InputStream inputStream;
+        private final BasicWebServer server;
+
+        private IHTTPSession session; // Only used by the thread currently serving the connection
+        private DeferredResponse deferred; // Only used by the thread currently serving the connection
+        private Pool resumePool; // Set before the connection is released
+
+        private Connection(ClientHandler handler, Socket socket, InputStream inputStream, BasicWebServer server) {
+            this.handler = handler;
+            this.socket = socket;
+            this.inputStream = inputStream;
+            this.server = server;
+        }
+
+        @Override
+        public void onDeferred(DeferredResponse deferred) {
+            this.deferred = deferred;
+        }
+
+        @Override
+        public void resume(DeferredResponse deferred) {
+            execute(resumePool, handler, this, deferred);
+        }
+
+        /**
+         *
+         * @return Returns the session reading the requests of the connection, which buffers its
+         * input, so that requests are peeked and read from the same buffer.
+         */
+        private IHTTPSession getSession() throws IOException {
+            if (session == null) {
+                session = server.createSession(socket, inputStream);
+            }
+
+            return session;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.pgrenaud.android.p2p.web;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Inclusive range of bytes of a file, as requested by a Range header.
+ */
+public class ByteRange {
+
+    private static final String UNIT_PREFIX = "bytes=";
+    private static final String CONTENT_RANGE_FORMAT = "bytes %d-%d/%d";
+
+    private final long start;
+    private final long end;
+
+    public ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Parse a Range header against a file. Satisfiable ranges are sorted, and ranges that
+     * overlap or touch are merged, so that no byte is sent twice.
+     *
+     * @param header Value of the Range header.
+     * @param length Length of the file.
+     * @return Returns the satisfiable ranges, an empty list if none is, or null if the header
+     * is invalid and must be ignored.
+     */
+    public static List<ByteRange> parse(String header, long length) {
+        if (header == null || !header.trim().toLowerCase(Locale.US).startsWith(UNIT_PREFIX)) {
+            return null;
+        }
+
+        List<ByteRange> ranges = new ArrayList<>();
+
+        for (String spec : header.trim().substring(UNIT_PREFIX.length()).split(",")) {
+            spec = spec.trim();
+
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+
+            long start;
+            long end;
+
+            try {
+                if (dash == 0) {
+                    // Suffix range, the last N bytes
+                    long suffix = Long.parseLong(spec.substring(1));
+
+                    start = Math.max(0, length - suffix);
+                    end = length - 1;
+
+                    if (suffix == 0) {
+                        continue;
+                    }
+                } else {
+                    start = Long.parseLong(spec.substring(0, dash));
+                    end = dash == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+
+                    if (end < start) {
+                        return null;
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+
+            if (start < length && start >= 0) {
+                ranges.add(new ByteRange(start, Math.min(end, length - 1)));
+            }
+        }
+
+        return merge(ranges);
+    }
+
+    private static List<ByteRange> merge(List<ByteRange> ranges) {
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+
+        Collections.sort(ranges, new Comparator<ByteRange>() {
+            @Override
+            public int compare(ByteRange lhs, ByteRange rhs) {
+                return lhs.start < rhs.start ? -1 : (lhs.start == rhs.start ? 0 : 1);
+            }
+        });
+
+        List<ByteRange> merged = new ArrayList<>();
+        ByteRange current = ranges.get(0);
+
+        for (ByteRange range : ranges.subList(1, ranges.size())) {
+            if (range.start <= current.end + 1) {
+                current = new ByteRange(current.start, Math.max(current.end, range.end));
+            } else {
+                merged.add(current);
+                current = range;
+            }
+        }
+        merged.add(current);
+
+        return merged;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public long getEnd() {
+        return end;
+    }
+
+    public long getLength() {
+        return end - start + 1;
+    }
+
+    /**
+     *
+     * @return Returns the value of the Content-Range header describing this range.
+     */
+    public String toContentRange(long length) {
+        return String.format(Locale.US, CONTENT_RANGE_FORMAT, start, end, length);
+    }
+
+    @Override
+    public String toString() {
+        return start + "-" + end;
+    }
+}
@@ -0,0 +1,60 @@
+package com.pgrenaud.android.p2p.web;
+
+/**
+ * Counters of the responses compressed on the fly by a {@link BasicWebServer}.
+ */
+public class CompressionStats {
+
+    private long count;
+    private long inputBytes;
+    private long outputBytes;
+    private long time;
+
+    synchronized void record(long inputBytes, long outputBytes, long time) {
+        this.count++;
+        this.inputBytes += inputBytes;
+        this.outputBytes += outputBytes;
+        this.time += time;
+    }
+
+    /**
+     *
+     * @return Returns the number of responses compressed, including the ones sent uncompressed
+     * because they did not shrink.
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     *
+     * @return Returns the number of bytes before compression.
+     */
+    public synchronized long getInputBytes() {
+        return inputBytes;
+    }
+
+    /**
+     *
+     * @return Returns the number of bytes after compression.
+     */
+    public synchronized long getOutputBytes() {
+        return outputBytes;
+    }
+
+    /**
+     *
+     * @return Returns the time spent compressing, in nanoseconds.
+     */
+    public synchronized long getTime() {
+        return time;
+    }
+
+    /**
+     *
+     * @return Returns the size after compression over the size before, or 1 if nothing was compressed.
+     */
+    public synchronized double getRatio() {
+        return inputBytes == 0 ? 1 : (double) outputBytes / inputBytes;
+    }
+}
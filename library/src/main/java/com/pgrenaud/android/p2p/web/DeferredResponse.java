@@ -0,0 +1,161 @@
+package com.pgrenaud.android.p2p.web;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fi.iki.elonen.NanoHTTPD.Response;
+
+/**
+ * Response of a request answered later, from any thread. Once NanoHTTPD "sent" it, the thread
+ * serving the connection is released, and the connection is left open without a thread until
+ * the actual response is completed. The response is then written, and the following requests of
+ * the connection served, by a thread of the {@link BoundedAsyncRunner}.
+ */
+class DeferredResponse extends Response {
+
+    // Connection being served by the current thread, if its requests can be deferred
+    private static final ThreadLocal<Owner> CURRENT_OWNER = new ThreadLocal<>();
+
+    // Response.send is only reachable by NanoHTTPD, which is done with the request once deferred
+    private static final Method SEND = findSend();
+
+    private final Owner owner;
+    private final AtomicBoolean completed;
+    private final AtomicInteger arrivals; // Released by the connection thread, and completed
+
+    private volatile Response response;
+    private volatile boolean keepAlive;
+
+    private DeferredResponse(Owner owner) {
+        super(Status.OK, null, null, 0);
+
+        this.owner = owner;
+
+        completed = new AtomicBoolean(false);
+        arrivals = new AtomicInteger(0);
+    }
+
+    /**
+     *
+     * @return Returns a response to be completed later, or null if the connection served by the
+     * current thread can not be left without a thread.
+     */
+    static DeferredResponse create() {
+        Owner owner = CURRENT_OWNER.get();
+
+        return owner != null ? new DeferredResponse(owner) : null;
+    }
+
+    /**
+     * Internal API
+     *
+     * @param owner Connection served by the current thread, or null once done.
+     */
+    static void setCurrentOwner(Owner owner) {
+        if (owner == null) {
+            CURRENT_OWNER.remove();
+        } else {
+            CURRENT_OWNER.set(owner);
+        }
+    }
+
+    @Override
+    public void setKeepAlive(boolean keepAlive) {
+        super.setKeepAlive(keepAlive);
+
+        this.keepAlive = keepAlive;
+    }
+
+    @Override
+    protected void send(OutputStream outputStream) {
+        // Nothing is written until the response is completed
+        owner.onDeferred(this);
+    }
+
+    /**
+     * Answer the request with the actual response. The response is written by another thread.
+     *
+     * @return Returns false if the request was already answered.
+     */
+    boolean complete(Response response) {
+        if (!completed.compareAndSet(false, true)) {
+            return false;
+        }
+
+        this.response = response;
+
+        arrive();
+
+        return true;
+    }
+
+    /**
+     * Internal API
+     *
+     * Called once the thread serving the connection left it.
+     */
+    void release() {
+        arrive();
+    }
+
+    boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    Response getResponse() {
+        return response;
+    }
+
+    /**
+     * Internal API
+     *
+     * Write a response as NanoHTTPD does, with its status line and headers.
+     */
+    static void send(Response response, OutputStream outputStream) throws IOException {
+        try {
+            SEND.invoke(response, outputStream);
+        } catch (IllegalAccessException e) {
+            throw new IOException(e);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static Method findSend() {
+        try {
+            Method method = Response.class.getDeclaredMethod("send", OutputStream.class);
+            method.setAccessible(true);
+
+            return method;
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void arrive() {
+        // Whichever comes last, the release or the completion, resumes the connection
+        if (arrivals.incrementAndGet() == 2) {
+            owner.resume(this);
+        }
+    }
+
+    interface Owner {
+        /**
+         * Called from the thread serving the connection, when the response of its request was deferred.
+         */
+        void onDeferred(DeferredResponse deferred);
+
+        /**
+         * Called once the response was completed and the connection released, from either thread.
+         */
+        void resume(DeferredResponse deferred);
+    }
+}
@@ -0,0 +1,101 @@
+package com.pgrenaud.android.p2p.web;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.pgrenaud.android.p2p.entity.EventEntity;
+
+/**
+ * Endless stream of newline delimited JSON events, read from a peer queue as they are published.
+ * An empty line is sent as heartbeat when no event was published for a while, so that the
+ * connection is kept alive and a dead client is detected on the next write.
+ */
+public class EventStreamInputStream extends InputStream {
+
+    private static final long HEARTBEAT_INTERVAL = 30;
+    private static final int MAX_EVENTS_PER_READ = 100;
+    private static final byte[] HEARTBEAT = "\n".getBytes();
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final BlockingQueue<EventEntity> queue;
+
+    private byte[] buffer = new byte[0];
+    private int position = 0;
+    private volatile boolean closed = false;
+
+    public EventStreamInputStream(BlockingQueue<EventEntity> queue) {
+        this.queue = queue;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        if (position >= buffer.length) {
+            if (closed) {
+                return -1;
+            }
+
+            fill();
+        }
+
+        // Return as soon as something is available, the caller writes each read to the socket
+        int count = Math.min(len, buffer.length - position);
+
+        System.arraycopy(buffer, position, b, off, count);
+        position += count;
+
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return buffer.length - position;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    private void fill() throws IOException {
+        try {
+            EventEntity event = queue.poll(HEARTBEAT_INTERVAL, TimeUnit.SECONDS);
+
+            if (event == null) {
+                buffer = HEARTBEAT;
+            } else {
+                List<EventEntity> events = new ArrayList<>();
+                events.add(event);
+                queue.drainTo(events, MAX_EVENTS_PER_READ - 1);
+
+                StringBuilder builder = new StringBuilder();
+
+                for (EventEntity entity : events) {
+                    builder.append(entity.encode()).append('\n');
+                }
+
+                buffer = builder.toString().getBytes(UTF_8);
+            }
+
+            position = 0;
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException(e.getMessage());
+        }
+    }
+}
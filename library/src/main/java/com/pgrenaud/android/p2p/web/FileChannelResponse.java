@@ -0,0 +1,79 @@
+package com.pgrenaud.android.p2p.web;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+import fi.iki.elonen.NanoHTTPD.Method;
+import fi.iki.elonen.NanoHTTPD.Response;
+
+/**
+ * Response sending a region of a file. When the connection is backed by a channel, the region is
+ * moved from the file to the socket with {@link FileChannel#transferTo}, letting the kernel skip
+ * the copy through a user space buffer. Otherwise, the regular copy loop of NanoHTTPD is used.
+ */
+class FileChannelResponse extends Response {
+
+    private final FileInputStream fis;
+    private final long position;
+    private final long count;
+
+    FileChannelResponse(IStatus status, String mimeType, FileInputStream fis, long position, long count) throws IOException {
+        super(status, mimeType, fis, count);
+
+        this.fis = fis;
+        this.position = position;
+        this.count = count;
+
+        // Position the stream as well, for the regular copy loop
+        fis.getChannel().position(position);
+    }
+
+    @Override
+    protected void send(OutputStream outputStream) {
+        SocketChannel socket = BasicWebServer.getCurrentChannel();
+
+        if (socket == null || !socket.isBlocking() || getRequestMethod() == Method.HEAD) {
+            super.send(outputStream);
+            return;
+        }
+
+        // Let NanoHTTPD write the headers only, the Content-Length still being the one of the region
+        setGzipEncoding(false);
+        setChunkedTransfer(false);
+        setData(new ByteArrayInputStream(new byte[0]));
+
+        super.send(outputStream);
+
+        try {
+            FileChannel channel = fis.getChannel();
+            long sent = 0;
+
+            while (sent < count) {
+                long transferred = channel.transferTo(position + sent, count - sent, socket);
+
+                if (transferred <= 0) {
+                    throw new IOException("File truncated after " + sent + " of " + count + " bytes");
+                }
+
+                sent += transferred;
+            }
+        } catch (IOException e) {
+            Log.d("FileChannelResponse", "Failed to transfer file: " + e.getMessage());
+
+            // The body is incomplete, the connection can not be reused
+            closeConnection(true);
+        } finally {
+            try {
+                fis.close();
+            } catch (IOException e) {
+                Log.e("FileChannelResponse", "Exception occurred while closing file", e);
+            }
+        }
+    }
+}
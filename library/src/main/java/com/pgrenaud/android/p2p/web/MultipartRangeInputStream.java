@@ -0,0 +1,111 @@
+package com.pgrenaud.android.p2p.web;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Body of a multipart/byteranges response, reading every range from a single file descriptor.
+ */
+public class MultipartRangeInputStream extends InputStream {
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private final RandomAccessFile file;
+    private final List<Object> segments; // Either headers as byte[] or file parts as ByteRange
+    private final long length;
+
+    private int segment = 0;
+    private long position = 0;
+
+    public MultipartRangeInputStream(File file, List<ByteRange> ranges, String mimeType, String boundary) throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+
+        segments = new ArrayList<>();
+        long total = 0;
+
+        for (int i = 0; i < ranges.size(); i++) {
+            ByteRange range = ranges.get(i);
+
+            byte[] header = ((i == 0 ? "" : "\r\n") + "--" + boundary + "\r\n" +
+                    "Content-Type: " + mimeType + "\r\n" +
+                    "Content-Range: " + range.toContentRange(file.length()) + "\r\n" +
+                    "\r\n").getBytes(US_ASCII);
+
+            segments.add(header);
+            segments.add(range);
+            total += header.length + range.getLength();
+        }
+
+        byte[] trailer = ("\r\n--" + boundary + "--\r\n").getBytes(US_ASCII);
+        segments.add(trailer);
+        total += trailer.length;
+
+        length = total;
+    }
+
+    /**
+     *
+     * @return Returns the total length of the body, to be sent as Content-Length.
+     */
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        while (segment < segments.size()) {
+            Object current = segments.get(segment);
+
+            if (current instanceof byte[]) {
+                byte[] header = (byte[]) current;
+
+                if (position < header.length) {
+                    int count = (int) Math.min(len, header.length - position);
+
+                    System.arraycopy(header, (int) position, b, off, count);
+                    position += count;
+
+                    return count;
+                }
+            } else {
+                ByteRange range = (ByteRange) current;
+
+                if (position < range.getLength()) {
+                    file.seek(range.getStart() + position);
+
+                    int count = file.read(b, off, (int) Math.min(len, range.getLength() - position));
+
+                    if (count == -1) {
+                        throw new IOException("File truncated while sending range " + range);
+                    }
+
+                    position += count;
+
+                    return count;
+                }
+            }
+
+            segment++;
+            position = 0;
+        }
+
+        return -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,105 @@
+package com.pgrenaud.android.p2p.web;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+
+import com.pgrenaud.android.p2p.entity.BinaryCodec;
+import com.pgrenaud.android.p2p.peering.PeerHive;
+import com.pgrenaud.android.p2p.peering.PeerLink;
+
+import fi.iki.elonen.NanoHTTPD.IHTTPSession;
+import fi.iki.elonen.NanoWSD.WebSocket;
+import fi.iki.elonen.NanoWSD.WebSocketFrame;
+import fi.iki.elonen.NanoWSD.WebSocketFrame.CloseCode;
+import fi.iki.elonen.NanoWSD.WebSocketFrame.OpCode;
+
+/**
+ * Server side of a peer WebSocket. Frames are read on the connection thread, messages are
+ * forwarded to the {@link PeerHive}, which also pumps the outgoing events of the peer queue.
+ */
+public class PeerWebSocket extends WebSocket implements PeerLink {
+
+    private final UUID uuid;
+    private final PeerHive peerHive;
+    private final CountDownLatch closed;
+    private final boolean binary;
+
+    public PeerWebSocket(IHTTPSession session, UUID uuid, PeerHive peerHive) {
+        super(session);
+
+        this.uuid = uuid;
+        this.peerHive = peerHive;
+
+        closed = new CountDownLatch(1);
+
+        // The server confirms the binary encoding in its handshake response
+        binary = BinaryCodec.isAccepted(session.getHeaders().get("accept"));
+    }
+
+    @Override
+    protected void onOpen() {
+        Log.d("PeerWebSocket", "Socket opened by peer " + uuid);
+
+        // A duplicate link is retired by the hive and keeps being read until it is closed
+        peerHive.attachLink(uuid, this);
+    }
+
+    @Override
+    protected void onClose(CloseCode code, String reason, boolean initiatedByRemote) {
+        Log.d("PeerWebSocket", "Socket closed by peer " + uuid + ": " + code + " " + reason);
+
+        peerHive.detachLink(uuid, this);
+        closed.countDown();
+    }
+
+    @Override
+    protected void onMessage(WebSocketFrame message) {
+        if (message.getOpCode() == OpCode.Binary) {
+            peerHive.dispatchMessage(uuid, message.getBinaryPayload());
+        } else {
+            peerHive.dispatchMessage(uuid, message.getTextPayload());
+        }
+    }
+
+    @Override
+    protected void onPong(WebSocketFrame pong) {
+        // Nothing to do, receiving anything keeps the connection alive
+    }
+
+    @Override
+    protected void onException(IOException exception) {
+        Log.d("PeerWebSocket", "Socket of peer " + uuid + " failed: " + exception.getMessage());
+    }
+
+    @Override
+    public boolean isBinary() {
+        return binary;
+    }
+
+    @Override
+    public void ping() throws IOException {
+        ping(new byte[0]);
+    }
+
+    @Override
+    public boolean isInbound() {
+        return true;
+    }
+
+    @Override
+    public void awaitClose() throws InterruptedException {
+        closed.await();
+    }
+
+    @Override
+    public void close() {
+        try {
+            close(CloseCode.GoingAway, "", false);
+        } catch (IOException e) {
+            Log.d("PeerWebSocket", "Could not close socket: " + e.getMessage());
+        }
+    }
+}
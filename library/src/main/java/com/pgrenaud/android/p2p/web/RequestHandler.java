@@ -1,31 +1,59 @@
 package com.pgrenaud.android.p2p.web;
 
+import static com.pgrenaud.android.p2p.web.RoutableWebServer.acceptsGzip;
+import static com.pgrenaud.android.p2p.web.RoutableWebServer.isNotModified;
+import static com.pgrenaud.android.p2p.web.RoutableWebServer.sendBinary;
+import static com.pgrenaud.android.p2p.web.RoutableWebServer.sendEncodedJSON;
 import static com.pgrenaud.android.p2p.web.RoutableWebServer.sendError;
 import static com.pgrenaud.android.p2p.web.RoutableWebServer.sendEvent;
+import static com.pgrenaud.android.p2p.web.RoutableWebServer.sendEventStream;
+import static com.pgrenaud.android.p2p.web.RoutableWebServer.sendEvents;
 import static com.pgrenaud.android.p2p.web.RoutableWebServer.sendJSON;
+import static com.pgrenaud.android.p2p.web.RoutableWebServer.sendNotModified;
 import static com.pgrenaud.android.p2p.web.RoutableWebServer.sendServerError;
 import static com.pgrenaud.android.p2p.web.RoutableWebServer.sendStream;
 import static com.pgrenaud.android.p2p.web.RoutableWebServer.sendTimeout;
 
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import com.pgrenaud.android.p2p.entity.BinaryCodec;
 import com.pgrenaud.android.p2p.entity.EventEntity;
 import com.pgrenaud.android.p2p.entity.FileEntity;
 import com.pgrenaud.android.p2p.entity.PeerEntity;
 import com.pgrenaud.android.p2p.peering.PeerHive;
+import com.pgrenaud.android.p2p.repository.EventQueue;
 import com.pgrenaud.android.p2p.repository.FileRepository;
 import com.pgrenaud.android.p2p.repository.PeerRepository;
 import com.pgrenaud.android.p2p.repository.QueueRepository;
 
+import fi.iki.elonen.NanoHTTPD.IHTTPSession;
 import fi.iki.elonen.NanoHTTPD.Response;
 
 public class RequestHandler {
 
+    public static final int DEFAULT_PAGE_SIZE = 100;
+    public static final int MAX_PAGE_SIZE = 1000;
+    public static final int DEFAULT_SEARCH_LIMIT = 50;
+    public static final int MAX_SEARCH_LIMIT = 500;
+
     private static final long REQUEST_TIMEOUT = 60;
+    private static final int MAX_BATCH_SIZE = 100;
+    private static final long MAX_BATCH_LINGER = 1000;
+
+    // Answers the parked polls, lingering and timeouts included
+    private static final ScheduledThreadPoolExecutor POLLS = createScheduler();
 
     private final QueueRepository queueRepository;
     private final FileRepository fileRepository;
@@ -39,23 +67,61 @@ public class RequestHandler {
         this.peerHive = peerHive;
     }
 
+    private static ScheduledThreadPoolExecutor createScheduler() {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "RequestHandler Polls");
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+        scheduler.setRemoveOnCancelPolicy(true);
+
+        return scheduler;
+    }
+
     public Response handlePolling(UUID uuid) {
-        PeerEntity peer = peerRepository.get(uuid);
+        return handlePolling(uuid, Collections.<String, String>emptyMap());
+    }
 
-        if (peer != null) {
-            // Try to start worker if not already running
-            peerHive.spawnWorker(peer);
-        }
+    /**
+     * Wait for an event of the peer queue. When the connection is served by a
+     * {@link BoundedAsyncRunner}, a pending poll is answered with a {@link DeferredResponse} and
+     * parked on the queue, so that it holds no thread until an event is published or it times out.
+     * Otherwise, the poll blocks the thread serving it.
+     *
+     * @param headers Headers of the request, used to pick the encoding of the events.
+     */
+    public Response handlePolling(UUID uuid, Map<String, String> headers) {
+        spawnWorker(uuid);
 
         BlockingQueue<EventEntity> queue = queueRepository.getOrCreate(uuid);
 
+        EventEntity event = queue.poll();
+
+        if (event != null) {
+            Log.d("RequestHandler", "Handling event " + event.getEvent());
+
+            return sendEvent(event, headers);
+        }
+
+        DeferredResponse deferred = DeferredResponse.create();
+
+        if (deferred != null && queue instanceof EventQueue) {
+            new PollWaiter((EventQueue) queue, deferred, false, 1, 0, headers).start();
+
+            return deferred;
+        }
+
         try {
-            EventEntity event = queue.poll(REQUEST_TIMEOUT, TimeUnit.SECONDS);
+            event = queue.poll(REQUEST_TIMEOUT, TimeUnit.SECONDS);
 
             if (event != null) {
                 Log.d("RequestHandler", "Handling event " + event.getEvent());
 
-                return sendEvent(event);
+                return sendEvent(event, headers);
             } else {
                 return sendTimeout();
             }
@@ -64,17 +130,295 @@ public class RequestHandler {
         }
     }
 
+    /**
+     * Wait for at least one event, then drain every queued event up to the batch size. The poll
+     * is parked like in {@link #handlePolling(UUID, Map)}, lingering included.
+     *
+     * @param uuid UUID of the polling peer.
+     * @param batchSize Maximum number of events to return, capped to {@link #MAX_BATCH_SIZE}.
+     * @param linger Milliseconds to wait for more events after the first one, capped to {@link #MAX_BATCH_LINGER}.
+     */
+    public Response handleBatchPolling(UUID uuid, int batchSize, long linger) {
+        return handleBatchPolling(uuid, batchSize, linger, Collections.<String, String>emptyMap());
+    }
+
+    /**
+     *
+     * @param headers Headers of the request, used to pick the encoding of the events.
+     */
+    public Response handleBatchPolling(UUID uuid, int batchSize, long linger, Map<String, String> headers) {
+        spawnWorker(uuid);
+
+        BlockingQueue<EventEntity> queue = queueRepository.getOrCreate(uuid);
+
+        batchSize = Math.max(1, Math.min(batchSize, MAX_BATCH_SIZE));
+        linger = Math.max(0, Math.min(linger, MAX_BATCH_LINGER));
+
+        DeferredResponse deferred = DeferredResponse.create();
+
+        if (deferred != null && queue instanceof EventQueue) {
+            new PollWaiter((EventQueue) queue, deferred, true, batchSize, linger, headers).start();
+
+            return deferred;
+        }
+
+        try {
+            EventEntity event = queue.poll(REQUEST_TIMEOUT, TimeUnit.SECONDS);
+
+            if (event == null) {
+                return sendTimeout();
+            }
+
+            List<EventEntity> events = new ArrayList<>();
+            events.add(event);
+
+            // Linger a little so that a burst of events ends up in the same batch
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(linger);
+
+            while (events.size() < batchSize) {
+                queue.drainTo(events, batchSize - events.size());
+
+                long remaining = deadline - System.nanoTime();
+
+                if (events.size() >= batchSize || remaining <= 0) {
+                    break;
+                }
+
+                event = queue.poll(remaining, TimeUnit.NANOSECONDS);
+
+                if (event == null) {
+                    break;
+                }
+
+                events.add(event);
+            }
+
+            Log.d("RequestHandler", "Handling batch of " + events.size() + " events");
+
+            return sendEvents(events, headers);
+        } catch (InterruptedException e) {
+            return sendServerError("SERVER INTERNAL ERROR: InterruptedException: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Keep the connection open and write the events of the peer queue as they are published.
+     *
+     * @param uuid UUID of the streaming peer.
+     */
+    public Response handleStream(UUID uuid) {
+        spawnWorker(uuid);
+
+        Log.d("RequestHandler", "Opening event stream for peer " + uuid);
+
+        return sendEventStream(queueRepository.getOrCreate(uuid));
+    }
+
+    /**
+     * Open a WebSocket carrying the events of both peers. Events of the peer queue are pumped
+     * into the socket by the {@link PeerHive} once it is open.
+     *
+     * @param uuid UUID of the connecting peer.
+     */
+    public PeerWebSocket handleSocket(IHTTPSession session, UUID uuid) {
+        spawnWorker(uuid);
+
+        Log.d("RequestHandler", "Opening socket for peer " + uuid);
+
+        return new PeerWebSocket(session, uuid, peerHive);
+    }
+
+    private void spawnWorker(UUID uuid) {
+        PeerEntity peer = peerRepository.get(uuid);
+
+        if (peer != null) {
+            // Try to start worker if not already running
+            peerHive.spawnWorker(peer);
+        }
+    }
+
     public Response handleFileList() {
-        return sendJSON(fileRepository.encode());
+        return handleFileList(Collections.<String, String>emptyMap());
+    }
+
+    /**
+     *
+     * @param headers Headers of the request, used to answer If-None-Match without sending the list again.
+     */
+    public Response handleFileList(Map<String, String> headers) {
+        FileRepository.EncodedList list = fileRepository.getEncodedList();
+        boolean binary = BinaryCodec.isAccepted(headers.get("accept"));
+        String etag = binary ? list.getBinaryETag() : list.getETag();
+
+        if (isNotModified(headers, etag)) {
+            return sendNotModified(etag);
+        }
+
+        Response response;
+
+        if (binary) {
+            response = sendBinary(list.getBinary());
+            response.addHeader("ETag", etag);
+        } else {
+            // Only compress the list once a peer accepts it compressed
+            byte[] gzip = acceptsGzip(headers) ? list.getGzip() : null;
+
+            response = sendEncodedJSON(list.getJson(), gzip, etag, headers);
+        }
+
+        response.addHeader("Vary", "Accept, Accept-Encoding");
+        return response;
+    }
+
+    /**
+     *
+     * @param since Version of the list known by the peer.
+     */
+    public Response handleFileDelta(long since) {
+        return sendJSON(fileRepository.getDelta(since).encode());
+    }
+
+    /**
+     *
+     * @param query Words to look for in the names of the files.
+     * @param limit Maximum number of files returned, capped to {@link #MAX_SEARCH_LIMIT}.
+     */
+    public Response handleSearch(String query, int limit) {
+        List<FileEntity> files = fileRepository.search(query, Math.min(limit, MAX_SEARCH_LIMIT));
+
+        return sendJSON(FileEntity.encodeAll(files));
+    }
+
+    /**
+     *
+     * @param limit Maximum number of files in the page, capped to {@link #MAX_PAGE_SIZE}.
+     */
+    public Response handleFilePage(FileRepository.Sort sort, boolean descending, int limit) {
+        return sendJSON(fileRepository.getPage(sort, descending, Math.min(limit, MAX_PAGE_SIZE)).encode());
+    }
+
+    /**
+     *
+     * @param cursor Cursor returned along the previous page.
+     * @param limit Maximum number of files in the page, capped to {@link #MAX_PAGE_SIZE}.
+     */
+    public Response handleFilePage(String cursor, int limit) {
+        try {
+            return sendJSON(fileRepository.getPage(cursor, Math.min(limit, MAX_PAGE_SIZE)).encode());
+        } catch (IllegalArgumentException e) {
+            return sendError("Invalid cursor.");
+        }
     }
 
     public Response handleFileRequest(UUID uuid) {
+        return handleFileRequest(uuid, Collections.<String, String>emptyMap());
+    }
+
+    /**
+     *
+     * @param uuid UUID of the requested file.
+     * @param headers Headers of the request, used to serve ranges of the file.
+     */
+    public Response handleFileRequest(UUID uuid, Map<String, String> headers) {
         FileEntity file = fileRepository.get(uuid);
 
         if (file != null) {
-            return sendStream(file.getFile());
+            return sendStream(file.getFile(), headers);
         } else {
             return sendError("Could not find file with UUID '" + uuid + "'.");
         }
     }
+
+    /**
+     * Poll parked on the queue of a peer, answering its deferred response once events are
+     * published, or with a timeout.
+     */
+    private static class PollWaiter implements EventQueue.Waiter {
+
+        private final EventQueue queue;
+        private final DeferredResponse deferred;
+        private final boolean batch;
+        private final int batchSize;
+        private final long linger;
+        private final Map<String, String> headers;
+        private final long deadline;
+        private final AtomicBoolean done;
+
+        private volatile ScheduledFuture<?> timeout;
+
+        private PollWaiter(EventQueue queue, DeferredResponse deferred, boolean batch, int batchSize, long linger, Map<String, String> headers) {
+            this.queue = queue;
+            this.deferred = deferred;
+            this.batch = batch;
+            this.batchSize = batchSize;
+            this.linger = linger;
+            this.headers = headers;
+
+            deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(REQUEST_TIMEOUT);
+            done = new AtomicBoolean(false);
+        }
+
+        private void start() {
+            timeout = POLLS.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    // A waiter no longer parked is already being answered
+                    if (queue.unpark(PollWaiter.this)) {
+                        complete(sendTimeout());
+                    }
+                }
+            }, REQUEST_TIMEOUT, TimeUnit.SECONDS);
+
+            if (!queue.park(this)) {
+                onEvent();
+            }
+        }
+
+        @Override
+        public void onEvent() {
+            // Linger a little so that a burst of events ends up in the same batch
+            long delay = batch && queue.size() < batchSize ? linger : 0;
+
+            POLLS.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    finish();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        private void finish() {
+            List<EventEntity> events = new ArrayList<>();
+            queue.drainTo(events, batchSize);
+
+            if (events.isEmpty()) {
+                // Another poll of the peer took the events
+                if (deadline - System.nanoTime() <= 0) {
+                    complete(sendTimeout());
+                } else if (!queue.park(this)) {
+                    onEvent();
+                }
+            } else if (batch) {
+                Log.d("RequestHandler", "Handling batch of " + events.size() + " events");
+
+                complete(sendEvents(events, headers));
+            } else {
+                Log.d("RequestHandler", "Handling event " + events.get(0).getEvent());
+
+                complete(sendEvent(events.get(0), headers));
+            }
+        }
+
+        private void complete(Response response) {
+            if (done.compareAndSet(false, true)) {
+                ScheduledFuture<?> timeout = this.timeout;
+
+                if (timeout != null) {
+                    timeout.cancel(false);
+                }
+
+                deferred.complete(response);
+            }
+        }
+    }
 }
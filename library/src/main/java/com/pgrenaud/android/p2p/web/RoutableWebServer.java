@@ -1,12 +1,32 @@
 package com.pgrenaud.android.p2p.web;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
 import java.util.UUID;
 import java.util.regex.Pattern;
 
+import com.pgrenaud.android.p2p.entity.BinaryCodec;
+import com.pgrenaud.android.p2p.helper.ApiEndpoints;
+import com.pgrenaud.android.p2p.repository.FileRepository;
+
 public class RoutableWebServer extends BasicWebServer {
 
     public static final Pattern FILE_REQUEST_URL_PATTERN = Pattern.compile("^/api/v1/file/([a-zA-Z0-9-]+)$");
     public static final Pattern PEER_POLLING_URL_PATTERN = Pattern.compile("^/api/v1/polling/([a-zA-Z0-9-]+)$");
+    public static final Pattern PEER_STREAM_URL_PATTERN = Pattern.compile("^/api/v1/stream/([a-zA-Z0-9-]+)$");
+    public static final Pattern PEER_SOCKET_URL_PATTERN = Pattern.compile("^/api/v1/socket/([a-zA-Z0-9-]+)$");
+
+    // Transports advertised in the ping response, by order of preference
+    private static final String[] TRANSPORTS = {
+            ApiEndpoints.TRANSPORT_SOCKET,
+            ApiEndpoints.TRANSPORT_STREAM,
+            ApiEndpoints.TRANSPORT_POLLING,
+    };
 
     private final RequestHandler handler;
 
@@ -18,6 +38,10 @@ public class RoutableWebServer extends BasicWebServer {
 
     @Override
     public Response serve(IHTTPSession session) {
+        return compress(session, route(session));
+    }
+
+    private Response route(IHTTPSession session) {
         Method method = session.getMethod();
         String uri = session.getUri();
 
@@ -34,8 +58,14 @@ public class RoutableWebServer extends BasicWebServer {
                 return handlePing();
             } else if (uri.startsWith("/api/v1/polling") && PEER_POLLING_URL_PATTERN.matcher(uri).matches()) {
                 return handlePolling(session);
+            } else if (uri.startsWith("/api/v1/stream") && PEER_STREAM_URL_PATTERN.matcher(uri).matches()) {
+                return handleStream(session);
+            } else if (uri.startsWith("/api/v1/socket") && PEER_SOCKET_URL_PATTERN.matcher(uri).matches()) {
+                return handleSocket(session);
             } else if (uri.equals("/api/v1/files")) {
-                return handleFileList();
+                return handleFileList(session);
+            } else if (uri.equals("/api/v1/search")) {
+                return handleSearch(session);
             } else if (uri.startsWith("/api/v1/file/") && FILE_REQUEST_URL_PATTERN.matcher(uri).matches()) {
                 return handleFileRequest(session);
             } else {
@@ -52,8 +82,35 @@ public class RoutableWebServer extends BasicWebServer {
         }
     }
 
+    @Override
+    public RequestClass classify(Method method, String uri) {
+        if (Method.GET.equals(method) && uri.startsWith("/api/v1/file/")) {
+            return RequestClass.BULK;
+        }
+
+        if (Method.GET.equals(method) && (uri.startsWith("/api/v1/polling/") || uri.startsWith("/api/v1/stream/") || uri.startsWith("/api/v1/socket/"))) {
+            return RequestClass.STREAMING;
+        }
+
+        return RequestClass.CONTROL;
+    }
+
+    @Override
+    protected WebSocket openWebSocket(IHTTPSession session) {
+        UUID uuid = UUID.fromString(getRouteParam(session, PEER_SOCKET_URL_PATTERN, 1));
+
+        return handler.handleSocket(session, uuid);
+    }
+
     private Response handlePing() {
-        return sendOk("pong");
+        try {
+            JSONObject json = new JSONObject();
+            json.put("message", "pong");
+            json.put("transports", new JSONArray(Arrays.asList(TRANSPORTS)));
+            return sendJSON(json.toString());
+        } catch (JSONException e) {
+            return sendServerError("SERVER INTERNAL ERROR: JSONException: " + e.getMessage());
+        }
     }
 
     private Response handlePolling(IHTTPSession session) {
@@ -63,7 +120,29 @@ public class RoutableWebServer extends BasicWebServer {
             try {
                 UUID uuid = UUID.fromString(param);
 
-                return handler.handlePolling(uuid);
+                Map<String, String> parms = session.getParms();
+
+                if (parms.containsKey("batch")) {
+                    return handleBatchPolling(uuid, parms, session.getHeaders());
+                }
+
+                return handler.handlePolling(uuid, session.getHeaders());
+            } catch (IllegalArgumentException e) {
+                return sendError("Invalid UUID.");
+            }
+        }
+
+        return sendError("Invalid URI (UUID is missing).");
+    }
+
+    private Response handleStream(IHTTPSession session) {
+        String param = getRouteParam(session, PEER_STREAM_URL_PATTERN, 1);
+
+        if (param != null) {
+            try {
+                UUID uuid = UUID.fromString(param);
+
+                return handler.handleStream(uuid);
             } catch (IllegalArgumentException e) {
                 return sendError("Invalid UUID.");
             }
@@ -72,8 +151,107 @@ public class RoutableWebServer extends BasicWebServer {
         return sendError("Invalid URI (UUID is missing).");
     }
 
-    private Response handleFileList() {
-        return handler.handleFileList();
+    private Response handleSocket(IHTTPSession session) {
+        String param = getRouteParam(session, PEER_SOCKET_URL_PATTERN, 1);
+
+        if (param != null) {
+            try {
+                UUID.fromString(param);
+            } catch (IllegalArgumentException e) {
+                return sendError("Invalid UUID.");
+            }
+
+            if (!isWebsocketRequested(session)) {
+                return sendError("Invalid request (expected a WebSocket upgrade).");
+            }
+
+            // Let NanoWSD perform the handshake, it will call openWebSocket()
+            Response response = serveWebSocket(session);
+
+            // Confirm that messages of this link may use the binary encoding
+            if (response.getStatus() == Response.Status.SWITCH_PROTOCOL && BinaryCodec.isAccepted(session.getHeaders().get("accept"))) {
+                response.addHeader("Content-Type", BinaryCodec.MIME_BINARY);
+            }
+
+            return response;
+        }
+
+        return sendError("Invalid URI (UUID is missing).");
+    }
+
+    private Response handleBatchPolling(UUID uuid, Map<String, String> parms, Map<String, String> headers) {
+        try {
+            int batchSize = Integer.parseInt(parms.get("batch"));
+            long linger = parms.containsKey("linger") ? Long.parseLong(parms.get("linger")) : 0;
+
+            return handler.handleBatchPolling(uuid, batchSize, linger, headers);
+        } catch (NumberFormatException e) {
+            return sendError("Invalid batch size or linger.");
+        }
+    }
+
+    private Response handleFileList(IHTTPSession session) {
+        Map<String, String> parms = session.getParms();
+
+        if (parms.containsKey("since")) {
+            try {
+                return handler.handleFileDelta(Long.parseLong(parms.get("since")));
+            } catch (NumberFormatException e) {
+                return sendError("Invalid since version.");
+            }
+        }
+
+        if (parms.containsKey("limit") || parms.containsKey("cursor") || parms.containsKey("sort")) {
+            return handleFilePage(parms);
+        }
+
+        return handler.handleFileList(session.getHeaders());
+    }
+
+    private Response handleFilePage(Map<String, String> parms) {
+        FileRepository.Sort sort;
+        int limit;
+
+        try {
+            sort = parms.containsKey("sort") ? FileRepository.Sort.valueOf(parms.get("sort").toUpperCase(Locale.ROOT)) : FileRepository.Sort.NAME;
+        } catch (IllegalArgumentException e) {
+            return sendError("Invalid sort (expected name, size or modified).");
+        }
+
+        try {
+            limit = parms.containsKey("limit") ? Integer.parseInt(parms.get("limit")) : RequestHandler.DEFAULT_PAGE_SIZE;
+        } catch (NumberFormatException e) {
+            return sendError("Invalid limit.");
+        }
+
+        if (limit < 1) {
+            return sendError("Invalid limit.");
+        }
+
+        String cursor = parms.get("cursor");
+
+        if (cursor != null) {
+            return handler.handleFilePage(cursor, limit);
+        }
+
+        return handler.handleFilePage(sort, "desc".equals(parms.get("order")), limit);
+    }
+
+    private Response handleSearch(IHTTPSession session) {
+        Map<String, String> parms = session.getParms();
+        String query = parms.get("q");
+
+        if (query == null) {
+            return sendError("Invalid URI (query is missing).");
+        }
+
+        try {
+            int limit = parms.containsKey("limit") ? Integer.parseInt(parms.get("limit")) : RequestHandler.DEFAULT_SEARCH_LIMIT;
+
+            return handler.handleSearch(query, limit);
+        } catch (NumberFormatException e) {
+            return sendError("Invalid limit.");
+        }
     }
 
     private Response handleFileRequest(IHTTPSession session) {
@@ -83,7 +261,7 @@ public class RoutableWebServer extends BasicWebServer {
             try {
                 UUID uuid = UUID.fromString(param);
 
-                return handler.handleFileRequest(uuid);
+                return handler.handleFileRequest(uuid, session.getHeaders());
             } catch (IllegalArgumentException e) {
                 return sendError("Invalid UUID.");
             }
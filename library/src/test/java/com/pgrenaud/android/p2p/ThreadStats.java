@@ -0,0 +1,57 @@
+package com.pgrenaud.android.p2p;
+
+import java.lang.reflect.Method;
+
+/**
+ * CPU time and allocations of the threads, for the benchmarks. The management API is reached
+ * through reflection, as it is part of the JVM running the unit tests but not of android.jar.
+ */
+public final class ThreadStats {
+
+    private static final Object THREADS = getThreadMXBean();
+
+    private ThreadStats() {
+    }
+
+    /**
+     *
+     * @return Returns the CPU time of all the live threads in nanoseconds, or -1 if unsupported.
+     */
+    public static long getCpuTime() {
+        try {
+            Method getIds = Class.forName("java.lang.management.ThreadMXBean").getMethod("getAllThreadIds");
+            Method getTime = Class.forName("java.lang.management.ThreadMXBean").getMethod("getThreadCpuTime", long.class);
+            long time = 0;
+
+            for (long id : (long[]) getIds.invoke(THREADS)) {
+                time += Math.max(0, (Long) getTime.invoke(THREADS, id));
+            }
+
+            return time;
+        } catch (ReflectiveOperationException | NullPointerException e) {
+            return -1;
+        }
+    }
+
+    /**
+     *
+     * @return Returns the bytes allocated by the current thread so far, or -1 if unsupported.
+     */
+    public static long getAllocatedBytes() {
+        try {
+            Method method = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+
+            return (Long) method.invoke(THREADS, Thread.currentThread().getId());
+        } catch (ReflectiveOperationException | NullPointerException | IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    private static Object getThreadMXBean() {
+        try {
+            return Class.forName("java.lang.management.ManagementFactory").getMethod("getThreadMXBean").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.pgrenaud.android.p2p.entity;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BinaryCodecTest {
+
+    private static final int EVENTS = 0;
+    private static final int PEERS = 1;
+    private static final int FILES = 2;
+
+    private static final String HASH = "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+
+    @Test
+    public void eventsRoundTrip() throws IOException {
+        EventEntity name = new EventEntity(EventEntity.Type.DISPLAY_NAME_UPDATE);
+        name.getParams().setDisplayName("Pierre-Évariste ✓");
+        EventEntity location = new EventEntity(EventEntity.Type.LOCATION_UPDATE);
+        location.getParams().setLocation(new LocationEntity(45.5017, null));
+        EventEntity directory = new EventEntity(EventEntity.Type.DIRECTORY_CHANGE);
+        directory.getParams().setDirectoryVersion(Long.MAX_VALUE);
+        EventEntity unknown = new EventEntity(null);
+
+        List<EventEntity> events = decodeEvents(BinaryCodec.encodeEvents(Arrays.asList(name, location, directory, unknown)));
+
+        assertEquals(4, events.size());
+        assertEquals(EventEntity.Type.DISPLAY_NAME_UPDATE, events.get(0).getEvent());
+        assertEquals("Pierre-Évariste ✓", events.get(0).getParams().getDisplayName());
+        assertNull(events.get(0).getParams().getDirectoryVersion());
+        assertEquals(EventEntity.Type.LOCATION_UPDATE, events.get(1).getEvent());
+        assertEquals(45.5017, events.get(1).getParams().getLocation().getLatitude(), 0);
+        assertNull(events.get(1).getParams().getLocation().getLongitude());
+        assertEquals(EventEntity.Type.DIRECTORY_CHANGE, events.get(2).getEvent());
+        assertEquals(Long.valueOf(Long.MAX_VALUE), events.get(2).getParams().getDirectoryVersion());
+        assertNull(events.get(3).getEvent());
+    }
+
+    @Test
+    public void peersRoundTrip() throws IOException {
+        PeerEntity peer = new PeerEntity("Peer ✓", "192.168.1.42", 8080);
+        PeerEntity empty = new PeerEntity(null, null, null, null);
+
+        List<PeerEntity> peers = BinaryCodec.decodePeers(new ByteArrayInputStream(BinaryCodec.encodePeers(Arrays.asList(peer, empty))));
+
+        assertEquals(2, peers.size());
+        assertEquals(peer.getUUID(), peers.get(0).getUUID());
+        assertEquals("Peer ✓", peers.get(0).getDisplayName());
+        assertEquals("192.168.1.42", peers.get(0).getIpAddress());
+        assertEquals(Integer.valueOf(8080), peers.get(0).getPort());
+        assertNull(peers.get(1).getDisplayName());
+        assertNull(peers.get(1).getIpAddress());
+        assertNull(peers.get(1).getPort());
+    }
+
+    @Test
+    public void filesRoundTrip() throws IOException {
+        FileEntity hashed = new FileEntity(UUID.randomUUID(), "photo.jpg", 5L * 1024 * 1024 * 1024, HASH);
+        FileEntity textHash = new FileEntity(UUID.randomUUID(), "upper.txt", 0L, HASH.toUpperCase());
+        FileEntity unhashed = new FileEntity(UUID.randomUUID(), "new.txt", 12L, null);
+
+        byte[] encoded = BinaryCodec.encodeFiles(Arrays.asList(hashed, textHash, unhashed));
+        List<FileEntity> files = BinaryCodec.decodeFiles(new ByteArrayInputStream(encoded));
+
+        assertEquals(3, files.size());
+        assertFile(hashed, files.get(0));
+        assertFile(textHash, files.get(1));
+        assertFile(unhashed, files.get(2));
+
+        // The lower case hex hash is sent as raw bytes, half the size of the upper case one sent as text
+        int raw = BinaryCodec.encodeFiles(Collections.singletonList(hashed)).length;
+        int text = BinaryCodec.encodeFiles(Collections.singletonList(new FileEntity(hashed.getUuid(), "photo.jpg", hashed.getSize(), HASH.toUpperCase()))).length;
+        assertEquals(HASH.length() / 2, text - raw);
+    }
+
+    @Test
+    public void emptyListRoundTrip() throws IOException {
+        byte[] encoded = BinaryCodec.encodeFiles(Collections.<FileEntity>emptyList());
+
+        assertArrayEquals(new byte[] {1, 0}, encoded);
+        assertTrue(BinaryCodec.decodeFiles(new ByteArrayInputStream(encoded)).isEmpty());
+    }
+
+    @Test
+    public void trailingFieldsAreSkipped() throws IOException {
+        // A display name event followed by fields of a later version, then a location event
+        byte[] message = {1, 2, 5, 1, 0, 9, 9, 9, 2, 3, 0};
+
+        List<EventEntity> events = decodeEvents(message);
+
+        assertEquals(2, events.size());
+        assertEquals(EventEntity.Type.DISPLAY_NAME_UPDATE, events.get(0).getEvent());
+        assertEquals(EventEntity.Type.DIRECTORY_CHANGE, events.get(1).getEvent());
+    }
+
+    @Test
+    public void truncatedMessages() {
+        EventEntity event = new EventEntity(EventEntity.Type.DISPLAY_NAME_UPDATE);
+        event.getParams().setDisplayName("name");
+        byte[] encoded = BinaryCodec.encodeEvents(Arrays.asList(event, event));
+
+        // Every prefix of a message is rejected, whether cut in the header, a length or a record
+        for (int length = 0; length < encoded.length; length++) {
+            assertRejected(EVENTS, Arrays.copyOf(encoded, length), null);
+        }
+    }
+
+    @Test
+    public void truncatedRecords() {
+        // Records whose fields run past their length
+        assertRejected(EVENTS, new byte[] {1, 1, 2, 1, 1}, "Truncated event record");
+        assertRejected(EVENTS, new byte[] {1, 1, 4, 2, 2, 0, 0}, "Truncated event record");
+        assertRejected(PEERS, new byte[] {1, 1, 1, 1}, "Truncated peer record");
+        assertRejected(FILES, new byte[] {1, 1, 1, 8}, "Truncated file record");
+
+        // A field length past the end of its record
+        assertRejected(EVENTS, new byte[] {1, 1, 3, 1, 1, 5}, "Invalid field length: 5");
+        assertRejected(FILES, new byte[] {1, 1, 2, 2, 9}, "Invalid field length: 9");
+    }
+
+    @Test
+    public void overLongRecords() {
+        // 65537 bytes, past the maximum record size
+        assertRejected(PEERS, new byte[] {1, 1, (byte) 0x81, (byte) 0x80, 4}, "Invalid record length: 65537");
+    }
+
+    @Test
+    public void malformedHeaders() {
+        assertRejected(FILES, new byte[] {2, 0}, "Unsupported binary format version: 2");
+        assertRejected(FILES, new byte[] {1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1}, "Malformed varint");
+        assertRejected(FILES, new byte[] {1, -1, -1, -1, -1, 127}, "Invalid record count: 34359738367");
+    }
+
+    private static List<EventEntity> decodeEvents(byte[] message) throws IOException {
+        return BinaryCodec.decodeEvents(new ByteArrayInputStream(message));
+    }
+
+    private static void assertFile(FileEntity expected, FileEntity actual) {
+        assertEquals(expected.getUuid(), actual.getUuid());
+        assertEquals(expected.getName(), actual.getName());
+        assertEquals(expected.getSize(), actual.getSize());
+        assertEquals(expected.getHash(), actual.getHash());
+    }
+
+    /**
+     *
+     * @param error Expected message of the exception, or null if any is expected.
+     */
+    private static void assertRejected(int type, byte[] message, String error) {
+        ByteArrayInputStream inputStream = new ByteArrayInputStream(message);
+
+        try {
+            if (type == EVENTS) {
+                BinaryCodec.decodeEvents(inputStream);
+            } else if (type == PEERS) {
+                BinaryCodec.decodePeers(inputStream);
+            } else {
+                BinaryCodec.decodeFiles(inputStream);
+            }
+
+            fail("Message " + Arrays.toString(message) + " was not rejected");
+        } catch (IOException e) {
+            if (error != null) {
+                assertEquals(error, e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.pgrenaud.android.p2p.entity;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.pgrenaud.android.p2p.ThreadStats;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compare the time and allocations per message of the shared codec, its streaming adapters and
+ * the binary encoding, to a reflective Gson created for each message as entities used to do.
+ * Run on its own with:
+ *
+ * ./gradlew :library:testDebugUnitTest --tests '*EntityCodecBenchmark'
+ */
+public class EntityCodecBenchmark {
+
+    private static final Type LIST_TYPE = new TypeToken<List<FileEntity>>(){}.getType();
+    private static final int FILES_PER_MESSAGE = 100;
+    private static final int WARM_UP = 1000;
+    private static final int MESSAGES = 500;
+    private static final int ROUNDS = 5;
+
+    @Test
+    public void fileLists() throws IOException {
+        final List<FileEntity> files = new ArrayList<>();
+        for (int i = 0; i < FILES_PER_MESSAGE; i++) {
+            files.add(new FileEntity(UUID.randomUUID(), "IMG_" + (20160000 + i) + ".jpg", 1024L * 1024 + i,
+                    "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08"));
+        }
+
+        final String json = FileEntity.encodeAll(files);
+        final byte[] binary = BinaryCodec.encodeFiles(files);
+
+        measure("reflective Gson encode", new Codec() {
+            @Override
+            public int run() {
+                return new Gson().toJson(files, LIST_TYPE).length();
+            }
+        });
+        measure("shared codec encode", new Codec() {
+            @Override
+            public int run() {
+                return FileEntity.encodeAll(files).length();
+            }
+        });
+        measure("binary encode", new Codec() {
+            @Override
+            public int run() {
+                return BinaryCodec.encodeFiles(files).length;
+            }
+        });
+        measure("reflective Gson decode", new Codec() {
+            @Override
+            public int run() {
+                List<FileEntity> decoded = new Gson().fromJson(json, LIST_TYPE);
+
+                return decoded.size();
+            }
+        });
+        measure("shared codec decode", new Codec() {
+            @Override
+            public int run() {
+                return FileEntity.decodeAll(json).size();
+            }
+        });
+        measure("binary decode", new Codec() {
+            @Override
+            public int run() throws IOException {
+                return BinaryCodec.decodeFiles(new ByteArrayInputStream(binary)).size();
+            }
+        });
+
+        assertEquals(json, new Gson().toJson(files, LIST_TYPE));
+    }
+
+    @Test
+    public void peers() throws IOException {
+        final PeerEntity peer = new PeerEntity("Peer", "192.168.1.42", 8080);
+        final String json = peer.encode();
+
+        measure("reflective Gson peer encode", new Codec() {
+            @Override
+            public int run() {
+                return new Gson().toJson(peer).length();
+            }
+        });
+        measure("shared codec peer encode", new Codec() {
+            @Override
+            public int run() {
+                return peer.encode().length();
+            }
+        });
+        measure("reflective Gson peer decode", new Codec() {
+            @Override
+            public int run() {
+                return new Gson().fromJson(json, PeerEntity.class).getPort();
+            }
+        });
+        measure("shared codec peer decode", new Codec() {
+            @Override
+            public int run() {
+                return PeerEntity.decode(json).getPort();
+            }
+        });
+    }
+
+    /**
+     * Print the best of a few rounds, once warmed up.
+     */
+    private static void measure(String name, Codec codec) throws IOException {
+        int checksum = 0;
+        long bestTime = Long.MAX_VALUE;
+        long bestAllocated = Long.MAX_VALUE;
+
+        for (int i = 0; i < WARM_UP; i++) {
+            checksum += codec.run();
+        }
+
+        for (int round = 0; round < ROUNDS; round++) {
+            long allocated = ThreadStats.getAllocatedBytes();
+            long start = System.nanoTime();
+
+            for (int i = 0; i < MESSAGES; i++) {
+                checksum += codec.run();
+            }
+
+            bestTime = Math.min(bestTime, System.nanoTime() - start);
+            bestAllocated = Math.min(bestAllocated, ThreadStats.getAllocatedBytes() - allocated);
+        }
+
+        System.out.println(String.format(Locale.US, "%-28s %8.1f us %8d bytes per message (%d)",
+                name, bestTime / 1e3 / MESSAGES, bestAllocated / MESSAGES, checksum));
+    }
+
+    private interface Codec {
+        /**
+         *
+         * @return Returns a value depending on the result, so that the work is not optimized away.
+         */
+        int run() throws IOException;
+    }
+}
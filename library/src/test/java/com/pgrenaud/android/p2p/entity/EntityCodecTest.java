@@ -0,0 +1,111 @@
+package com.pgrenaud.android.p2p.entity;
+
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.reflect.TypeToken;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class EntityCodecTest {
+
+    private static final Type FILES_TYPE = new TypeToken<List<FileEntity>>(){}.getType();
+
+    @Test
+    public void eventsRoundTrip() {
+        EventEntity name = new EventEntity(EventEntity.Type.DISPLAY_NAME_UPDATE);
+        name.getParams().setDisplayName("Pierre-Évariste ✓");
+        EventEntity location = new EventEntity(EventEntity.Type.LOCATION_UPDATE);
+        location.getParams().setLocation(new LocationEntity(45.5017, -73.5673));
+        EventEntity directory = new EventEntity(EventEntity.Type.DIRECTORY_CHANGE);
+        directory.getParams().setDirectoryVersion(1L << 40);
+
+        List<EventEntity> events = EventEntity.decodeAll(EventEntity.encodeAll(Arrays.asList(name, location, directory)));
+
+        assertEquals(3, events.size());
+        assertEquals("Pierre-Évariste ✓", events.get(0).getParams().getDisplayName());
+        assertEquals(-73.5673, events.get(1).getParams().getLocation().getLongitude(), 0);
+        assertEquals(Long.valueOf(1L << 40), events.get(2).getParams().getDirectoryVersion());
+    }
+
+    @Test
+    public void singleEventIsAccepted() {
+        EventEntity event = new EventEntity(EventEntity.Type.DISPLAY_NAME_UPDATE);
+        event.getParams().setDisplayName("name");
+
+        List<EventEntity> events = EventEntity.decodeAll(event.encode());
+
+        assertEquals(1, events.size());
+        assertEquals("name", events.get(0).getParams().getDisplayName());
+    }
+
+    @Test
+    public void peersRoundTrip() {
+        PeerEntity peer = new PeerEntity("Peer ✓", "192.168.1.42", 8080);
+        peer.updateAccessedAt();
+
+        PeerEntity wire = PeerEntity.decode(peer.encode());
+        PeerEntity persisted = PeerEntity.decode(peer.persistEncode());
+
+        assertEquals(peer.getUUID(), wire.getUUID());
+        assertEquals("Peer ✓", wire.getDisplayName());
+        assertEquals("192.168.1.42", wire.getIpAddress());
+        assertEquals(Integer.valueOf(8080), wire.getPort());
+
+        // accessed_at is only kept on the device
+        assertFalse(peer.encode().contains("accessed_at"));
+        assertNull(wire.getAccessedAt());
+        assertNotNull(persisted.getAccessedAt());
+    }
+
+    @Test
+    public void filesStreamRoundTrip() throws IOException {
+        FileEntity hashed = new FileEntity(UUID.randomUUID(), "photo.jpg", 5L * 1024 * 1024 * 1024, "9f86d081");
+        FileEntity unhashed = new FileEntity(UUID.randomUUID(), "new.txt", 0L, null);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        EntityCodec.encode(Arrays.asList(hashed, unhashed), FILES_TYPE, baos);
+        List<FileEntity> files = EntityCodec.decode(new ByteArrayInputStream(baos.toByteArray()), FILES_TYPE);
+
+        assertEquals(2, files.size());
+        assertEquals(hashed.getUuid(), files.get(0).getUuid());
+        assertEquals("photo.jpg", files.get(0).getName());
+        assertEquals(Long.valueOf(5L * 1024 * 1024 * 1024), files.get(0).getSize());
+        assertEquals("9f86d081", files.get(0).getHash());
+        assertNull(files.get(1).getHash());
+    }
+
+    @Test
+    public void unknownFieldsAreSkipped() {
+        FileEntity file = FileEntity.decode("{\"uuid\":null,\"name\":\"a\",\"thumbnail\":{\"w\":1},\"size\":3}");
+
+        assertNull(file.getUuid());
+        assertEquals("a", file.getName());
+        assertEquals(Long.valueOf(3), file.getSize());
+    }
+
+    @Test
+    public void truncatedJson() {
+        String json = FileEntity.encodeAll(Arrays.asList(new FileEntity(UUID.randomUUID(), "a", 1L, null)));
+
+        try {
+            FileEntity.decodeAll(json.substring(0, json.length() - 3));
+
+            fail("Truncated list was accepted");
+        } catch (JsonSyntaxException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.pgrenaud.android.p2p.peering;
+
+import com.pgrenaud.android.p2p.entity.EventEntity;
+import com.pgrenaud.android.p2p.entity.PeerEntity;
+import com.pgrenaud.android.p2p.service.PeerService;
+import com.pgrenaud.android.p2p.web.BoundedAsyncRunner;
+import com.pgrenaud.android.p2p.web.RequestHandler;
+import com.pgrenaud.android.p2p.web.RoutableWebServer;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compare the WebSocket link to the HTTP polling fallback, between two peers over loopback.
+ * Prints the latency of events published one at a time, then the throughput of a burst.
+ * Run on its own with:
+ *
+ * ./gradlew :library:testDebugUnitTest --tests '*PeerLinkBenchmark'
+ */
+public class PeerLinkBenchmark {
+
+    private static final int PACED_EVENTS = 1000;
+    private static final int BURST_EVENTS = 10000;
+    private static final long TIMEOUT = 30000; // Milliseconds
+
+    @Test
+    public void socket() throws Exception {
+        run(false);
+    }
+
+    @Test
+    public void polling() throws Exception {
+        run(true);
+    }
+
+    private static void run(boolean polling) throws Exception {
+        Node receiver = new Node(polling);
+        Node sender = new Node(polling);
+
+        try {
+            receiver.service.getPeerRepository().add(new PeerEntity("Sender", "127.0.0.1", sender.port));
+            receiver.service.getPeerHive().sync();
+
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            while (receiver.online.get() < 1 || sender.service.getQueueRepository().getAll().isEmpty()) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new AssertionError("Peers not connected");
+                }
+                Thread.sleep(10);
+            }
+            Thread.sleep(500);
+
+            // Latency of events published one at a time, each carrying its publication time
+            for (int i = 0; i < PACED_EVENTS; i++) {
+                publish(sender, String.valueOf(System.nanoTime()));
+                Thread.sleep(1);
+            }
+            await(receiver, PACED_EVENTS);
+
+            List<Long> latencies = new ArrayList<>(receiver.latencies);
+            Collections.sort(latencies);
+
+            // Throughput of a burst
+            receiver.received.set(0);
+            long start = System.nanoTime();
+            for (int i = 0; i < BURST_EVENTS; i++) {
+                publish(sender, "burst");
+            }
+            await(receiver, BURST_EVENTS);
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            assertEquals(PACED_EVENTS, latencies.size());
+
+            System.out.println(String.format(Locale.US, "%s: p50 %.2f ms, p99 %.2f ms, max %.2f ms, %.0f events/s",
+                    polling ? "polling" : "socket", latencies.get(latencies.size() / 2) / 1e6,
+                    latencies.get(latencies.size() * 99 / 100) / 1e6, latencies.get(latencies.size() - 1) / 1e6,
+                    BURST_EVENTS / seconds));
+        } finally {
+            receiver.stop();
+            sender.stop();
+        }
+    }
+
+    private static void publish(Node node, String displayName) {
+        EventEntity event = new EventEntity(EventEntity.Type.DISPLAY_NAME_UPDATE);
+        event.getParams().setDisplayName(displayName);
+
+        node.service.getQueueRepository().putAll(event);
+    }
+
+    private static void await(Node node, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+
+        while (node.received.get() < count) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("Received " + node.received.get() + " of " + count + " events");
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Peer served on a free loopback port, as the service serves it. The polling one only advertises and serves the
+     * polling transport, so that its peers fall back to it.
+     */
+    private static class Node {
+        private final PeerService service;
+        private final RoutableWebServer server;
+        private final int port;
+        private final AtomicInteger online = new AtomicInteger();
+        private final AtomicInteger received = new AtomicInteger();
+        private final List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+
+        private Node(final boolean polling) throws Exception {
+            port = findFreePort();
+            service = new PeerService();
+
+            // The service is not started, only its repositories and hive are used
+            Field selfPeer = PeerService.class.getDeclaredField("selfPeer");
+            selfPeer.setAccessible(true);
+            selfPeer.set(service, new PeerEntity("Node " + port, "127.0.0.1", port));
+
+            service.setListener(new PeerService.PeerServiceListener() {
+                @Override
+                public void onPeerConnection(PeerEntity peerEntity) {
+                    online.addAndGet(peerEntity.isOnline() ? 1 : -1);
+                }
+
+                @Override
+                public void onPeerDisplayNameUpdate(PeerEntity peerEntity) {
+                    String displayName = peerEntity.getDisplayName();
+
+                    if (!displayName.equals("burst")) {
+                        latencies.add(System.nanoTime() - Long.parseLong(displayName));
+                    }
+                    received.incrementAndGet();
+                }
+
+                @Override
+                public void onPeerLocationUpdate(PeerEntity peerEntity) {
+                }
+
+                @Override
+                public void onPeerDirectoryChange(PeerEntity peerEntity) {
+                }
+            });
+
+            server = new RoutableWebServer(port, new RequestHandler(service.getQueueRepository(),
+                    service.getFileRepository(), service.getPeerRepository(), service.getPeerHive())) {
+                @Override
+                public Response serve(IHTTPSession session) {
+                    if (polling && session.getUri().equals("/api/v1/ping")) {
+                        return sendJSON("{\"message\":\"pong\",\"transports\":[\"polling\"]}");
+                    } else if (polling && !session.getUri().startsWith("/api/v1/polling/")) {
+                        return sendError("Transport not supported.");
+                    }
+
+                    return super.serve(session);
+                }
+            };
+            server.setAsyncRunner(new BoundedAsyncRunner(PeerService.DEFAULT_SERVER_MAX_CONTROL_THREADS,
+                    PeerService.DEFAULT_SERVER_MAX_CONTROL_BACKLOG, PeerService.DEFAULT_SERVER_MAX_STREAMING_THREADS,
+                    PeerService.DEFAULT_SERVER_MAX_STREAMING_BACKLOG, PeerService.DEFAULT_SERVER_MAX_BULK_THREADS,
+                    PeerService.DEFAULT_SERVER_MAX_BULK_BACKLOG, PeerService.DEFAULT_SERVER_REJECTION_POLICY));
+            server.start();
+        }
+
+        private void stop() {
+            service.getPeerHive().stop();
+            server.stop();
+        }
+
+        private static int findFreePort() throws IOException {
+            ServerSocket socket = new ServerSocket(0);
+
+            try {
+                return socket.getLocalPort();
+            } finally {
+                socket.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.pgrenaud.android.p2p.repository;
+
+import com.pgrenaud.android.p2p.entity.FileEntity;
+import com.pgrenaud.android.p2p.entity.FilePageEntity;
+import com.pgrenaud.android.p2p.repository.FileRepository.Sort;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class SortedIndexTest {
+
+    private SortedIndex index;
+    private Map<UUID, FileEntity> files;
+
+    @Before
+    public void setUp() {
+        index = new SortedIndex();
+        files = new HashMap<>();
+    }
+
+    @Test
+    public void pageWalk() {
+        for (int i = 0; i < 7; i++) {
+            add("f" + i, i, i);
+        }
+
+        FilePageEntity page = index.page(1, files, Sort.NAME, false, 3);
+        assertNames(page, "f0", "f1", "f2");
+        assertNotNull(page.getNext());
+
+        page = index.page(1, files, page.getNext(), 3);
+        assertNames(page, "f3", "f4", "f5");
+        assertNotNull(page.getNext());
+
+        page = index.page(1, files, page.getNext(), 3);
+        assertNames(page, "f6");
+        assertNull(page.getNext());
+    }
+
+    @Test
+    public void lastFullPageHasNoCursor() {
+        for (int i = 0; i < 6; i++) {
+            add("f" + i, i, i);
+        }
+
+        FilePageEntity page = index.page(1, files, Sort.NAME, false, 3);
+        page = index.page(1, files, page.getNext(), 3);
+
+        assertNames(page, "f3", "f4", "f5");
+        assertNull(page.getNext());
+    }
+
+    @Test
+    public void pageWalkWithChanges() {
+        Map<String, FileEntity> added = new HashMap<>();
+        for (int i = 0; i < 9; i++) {
+            added.put("f" + i, add("f" + i, i, i));
+        }
+
+        FilePageEntity page = index.page(1, files, Sort.NAME, false, 3);
+        assertNames(page, "f0", "f1", "f2");
+
+        // The cursor still works once the last file of the page is removed
+        remove(added.get("f2"));
+        remove(added.get("f3"));
+
+        // Files inserted after the cursor are returned, the ones before it are not
+        add("f25", 0, 0);
+        add("f05", 0, 0);
+
+        page = index.page(2, files, page.getNext(), 3);
+        assertNames(page, "f25", "f4", "f5");
+
+        // A file of the next page updated, moving it before the cursor
+        remove(added.get("f6"));
+        FileEntity moved = new FileEntity(new File("/files/a6"), added.get("f6").getUuid(), 6, 6, null);
+        files.put(moved.getUuid(), moved);
+        index.put(moved);
+
+        page = index.page(3, files, page.getNext(), 3);
+        assertNames(page, "f7", "f8");
+        assertNull(page.getNext());
+        assertEquals(3, page.getVersion());
+    }
+
+    @Test
+    public void descendingOrder() {
+        add("b", 300, 1);
+        add("a", 300, 2);
+        add("c", 100, 3);
+        add("d", 200, 4);
+        add("e", 400, 5);
+
+        List<String> names = new ArrayList<>();
+        FilePageEntity page = index.page(1, files, Sort.SIZE, true, 2);
+        names.addAll(getNames(page));
+
+        while (page.getNext() != null) {
+            page = index.page(1, files, page.getNext(), 2);
+            names.addAll(getNames(page));
+        }
+
+        // Ties on the size are ordered by name, reversed as well
+        assertEquals(Arrays.asList("e", "b", "a", "d", "c"), names);
+
+        page = index.page(1, files, Sort.MODIFIED, true, 2);
+        assertNames(page, "e", "d");
+        page = index.page(1, files, page.getNext(), 2);
+        assertNames(page, "c", "a");
+    }
+
+    @Test
+    public void orderSortedOnFirstUse() {
+        add("b", 1, 20);
+        index.page(1, files, Sort.NAME, false, 10);
+
+        // Files added before and after the modified order is first used are both in it
+        add("a", 1, 30);
+        add("c", 1, 10);
+
+        assertNames(index.page(1, files, Sort.MODIFIED, false, 10), "c", "b", "a");
+        add("d", 1, 0);
+        assertNames(index.page(1, files, Sort.MODIFIED, false, 10), "d", "c", "b", "a");
+        assertNames(index.page(1, files, Sort.NAME, false, 10), "a", "b", "c", "d");
+    }
+
+    @Test
+    public void malformedCursors() {
+        for (int i = 0; i < 3; i++) {
+            add("f" + i, i, i);
+        }
+
+        String cursor = index.page(1, files, Sort.SIZE, false, 1).getNext();
+
+        assertInvalid("");
+        assertInvalid(cursor.substring(1)); // Odd length
+        assertInvalid("zz" + cursor.substring(2)); // Not hex
+        assertInvalid("02" + cursor.substring(2)); // Unknown version
+        assertInvalid(cursor.substring(0, 2) + "07" + cursor.substring(4)); // Unknown sort order
+        assertInvalid(cursor.substring(0, 2) + "ff" + cursor.substring(4)); // Negative sort order
+        assertInvalid(cursor.substring(0, cursor.length() - 2)); // Truncated
+
+        assertNames(index.page(1, files, cursor, 1), "f1");
+    }
+
+    private FileEntity add(String name, long size, long lastModified) {
+        FileEntity fileEntity = new FileEntity(new File("/files/" + name), UUID.randomUUID(), size, lastModified, null);
+
+        files.put(fileEntity.getUuid(), fileEntity);
+        index.put(fileEntity);
+
+        return fileEntity;
+    }
+
+    private void remove(FileEntity fileEntity) {
+        files.remove(fileEntity.getUuid());
+        index.remove(fileEntity.getUuid());
+    }
+
+    private void assertInvalid(String cursor) {
+        try {
+            index.page(1, files, cursor, 1);
+
+            fail("Cursor " + cursor + " was accepted");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    private static void assertNames(FilePageEntity page, String... names) {
+        assertEquals(Arrays.asList(names), getNames(page));
+    }
+
+    private static List<String> getNames(FilePageEntity page) {
+        List<String> names = new ArrayList<>();
+
+        for (FileEntity fileEntity : page.getFiles()) {
+            names.add(fileEntity.getName());
+        }
+
+        return names;
+    }
+}
@@ -0,0 +1,118 @@
+package com.pgrenaud.android.p2p.web;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.List;
+
+import fi.iki.elonen.NanoHTTPD.Response;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ByteRangeTest {
+
+    @Test
+    public void closedRanges() {
+        assertRanges("[0-499]", "bytes=0-499", 10000);
+        assertRanges("[500-999]", "bytes=500-999", 10000);
+        assertRanges("[9999-9999]", "bytes=9999-9999", 10000);
+
+        // The end is capped to the last byte
+        assertRanges("[9000-9999]", "bytes=9000-20000", 10000);
+    }
+
+    @Test
+    public void openEndedRanges() {
+        assertRanges("[9500-9999]", "bytes=9500-", 10000);
+        assertRanges("[0-9999]", "bytes=0-", 10000);
+    }
+
+    @Test
+    public void suffixRanges() {
+        assertRanges("[9500-9999]", "bytes=-500", 10000);
+
+        // A suffix longer than the file is the whole file
+        assertRanges("[0-9999]", "bytes=-20000", 10000);
+
+        // An empty suffix selects nothing
+        assertRanges("[]", "bytes=-0", 10000);
+    }
+
+    @Test
+    public void mergedRanges() {
+        // Sorted, overlapping and touching ranges merged, so that no byte is sent twice
+        assertRanges("[0-199]", "bytes=100-199, 0-99", 10000);
+        assertRanges("[0-299]", "bytes=0-200,100-299", 10000);
+        assertRanges("[0-99, 9900-9999]", "bytes=-100, 0-99", 10000);
+        assertRanges("[0-9999]", "bytes=0-,500-999,-1", 10000);
+
+        // Unsatisfiable ranges are dropped, the others kept
+        assertRanges("[0-9]", "bytes=20000-30000, 0-9", 10000);
+    }
+
+    @Test
+    public void unsatisfiableRanges() {
+        assertRanges("[]", "bytes=10000-", 10000);
+        assertRanges("[]", "bytes=10000-10999", 10000);
+        assertRanges("[]", "bytes=10000-10999, 20000-", 10000);
+        assertRanges("[]", "bytes=0-", 0);
+        assertRanges("[]", "bytes=-500", 0);
+    }
+
+    @Test
+    public void invalidHeaders() {
+        assertNull(ByteRange.parse(null, 10000));
+        assertNull(ByteRange.parse("items=0-9", 10000));
+        assertNull(ByteRange.parse("bytes=9", 10000));
+        assertNull(ByteRange.parse("bytes=9-0", 10000));
+        assertNull(ByteRange.parse("bytes=a-b", 10000));
+        assertNull(ByteRange.parse("bytes=-", 10000));
+        assertNull(ByteRange.parse("bytes=-1-5", 10000));
+        assertNull(ByteRange.parse("bytes=0-9,x", 10000));
+    }
+
+    @Test
+    public void contentRange() {
+        assertEquals("bytes 500-999/10000", new ByteRange(500, 999).toContentRange(10000));
+        assertEquals(500, new ByteRange(500, 999).getLength());
+    }
+
+    @Test
+    public void notSatisfiableResponse() throws IOException {
+        File file = File.createTempFile("range", ".bin");
+
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.setLength(10000);
+            raf.close();
+
+            Response response = BasicWebServer.sendStream(file, Collections.singletonMap("range", "bytes=10000-"));
+            assertEquals(Response.Status.RANGE_NOT_SATISFIABLE, response.getStatus());
+            assertEquals("bytes */10000", response.getHeader("Content-Range"));
+
+            response = BasicWebServer.sendStream(file, Collections.singletonMap("range", "bytes=-500"));
+            assertEquals(Response.Status.PARTIAL_CONTENT, response.getStatus());
+            assertEquals("bytes 9500-9999/10000", response.getHeader("Content-Range"));
+            response.close();
+
+            // An invalid header is ignored, the whole file is sent
+            response = BasicWebServer.sendStream(file, Collections.singletonMap("range", "bytes=9-0"));
+            assertEquals(Response.Status.OK, response.getStatus());
+            assertNull(response.getHeader("Content-Range"));
+            response.close();
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    private static void assertRanges(String expected, String header, long length) {
+        List<ByteRange> ranges = ByteRange.parse(header, length);
+
+        assertEquals(header, expected, String.valueOf(ranges));
+    }
+}
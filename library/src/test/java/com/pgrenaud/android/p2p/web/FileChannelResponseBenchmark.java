@@ -0,0 +1,154 @@
+package com.pgrenaud.android.p2p.web;
+
+import com.pgrenaud.android.p2p.ThreadStats;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compare the files sent with {@link java.nio.channels.FileChannel#transferTo} to the ones copied
+ * through a buffer by NanoHTTPD, over loopback. Prints the throughput and the CPU time of all the
+ * threads, server and client, per run. Run on its own with:
+ *
+ * ./gradlew :library:testDebugUnitTest --tests '*FileChannelResponseBenchmark'
+ */
+public class FileChannelResponseBenchmark {
+
+    private static final long FILE_SIZE = 128L * 1024 * 1024;
+    private static final long MARKER = 12345;
+    private static final int DOWNLOADS = 4;
+
+    private static File file;
+
+    @BeforeClass
+    public static void createFile() throws IOException {
+        file = File.createTempFile("benchmark", ".bin");
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(FILE_SIZE);
+            raf.seek(MARKER);
+            raf.write(42);
+        } finally {
+            raf.close();
+        }
+    }
+
+    @AfterClass
+    public static void deleteFile() {
+        file.delete();
+    }
+
+    @Test
+    public void copyLoop() throws IOException {
+        run(false); // Warm up
+        run(false);
+    }
+
+    @Test
+    public void transferTo() throws IOException {
+        run(true); // Warm up
+        run(true);
+    }
+
+    private static void run(boolean zeroCopy) throws IOException {
+        BasicWebServer server = new BasicWebServer(0) {
+            @Override
+            public Response serve(IHTTPSession session) {
+                return sendStream(file, session.getHeaders());
+            }
+        };
+        server.setZeroCopyEnabled(zeroCopy);
+        server.setAsyncRunner(new BoundedAsyncRunner(2, 2, 2, 2, BoundedAsyncRunner.RejectionPolicy.SERVICE_UNAVAILABLE));
+        server.start();
+
+        try {
+            Socket socket = new Socket("127.0.0.1", server.getListeningPort());
+            OutputStream outputStream = socket.getOutputStream();
+            InputStream inputStream = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+            byte[] buffer = new byte[64 * 1024];
+
+            long cpu = ThreadStats.getCpuTime();
+            long start = System.nanoTime();
+
+            // Whole file downloads on a single keep-alive connection
+            for (int i = 0; i < DOWNLOADS; i++) {
+                long length = request(outputStream, inputStream, "");
+                long received = 0;
+
+                while (received < length) {
+                    int read = inputStream.read(buffer, 0, (int) Math.min(buffer.length, length - received));
+
+                    if (read == -1) {
+                        throw new IOException("Connection closed after " + received + " bytes");
+                    }
+
+                    received += read;
+                }
+
+                assertEquals(FILE_SIZE, received);
+            }
+
+            double seconds = (System.nanoTime() - start) / 1e9;
+            double cpuSeconds = (ThreadStats.getCpuTime() - cpu) / 1e9;
+
+            // The connection is still usable, and the content right
+            assertEquals(1, request(outputStream, inputStream, "Range: bytes=" + MARKER + "-" + MARKER + "\r\n"));
+            assertEquals(42, new DataInputStream(inputStream).readByte());
+
+            System.out.println(String.format(Locale.US, "%s: %d MB in %.2f s, %.0f MB/s, %.2f s of CPU",
+                    zeroCopy ? "transferTo" : "copy loop", DOWNLOADS * FILE_SIZE >> 20, seconds,
+                    DOWNLOADS * FILE_SIZE / 1048576.0 / seconds, cpuSeconds));
+
+            socket.close();
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     *
+     * @return Returns the Content-Length of the response, once its headers are read.
+     */
+    private static long request(OutputStream outputStream, InputStream inputStream, String headers) throws IOException {
+        outputStream.write(("GET /file HTTP/1.1\r\nHost: localhost\r\n" + headers + "\r\n").getBytes("US-ASCII"));
+        outputStream.flush();
+
+        long length = -1;
+        String line;
+
+        while (!(line = readLine(inputStream)).isEmpty()) {
+            if (line.toLowerCase(Locale.US).startsWith("content-length:")) {
+                length = Long.parseLong(line.substring(15).trim());
+            }
+        }
+
+        return length;
+    }
+
+    private static String readLine(InputStream inputStream) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        int c;
+
+        while ((c = inputStream.read()) != -1 && c != '\n') {
+            if (c != '\r') {
+                builder.append((char) c);
+            }
+        }
+
+        return builder.toString();
+    }
+}